@@ -0,0 +1,180 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chip.EngineType;
+import chip.Machine;
+
+/**
+ * The Benchmarks bodies under JMH, built by mvn -B -Pjmh package and run with java -jar target/benchmarks.jar.
+ * Scores are operations per second, in the same units as Benchmarks prints them.
+ * ROMs are read from -Dchip8.roms=<dir>, out/artifacts/chip8_jar by default
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class JmhBenchmarks {
+
+    private static File rom(String name) {
+        return new File(System.getProperty("chip8.roms", "out/artifacts/chip8_jar"), name);
+    }
+
+    //instructions per second on the bundled ROMs
+    @State(Scope.Thread)
+    public static class Rom {
+        @Param({ "pong2.c8", "tetris.c8", "invaders.c8" })
+        public String rom;
+        @Param({ "switch", "decoded", "jit" })
+        public String engine;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            body = Benchmarks.romBody(rom(rom).getPath(), EngineType.parse(engine));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH)
+    public long rom(Rom state) {
+        return state.body.run();
+    }
+
+    //instructions per second in frame sized budgets
+    @State(Scope.Thread)
+    public static class Frame {
+        @Param({ "pong2.c8", "tetris.c8", "invaders.c8" })
+        public String rom;
+        @Param({ "switch", "decoded", "jit" })
+        public String engine;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            body = Benchmarks.frameBody(rom(rom).getPath(), EngineType.parse(engine));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH / Benchmarks.FRAME * Benchmarks.FRAME)
+    public long frame(Frame state) {
+        return state.body.run();
+    }
+
+    //one opcode in a loop, with the same setups as Benchmarks
+    @State(Scope.Thread)
+    public static class Opcode {
+        @Param({ "DXYN", "FX33", "FX55", "FX65", "8XY4", "DXYN.hires", "DXY0.hires" })
+        public String opcode;
+        @Param({ "switch", "decoded", "jit" })
+        public String engine;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            EngineType type = EngineType.parse(engine);
+            switch(opcode) {
+                case "DXYN":
+                    body = Benchmarks.opcodeBody(type, new int[] { 0xA050, 0x6105, 0x6203 }, 0xD125);
+                    break;
+                case "FX33":
+                    body = Benchmarks.opcodeBody(type, new int[] { 0xA800, 0x61FE }, 0xF133);
+                    break;
+                case "FX55":
+                    body = Benchmarks.opcodeBody(type, new int[0], 0xA800, 0xF755);
+                    break;
+                case "FX65":
+                    body = Benchmarks.opcodeBody(type, new int[0], 0xA800, 0xF765);
+                    break;
+                case "8XY4":
+                    body = Benchmarks.opcodeBody(type, new int[] { 0x6133 }, 0x8014);
+                    break;
+                case "DXYN.hires":
+                    body = Benchmarks.opcodeBody(Machine.SCHIP, type, new int[] { 0x00FF, 0xA050, 0x6125, 0x6203 }, 0xD125);
+                    break;
+                default:
+                    body = Benchmarks.opcodeBody(Machine.SCHIP, type, new int[] { 0x00FF, 0xA0A0, 0x6125, 0x6203 }, 0xD120);
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH)
+    public long opcode(Opcode state) {
+        return state.body.run();
+    }
+
+    //loadProgram() latency, reported as loads per second
+    @State(Scope.Thread)
+    public static class Load {
+        @Param({ "pong2.c8", "tetris.c8", "invaders.c8" })
+        public String rom;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            body = Benchmarks.loadBody(rom(rom).getPath());
+        }
+    }
+
+    @Benchmark
+    public long load(Load state) {
+        return state.body.run();
+    }
+
+    //ChipPanel.paint() into an offscreen image
+    @State(Scope.Thread)
+    public static class Paint {
+        @Param({ "false", "true" })
+        public boolean changing;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            body = Benchmarks.paintBody(changing);
+        }
+    }
+
+    @Benchmark
+    public long paint(Paint state) {
+        return state.body.run();
+    }
+
+    //256 lanes a frame at a time, as separate chips or one LockstepChips
+    @State(Scope.Thread)
+    public static class Lanes {
+        @Param({ "pong2.c8", "tetris.c8", "invaders.c8" })
+        public String rom;
+        @Param({ "chips", "lockstep" })
+        public String kind;
+        Benchmarks.Body body;
+
+        @Setup
+        public void setup() {
+            body = kind.equals("chips") ? Benchmarks.chipsBody(rom(rom)) : Benchmarks.lockstepBody(rom(rom));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.LANES * Benchmarks.FRAME)
+    public long lanes(Lanes state) {
+        return state.body.run();
+    }
+}
@@ -0,0 +1,148 @@
+package batch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import chip.Chip;
+import chip.Machine;
+import chip.ProgramAnalysis;
+
+/**
+ * Runs many independent headless Chips for a fixed instruction budget on a work stealing pool.
+ * Instances share nothing, so a run scales with the number of cores and never needs a thread per instance
+ */
+public class BatchRunner {
+
+    //instructions per execute() call, between them the timers get their ticks
+    private static final int SLICE = 4096;
+
+    private final ForkJoinPool pool;
+
+    public BatchRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchRunner(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    //runs every job and returns the results in the same order
+    public List<Result> run(List<Job> jobs) {
+        Result[] results = new Result[jobs.size()];
+        pool.invoke(new Split(jobs, results, 0, jobs.size()));
+        return Arrays.asList(results);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Usage: java batch.BatchRunner [cycles] [instances per rom] rom...
+     * Prints the final display hash, pc and speed of every instance
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: BatchRunner <cycles> <instances per rom> <rom>...");
+            System.exit(1);
+        }
+        long cycles = Long.parseLong(args[0]);
+        int instances = Integer.parseInt(args[1]);
+        List<Job> jobs = new ArrayList<>();
+        for(int i = 2; i < args.length; i++) {
+            byte[] program = Files.readAllBytes(Paths.get(args[i]));
+            for(int n = 0; n < instances; n++) {
+                Job job = new Job(args[i] + "#" + n, program, cycles);
+                job.setMachine(Machine.forFile(args[i]));
+                jobs.add(job);
+            }
+        }
+        BatchRunner runner = new BatchRunner();
+        long start = System.nanoTime();
+        List<Result> results = runner.run(jobs);
+        long elapsed = System.nanoTime() - start;
+        runner.shutdown();
+
+        long total = 0;
+        for(Result result : results) {
+            total += result.getInstructions();
+            System.out.println(String.format("%-32s hash=%016X pc=%03X %s", result.getJob().getName(),
+                    result.getDisplayHash(), result.getPc(), result.isCompleted() ? "ok" : result.getError().getMessage()));
+        }
+        System.out.println(String.format("%d instances, %d instructions in %.1f ms (%.1f M instructions/s)",
+                results.size(), total, elapsed / 1e6, total * 1e3 / elapsed));
+    }
+
+    //runs a single job on the calling thread
+    public static Result run(Job job) {
+        Chip chip = new Chip();
+        chip.setMachine(job.getMachine());
+        chip.setQuirks(job.getQuirks());
+        chip.setEngine(job.getEngine());
+        chip.init();
+        chip.loadProgram(job.getProgram());
+        // cached by hash, so jobs of the same ROM share it
+        chip.setAnalysis(ProgramAnalysis.of(job.getProgram(), job.getMachine(), job.getQuirks()));
+        chip.setSeed(job.getSeed());
+        chip.setKeys(job.getKeys());
+
+        int perFrame = job.getInstructionsPerFrame();
+        long budget = job.getCycles();
+        long executed = 0;
+        //instructions run since the last timer tick
+        long sinceTick = 0;
+        RuntimeException error = null;
+        long start = System.nanoTime();
+        try {
+            while(executed < budget) {
+                int slice = (int)Math.min(Math.min(SLICE, budget - executed), perFrame - sinceTick);
+                int ran = chip.execute(slice);
+                executed += ran;
+                sinceTick += ran;
+                if(sinceTick == perFrame) {
+                    chip.tickTimers();
+                    sinceTick = 0;
+                }
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        return new Result(job, chip, executed, System.nanoTime() - start, error);
+    }
+
+    //splits the job range in halves until single jobs are left, idle workers steal halves
+    private static final class Split extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Job> jobs;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        Split(List<Job> jobs, Result[] results, int from, int to) {
+            this.jobs = jobs;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= 1) {
+                if(to > from) {
+                    results[from] = BatchRunner.run(jobs.get(from));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Split(jobs, results, from, middle), new Split(jobs, results, middle, to));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package batch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import chip.Chip;
+import chip.EngineType;
+import chip.Machine;
+import chip.Quirks;
+import chip.Snapshot;
+
+/**
+ * Headless conformance runs: test ROMs against golden state hashes, and two engines side by side.
+ *
+ * A golden file has one run per line: the ROM (relative to the golden file), machine, quirks
+ * ("default" for the machine's), cycles, held keys and the expected Result.getStateHash(), both hex.
+ * Lines starting with # are comments. The bundled ROMs come with a golden file, which check uses when
+ * given none. record adds golden values from the reference interpreter to a golden file, for every
+ * combination of the cycle counts, machines, quirks and held keys it is given,
+ * check runs every line on every engine in parallel through BatchRunner, and diff runs two engines in
+ * lockstep and narrows the first divergence down to a single instruction.
+ *
+ * Test ROMs such as the corax, flags, quirks and keypad tests are not bundled, record them into a golden
+ * file next to them the same way. The quirks and keypad tests pick what they test from the keys held.
+ */
+public class Conformance {
+
+    //golden values come from the reference interpreter
+    private static final EngineType REFERENCE = EngineType.SWITCH;
+    //instructions between timer ticks in diff mode, long enough for compiled blocks to run whole
+    private static final int DIFF_FRAME = 1024;
+    //golden values for the bundled ROMs, relative to the repository root
+    private static final String BUNDLED_GOLDEN = "out/artifacts/chip8_jar/golden.txt";
+
+    //one line of a golden file
+    static final class Entry {
+        final String rom;
+        final Machine machine;
+        //null for the machine's default
+        final Quirks quirks;
+        final long cycles;
+        final int keys;
+        final long hash;
+
+        Entry(String rom, Machine machine, Quirks quirks, long cycles, int keys, long hash) {
+            this.rom = rom;
+            this.machine = machine;
+            this.quirks = quirks;
+            this.cycles = cycles;
+            this.keys = keys;
+            this.hash = hash;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.trim().split("\\s+");
+            if(fields.length != 6) {
+                throw new IllegalArgumentException("Expected rom machine quirks cycles keys hash: " + line);
+            }
+            return new Entry(fields[0], Machine.parse(fields[1]),
+                    fields[2].equalsIgnoreCase("default") ? null : Quirks.parse(fields[2]),
+                    Long.parseLong(fields[3]), Integer.parseInt(fields[4], 16), Long.parseUnsignedLong(fields[5], 16));
+        }
+
+        String format() {
+            return String.format("%s %s %s %d %04X %016X", rom, machine.name().toLowerCase(),
+                    quirks == null ? "default" : quirks.name().toLowerCase(), cycles, keys, hash);
+        }
+
+        Job job(byte[] program, EngineType engine) {
+            Job job = new Job(rom + "@" + cycles + "/" + engine.name().toLowerCase(), program, cycles);
+            job.setMachine(machine);
+            job.setQuirks(quirks);
+            job.setEngine(engine);
+            job.setKeys(keys);
+            return job;
+        }
+    }
+
+    private Conformance() {
+    }
+
+    /**
+     * Usage: java batch.Conformance record <golden> <cycles>[,<cycles>...] [machines=<m>,...] [quirks=<q>,...] [keys=<hex>,...] <rom>...
+     *        java batch.Conformance check [golden] [engine...]
+     *        java batch.Conformance diff <engine> <engine> <cycles> <rom>...
+     * check and diff exit with 1 when anything does not match
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length >= 4 && args[0].equals("record")) {
+            record(Paths.get(args[1]), args[2], args, 3);
+        } else if(args.length >= 1 && args[0].equals("check")) {
+            List<EngineType> engines = new ArrayList<>();
+            for(int i = 2; i < args.length; i++) {
+                engines.add(EngineType.parse(args[i]));
+            }
+            if(engines.isEmpty()) {
+                engines.addAll(List.of(EngineType.values()));
+            }
+            System.exit(check(Paths.get(args.length > 1 ? args[1] : BUNDLED_GOLDEN), engines) ? 0 : 1);
+        } else if(args.length >= 5 && args[0].equals("diff")) {
+            System.exit(diff(EngineType.parse(args[1]), EngineType.parse(args[2]), Long.parseLong(args[3]), args, 4) ? 0 : 1);
+        } else {
+            System.err.println("Usage: Conformance record <golden file> <cycles>[,<cycles>...] "
+                    + "[machines=chip8,schip,xochip] [quirks=default,modern,vip,chip48,schip,xochip] [keys=<hex>,...] <rom>...");
+            System.err.println("       Conformance check [golden file] [switch|decoded|jit...]");
+            System.err.println("       Conformance diff <engine> <engine> <cycles> <rom>...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs every ROM for every cycle count, machine, quirks and held keys on the reference interpreter
+     * and adds the values to the golden file. Machines default to the one the file name suggests,
+     * quirks to the machine's and keys to none held
+     */
+    private static void record(Path golden, String cycleList, String[] args, int first) throws IOException {
+        Path base = golden.toAbsolutePath().getParent();
+        List<Machine> machines = null;
+        List<Quirks> quirks = new ArrayList<>();
+        quirks.add(null);
+        List<Integer> keys = List.of(0);
+        List<Path> roms = new ArrayList<>();
+        for(int i = first; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.startsWith("machines=")) {
+                machines = new ArrayList<>();
+                for(String machine : values(arg)) {
+                    machines.add(Machine.parse(machine));
+                }
+            } else if(arg.startsWith("quirks=")) {
+                quirks.clear();
+                for(String quirk : values(arg)) {
+                    quirks.add(quirk.equalsIgnoreCase("default") ? null : Quirks.parse(quirk));
+                }
+            } else if(arg.startsWith("keys=")) {
+                keys = new ArrayList<>();
+                for(String held : values(arg)) {
+                    keys.add(Integer.parseInt(held, 16));
+                }
+            } else {
+                roms.add(Paths.get(arg).toAbsolutePath());
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        List<Job> jobs = new ArrayList<>();
+        for(Path rom : roms) {
+            byte[] program = Files.readAllBytes(rom);
+            String name = base.relativize(rom).toString().replace('\\', '/');
+            for(Machine machine : machines != null ? machines : List.of(Machine.forFile(name))) {
+                for(Quirks quirk : quirks) {
+                    for(int held : keys) {
+                        for(String cycles : cycleList.split(",")) {
+                            Entry entry = new Entry(name, machine, quirk, Long.parseLong(cycles), held, 0);
+                            entries.add(entry);
+                            jobs.add(entry.job(program, REFERENCE));
+                        }
+                    }
+                }
+            }
+        }
+        List<Result> results = runAll(jobs);
+        boolean created = !Files.exists(golden);
+        try(BufferedWriter out = Files.newBufferedWriter(golden, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if(created) {
+                out.write("# rom machine quirks cycles keys hash, recorded on " + REFERENCE.name().toLowerCase());
+                out.newLine();
+            }
+            for(int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                Result result = results.get(i);
+                if(!result.isCompleted()) {
+                    // still deterministic, the state it stopped in is the golden value
+                    System.err.println(entry.rom + " stopped early: " + result.getError().getMessage());
+                }
+                out.write(new Entry(entry.rom, entry.machine, entry.quirks, entry.cycles, entry.keys,
+                        result.getStateHash()).format());
+                out.newLine();
+            }
+        }
+        System.out.println(entries.size() + " golden values added to " + golden);
+    }
+
+    //the comma separated values of a name=value argument
+    private static String[] values(String arg) {
+        return arg.substring(arg.indexOf('=') + 1).split(",");
+    }
+
+    //runs every golden line on every engine, true when all of them match
+    static boolean check(Path golden, List<EngineType> engines) throws IOException {
+        Path base = golden.toAbsolutePath().getParent();
+        List<Entry> entries = new ArrayList<>();
+        for(String line : Files.readAllLines(golden)) {
+            if(!line.isBlank() && !line.trim().startsWith("#")) {
+                entries.add(Entry.parse(line));
+            }
+        }
+        // ROMs are read once however many lines use them
+        Map<String, byte[]> programs = new HashMap<>();
+        List<Job> jobs = new ArrayList<>();
+        List<Entry> expected = new ArrayList<>();
+        for(Entry entry : entries) {
+            byte[] program = programs.get(entry.rom);
+            if(program == null) {
+                program = Files.readAllBytes(base.resolve(entry.rom));
+                programs.put(entry.rom, program);
+            }
+            for(EngineType engine : engines) {
+                jobs.add(entry.job(program, engine));
+                expected.add(entry);
+            }
+        }
+        long start = System.nanoTime();
+        List<Result> results = runAll(jobs);
+        long elapsed = System.nanoTime() - start;
+
+        int failed = 0;
+        long instructions = 0;
+        for(int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            instructions += result.getInstructions();
+            if(result.getStateHash() != expected.get(i).hash) {
+                failed++;
+                System.out.println(String.format("FAIL %-40s expected %016X, got %016X (pc=%03X)%s", result.getJob().getName(),
+                        expected.get(i).hash, result.getStateHash(), result.getPc(),
+                        result.isCompleted() ? "" : " " + result.getError().getMessage()));
+            }
+        }
+        System.out.println(String.format("%d runs, %d failed, %d instructions in %.1f ms",
+                results.size(), failed, instructions, elapsed / 1e6));
+        return failed == 0;
+    }
+
+    //diffs every ROM in parallel, prints the reports in argument order, true when no engine diverged
+    private static boolean diff(EngineType left, EngineType right, long cycles, String[] roms, int first) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> programs = new ArrayList<>();
+        for(int i = first; i < roms.length; i++) {
+            names.add(roms[i]);
+            programs.add(Files.readAllBytes(Paths.get(roms[i])));
+        }
+        List<String> reports = IntStream.range(0, names.size()).parallel()
+                .mapToObj(i -> diff(programs.get(i), Machine.forFile(names.get(i)), left, right, cycles))
+                .collect(Collectors.toList());
+        boolean agreed = true;
+        for(int i = 0; i < names.size(); i++) {
+            String report = reports.get(i);
+            agreed &= report == null;
+            System.out.println(names.get(i) + ": " + (report == null ? "agree for " + cycles + " instructions" : report));
+        }
+        return agreed;
+    }
+
+    /**
+     * Runs the program on both engines in lockstep, comparing the whole machine state after every frame.
+     * Returns null if they agree for the whole budget, otherwise where and how they first differ
+     */
+    static String diff(byte[] program, Machine machine, EngineType left, EngineType right, long cycles) {
+        Chip a = start(program, machine, left);
+        Chip b = start(program, machine, right);
+        long executed = 0;
+        while(executed < cycles) {
+            Snapshot agreed = a.saveState();
+            int slice = (int)Math.min(DIFF_FRAME, cycles - executed);
+            String errorA = run(a, slice);
+            String errorB = run(b, slice);
+            if(!same(a, b, errorA, errorB)) {
+                return narrow(a, b, agreed, executed, slice);
+            }
+            if(errorA != null) {
+                return null;
+            }
+            executed += slice;
+            a.tickTimers();
+            b.tickTimers();
+        }
+        return null;
+    }
+
+    /**
+     * Bisects [executed, executed + slice): both chips go back to the last state they agreed on
+     * and run half the instructions, until a single instruction is left
+     */
+    private static String narrow(Chip a, Chip b, Snapshot agreed, long executed, int slice) {
+        long from = executed;
+        int length = slice;
+        while(length > 1) {
+            int half = length / 2;
+            a.loadState(agreed);
+            b.loadState(agreed);
+            String errorA = run(a, half);
+            String errorB = run(b, half);
+            if(!same(a, b, errorA, errorB)) {
+                length = half;
+            } else {
+                agreed = a.saveState();
+                from += half;
+                length -= half;
+            }
+        }
+        a.loadState(agreed);
+        b.loadState(agreed);
+        String errorA = run(a, 1);
+        String errorB = run(b, 1);
+        if(same(a, b, errorA, errorB)) {
+            // the engines only differ when running longer stretches, e.g. inside a compiled block
+            return String.format("diverged within instructions %d-%d, but not when stepping them one by one",
+                    executed, executed + slice - 1);
+        }
+        String differences = errorA != null || errorB != null
+                ? "error " + errorA + " / " + errorB
+                : a.saveState().describeDifferences(b.saveState());
+        return String.format("first divergence at instruction %d, pc=%03X opcode %04X: %s",
+                from, agreed.getPc(), agreed.getOpcode(), differences);
+    }
+
+    private static Chip start(byte[] program, Machine machine, EngineType engine) {
+        Chip chip = new Chip();
+        chip.setMachine(machine);
+        chip.setEngine(engine);
+        chip.init();
+        chip.loadProgram(program);
+        chip.setSeed(0);
+        return chip;
+    }
+
+    //the error message if the chip stopped on an unsupported opcode or similar
+    private static String run(Chip chip, int cycles) {
+        try {
+            chip.execute(cycles);
+            return null;
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static boolean same(Chip a, Chip b, String errorA, String errorB) {
+        if(errorA == null ? errorB != null : !errorA.equals(errorB)) {
+            return false;
+        }
+        return a.saveState().equals(b.saveState());
+    }
+
+    private static List<Result> runAll(List<Job> jobs) {
+        BatchRunner runner = new BatchRunner();
+        try {
+            return runner.run(jobs);
+        } finally {
+            runner.shutdown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package batch;
+
+import chip.EngineType;
+import chip.Machine;
+import chip.Quirks;
+import chip.Scheduler;
+
+/**
+ * One headless run: a program, how many instructions to give it and how to run it
+ */
+public class Job {
+
+    private final String name;
+    private final byte[] program;
+    private final long cycles;
+
+    private Machine machine = Machine.CHIP8;
+    //null runs with the machine's default quirks
+    private Quirks quirks;
+    private EngineType engine = EngineType.DECODED;
+    //timers tick once every this many instructions, i.e. the emulated instruction rate / 60
+    private int instructionsPerFrame = Scheduler.DEFAULT_HZ / Scheduler.FRAME_HZ;
+    //keys held down for the whole run, bit n for key n
+    private int keys;
+    //CXNN seed, fixed so the same job always ends in the same state
+    private long seed;
+
+    public Job(String name, byte[] program, long cycles) {
+        if(cycles < 0) {
+            throw new IllegalArgumentException("Cycle budget must be >= 0: " + cycles);
+        }
+        this.name = name;
+        this.program = program;
+        this.cycles = cycles;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getProgram() {
+        return program;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    public void setMachine(Machine machine) {
+        this.machine = machine;
+    }
+
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+    }
+
+    public EngineType getEngine() {
+        return engine;
+    }
+
+    public void setEngine(EngineType engine) {
+        this.engine = engine;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if(instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("Instructions per frame must be positive: " + instructionsPerFrame);
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public int getKeys() {
+        return keys;
+    }
+
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,86 @@
+package batch;
+
+import chip.Chip;
+import chip.Snapshot;
+
+/**
+ * Final state of a Job: the whole machine state, display and registers, and how long it took
+ */
+public class Result {
+
+    private final Job job;
+    private final long[] display;
+    private final int[] registers;
+    private final int pc;
+    private final int I;
+    private final Snapshot state;
+    private final long instructions;
+    private final long nanos;
+    //set when the run stopped early, e.g. on an unsupported opcode
+    private final RuntimeException error;
+
+    Result(Job job, Chip chip, long instructions, long nanos, RuntimeException error) {
+        this.job = job;
+        this.display = chip.getDisplayRows().clone();
+        this.registers = new int[16];
+        for(int i = 0; i < 16; i++) {
+            registers[i] = chip.getRegister(i);
+        }
+        this.pc = chip.getPc();
+        this.I = chip.getI();
+        this.state = chip.saveState();
+        this.instructions = instructions;
+        this.nanos = nanos;
+        this.error = error;
+    }
+
+    public Job getJob() {
+        return job;
+    }
+
+    //packed display, one long per row
+    public long[] getDisplay() {
+        return display;
+    }
+
+    public long getDisplayHash() {
+        return Chip.hashRows(display);
+    }
+
+    //hash of the whole machine state, what conformance runs compare against golden values
+    public long getStateHash() {
+        return state.stateHash();
+    }
+
+    public Snapshot getState() {
+        return state;
+    }
+
+    public int[] getRegisters() {
+        return registers;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public int getI() {
+        return I;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public boolean isCompleted() {
+        return error == null;
+    }
+}
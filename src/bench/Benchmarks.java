@@ -0,0 +1,317 @@
+package bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import chip.Chip;
+import chip.EngineType;
+import chip.FrameExchange;
+import chip.LockstepChips;
+import chip.Machine;
+import chip.VectorEnv;
+import emu.ChipPanel;
+
+/**
+ * Headless benchmarks for the interpreter engines, the renderer and the ROM loader.
+ *
+ * Usage: java -cp chip8.jar bench.Benchmarks [rom directory] [name filter]
+ * Each benchmark runs warmup iterations first, then reports the mean and standard deviation
+ * of the measured iterations. Run it before and after a change on the same machine.
+ * The bodies are shared with JmhBenchmarks, which runs them under JMH with mvn -Pjmh.
+ */
+public class Benchmarks {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    //instructions per execute() call in the interpreter benchmarks
+    static final int BATCH = 10_000;
+
+    //lanes and instructions per frame in the lockstep benchmarks, about 700 Hz at 60 frames per second
+    static final int LANES = 256;
+    static final int FRAME = 12;
+
+    private static final String[] ROMS = { "pong2.c8", "tetris.c8", "invaders.c8" };
+
+    //results are folded in here so the JIT cannot drop the work
+    static volatile long sink;
+
+    //one call of the benchmark body, returns how many operations it did
+    interface Body {
+        long run();
+    }
+
+    public static void main(String[] args) {
+        if(System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        String romDir = args.length > 0 ? args[0] : "out/artifacts/chip8_jar";
+        String filter = args.length > 1 ? args[1] : "";
+
+        for(String rom : ROMS) {
+            File file = new File(romDir, rom);
+            if(!file.isFile()) {
+                System.err.println("Skipping " + file + ": not found");
+                continue;
+            }
+            for(EngineType type : EngineType.values()) {
+                bench(filter, "rom." + rom + "." + type.name().toLowerCase(), "instructions/s", romBody(file.getPath(), type));
+            }
+            for(EngineType type : EngineType.values()) {
+                bench(filter, "frame." + rom + "." + type.name().toLowerCase(), "instructions/s", frameBody(file.getPath(), type));
+            }
+            bench(filter, "load." + rom, "loads/s", loadBody(file.getPath()));
+            bench(filter, "env." + rom, "steps/s", envBody(file));
+            bench(filter, "lanes." + rom + ".chips", "instructions/s", chipsBody(file));
+            bench(filter, "lanes." + rom + ".lockstep", "instructions/s", lockstepBody(file));
+        }
+
+        for(EngineType type : EngineType.values()) {
+            String engine = "." + type.name().toLowerCase();
+            // I points at the font so the sprites are real characters
+            bench(filter, "op.DXYN" + engine, "instructions/s", opcodeBody(type, new int[] { 0xA050, 0x6105, 0x6203 }, 0xD125));
+            // stores go to 0x800, away from the code
+            bench(filter, "op.FX33" + engine, "instructions/s", opcodeBody(type, new int[] { 0xA800, 0x61FE }, 0xF133));
+            // FX55 and FX65 move I on, so put it back each time
+            bench(filter, "op.FX55" + engine, "instructions/s", opcodeBody(type, new int[0], 0xA800, 0xF755));
+            bench(filter, "op.FX65" + engine, "instructions/s", opcodeBody(type, new int[0], 0xA800, 0xF765));
+            bench(filter, "op.8XY4" + engine, "instructions/s", opcodeBody(type, new int[] { 0x6133 }, 0x8014));
+            // the same sprite on the SUPER-CHIP 128x64 display, and a 16x16 big font sprite
+            bench(filter, "op.DXYN.hires" + engine, "instructions/s",
+                    opcodeBody(Machine.SCHIP, type, new int[] { 0x00FF, 0xA050, 0x6125, 0x6203 }, 0xD125));
+            bench(filter, "op.DXY0.hires" + engine, "instructions/s",
+                    opcodeBody(Machine.SCHIP, type, new int[] { 0x00FF, 0xA0A0, 0x6125, 0x6203 }, 0xD120));
+        }
+
+        bench(filter, "paint.unchanged", "paints/s", paintBody(false));
+        bench(filter, "paint.changed", "paints/s", paintBody(true));
+    }
+
+    static Body romBody(String file, EngineType type) {
+        final Chip chip = new Chip();
+        chip.init();
+        chip.setEngine(type);
+        chip.loadProgram(file);
+        return () -> {
+            long executed = chip.execute(BATCH);
+            chip.tickTimers();
+            return executed;
+        };
+    }
+
+    //the same in the budgets the Scheduler hands out, FRAME instructions and a timer tick at a time
+    static Body frameBody(String file, EngineType type) {
+        final Chip chip = new Chip();
+        chip.init();
+        chip.setEngine(type);
+        chip.loadProgram(file);
+        return () -> {
+            long executed = 0;
+            for(int i = 0; i < BATCH / FRAME; i++) {
+                executed += chip.execute(FRAME);
+                chip.tickTimers();
+            }
+            return executed;
+        };
+    }
+
+    //rollouts of 256 environments with 4 stacked frames, changing keys every step
+    private static Body envBody(File file) {
+        final VectorEnv env;
+        try {
+            env = new VectorEnv(Files.readAllBytes(file.toPath()), Machine.CHIP8, null, EngineType.DECODED, 256, 4);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        env.setMaxSteps(2000);
+        env.reset();
+        final int[] actions = new int[env.getEnvs()];
+        return new Body() {
+            int step;
+
+            @Override
+            public long run() {
+                for(int i = 0; i < actions.length; i++) {
+                    actions[i] = 1 << ((i + step) & 0xF);
+                }
+                step++;
+                env.step(actions);
+                return actions.length;
+            }
+        };
+    }
+
+    //what lane l holds down in the given frame: a key every fourth lane, changing every half second
+    private static int laneKeys(int lane, int frame) {
+        return (frame / 30 + lane) % 4 == 0 ? 1 << ((lane + frame / 30) & 0xF) : 0;
+    }
+
+    //LANES separate chips with their own seeds and keys, a frame at a time, to compare lanes.*.lockstep with
+    static Body chipsBody(File file) {
+        final byte[] program = readRom(file);
+        final Chip[] chips = new Chip[LANES];
+        for(int l = 0; l < LANES; l++) {
+            chips[l] = new Chip();
+            chips[l].init();
+            chips[l].setEngine(EngineType.DECODED);
+            chips[l].loadProgram(program);
+            chips[l].setSeed(l);
+        }
+        return new Body() {
+            int frame;
+
+            @Override
+            public long run() {
+                for(int l = 0; l < LANES; l++) {
+                    chips[l].setKeys(laneKeys(l, frame));
+                    chips[l].execute(FRAME);
+                    chips[l].tickTimers();
+                }
+                frame++;
+                return LANES * FRAME;
+            }
+        };
+    }
+
+    //the same lanes, seeds and keys as chipsBody on one LockstepChips
+    static Body lockstepBody(File file) {
+        final LockstepChips lockstep = new LockstepChips(LANES);
+        lockstep.loadProgram(readRom(file));
+        for(int l = 0; l < LANES; l++) {
+            lockstep.setSeed(l, l);
+        }
+        return new Body() {
+            int frame;
+
+            @Override
+            public long run() {
+                for(int l = 0; l < LANES; l++) {
+                    lockstep.setKeys(l, laneKeys(l, frame));
+                }
+                lockstep.run(FRAME);
+                lockstep.tickTimers();
+                frame++;
+                return LANES * FRAME;
+            }
+        };
+    }
+
+    private static byte[] readRom(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Body loadBody(String file) {
+        final Chip chip = new Chip();
+        chip.init();
+        return () -> {
+            chip.loadProgram(file);
+            return 1;
+        };
+    }
+
+    //runs setup once, then loops over the body opcodes forever
+    static Body opcodeBody(EngineType type, int[] setup, int... body) {
+        return opcodeBody(Machine.CHIP8, type, setup, body);
+    }
+
+    static Body opcodeBody(Machine machine, EngineType type, int[] setup, int... body) {
+        final Chip chip = new Chip();
+        chip.setMachine(machine);
+        chip.init();
+        chip.setEngine(type);
+        chip.loadProgram(loopProgram(setup, body, 32));
+        return () -> chip.execute(BATCH);
+    }
+
+    static byte[] loopProgram(int[] setup, int[] body, int repeat) {
+        int loopStart = 0x200 + setup.length * 2;
+        int[] program = new int[setup.length + body.length * repeat + 1];
+        System.arraycopy(setup, 0, program, 0, setup.length);
+        for(int i = 0; i < repeat; i++) {
+            System.arraycopy(body, 0, program, setup.length + i * body.length, body.length);
+        }
+        // 1NNN back to the start of the loop
+        program[program.length - 1] = 0x1000 | loopStart;
+
+        byte[] bytes = new byte[program.length * 2];
+        for(int i = 0; i < program.length; i++) {
+            bytes[i * 2] = (byte)(program[i] >> 8);
+            bytes[i * 2 + 1] = (byte)program[i];
+        }
+        return bytes;
+    }
+
+    static Body paintBody(boolean changing) {
+        final FrameExchange frames = new FrameExchange();
+        final ChipPanel panel = new ChipPanel(frames);
+        panel.setSize(640, 320);
+        final BufferedImage target = new BufferedImage(640, 320, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = target.createGraphics();
+        // a checkerboard and its inverse, so every row differs between the two
+        final long[] even = new long[Chip.HEIGHT];
+        final long[] odd = new long[Chip.HEIGHT];
+        for(int y = 0; y < Chip.HEIGHT; y++) {
+            even[y] = (y & 1) == 0 ? 0xAAAAAAAAAAAAAAAAL : 0x5555555555555555L;
+            odd[y] = ~even[y];
+        }
+        frames.publish(even);
+        return new Body() {
+            private boolean flip;
+
+            @Override
+            public long run() {
+                if(changing) {
+                    flip = !flip;
+                    frames.publish(flip ? odd : even);
+                }
+                panel.paint(g);
+                return 1;
+            }
+        };
+    }
+
+    private static void bench(String filter, String name, String unit, Body body) {
+        if(!name.contains(filter)) {
+            return;
+        }
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(body);
+        }
+        double[] rates = new double[MEASURED_ITERATIONS];
+        double mean = 0;
+        for(int i = 0; i < MEASURED_ITERATIONS; i++) {
+            rates[i] = iteration(body);
+            mean += rates[i];
+        }
+        mean /= MEASURED_ITERATIONS;
+        double variance = 0;
+        for(double rate : rates) {
+            variance += (rate - mean) * (rate - mean);
+        }
+        double deviation = Math.sqrt(variance / (MEASURED_ITERATIONS - 1));
+        System.out.println(String.format(Locale.ROOT, "%-28s %16.1f +- %12.1f %s", name, mean, deviation, unit));
+    }
+
+    //runs the body for about ITERATION_NANOS and returns operations per second
+    private static double iteration(Body body) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operations += body.run();
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < ITERATION_NANOS);
+        sink += operations;
+        return operations * 1e9 / elapsed;
+    }
+}
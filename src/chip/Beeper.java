@@ -0,0 +1,115 @@
+package chip;
+
+import java.io.Closeable;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the CHIP-8 beep while the sound timer is above 0.
+ *
+ * The emulation thread only flips a volatile flag with setBeeping(). A daemon audio thread keeps
+ * the line fed with short pre-rendered chunks of either a square wave or silence, so the emulation
+ * loop never allocates or blocks on audio. The line buffer is the configured latency; writing blocks
+ * the audio thread once it is full, which paces it. When there is no audio device (headless machines,
+ * CI) the beeper is a null sink: the flag is kept and nothing is played.
+ */
+public class Beeper implements Closeable {
+
+    public static final int DEFAULT_LATENCY_MILLIS = 40;
+
+    private static final int SAMPLE_RATE = 44100;
+    //441hz, so one period is exactly 100 samples and chunks join without clicks
+    private static final int PERIOD = 100;
+    private static final byte VOLUME = 24;
+
+    private final SourceDataLine line;
+    private final byte[] tone;
+    private final byte[] silence;
+    private final Thread thread;
+
+    private volatile boolean beeping;
+    private volatile boolean running;
+
+    public Beeper() {
+        this(DEFAULT_LATENCY_MILLIS);
+    }
+
+    public Beeper(int latencyMillis) {
+        if(latencyMillis <= 0) {
+            throw new IllegalArgumentException("Latency must be positive: " + latencyMillis);
+        }
+        int buffer = Math.max(2 * PERIOD, SAMPLE_RATE * latencyMillis / 1000);
+        // a quarter of the latency per write, whole periods
+        int chunk = Math.max(PERIOD, buffer / 4 / PERIOD * PERIOD);
+        tone = new byte[chunk];
+        for(int i = 0; i < chunk; i++) {
+            tone[i] = i % PERIOD < PERIOD / 2 ? VOLUME : (byte)-VOLUME;
+        }
+        silence = new byte[chunk];
+
+        line = open(buffer);
+        if(line == null) {
+            thread = null;
+            return;
+        }
+        running = true;
+        thread = new Thread(this::play, "chip8-audio");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    //called by the emulation thread, usually once per frame with sound_timer > 0
+    public void setBeeping(boolean beeping) {
+        if(this.beeping != beeping) {
+            this.beeping = beeping;
+        }
+    }
+
+    public boolean isBeeping() {
+        return beeping;
+    }
+
+    //false when there is no audio device and nothing is played
+    public boolean isAudible() {
+        return line != null;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if(thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            line.close();
+        }
+    }
+
+    private void play() {
+        line.start();
+        while(running) {
+            byte[] chunk = beeping ? tone : silence;
+            line.write(chunk, 0, chunk.length);
+        }
+        line.stop();
+        line.flush();
+    }
+
+    private static SourceDataLine open(int buffer) {
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 8, 1, true, false);
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(format);
+            line.open(format, buffer);
+            return line;
+        } catch (LineUnavailableException | IllegalArgumentException | SecurityException e) {
+            System.err.println("No audio output, sound is off: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,750 @@
+package chip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Translates one CHIP-8 block into the bytes of a class implementing JitEngine.CompiledBlock.
+ *
+ * The generated run(Chip, int) method follows skips with real branches, so a block goes on past them
+ * and only ends at jumps, calls, returns, FX0A and memory stores. A jump back into the block is a loop.
+ * Before every instruction the count of instructions run is checked against the budget, and the block
+ * leaves with pc on the first instruction it did not run, so it stops where the interpreters would.
+ * Anything complicated (drawing, BCD, register stores) calls the same Chip helpers the interpreters use.
+ */
+class BlockCompiler {
+
+    //blocks stop after this many instructions even without a jump
+    static final int MAX_INSTRUCTIONS = 64;
+
+    private static final String CHIP = "chip/Chip";
+    private static final String BLOCK_INTERFACE = "chip/JitEngine$CompiledBlock";
+
+    //locals of run() are this, the chip, the budget, the register array and this one, the instructions run so far
+    private static final int COUNT_LOCAL = 4;
+
+    //JVM opcodes used by the generated code
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ILOAD = 0x15;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int ALOAD_3 = 0x2d;
+    private static final int CALOAD = 0x34;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE_3 = 0x4e;
+    private static final int CASTORE = 0x55;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7a;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IINC = 0x84;
+    private static final int I2C = 0x92;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    //result of compile(), the class bytes plus what the engine needs to account for it
+    static final class Result {
+        final byte[] classBytes;
+        //number of CHIP-8 instructions in the block
+        final int length;
+        //last memory address the block was compiled from
+        final int end;
+
+        Result(byte[] classBytes, int length, int end) {
+            this.classBytes = classBytes;
+            this.length = length;
+            this.end = end;
+        }
+    }
+
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+    //code of each address, bound once the instruction there is compiled
+    private final Map<Integer, Label> entries = new HashMap<>();
+    //code that leaves the block with pc at the address
+    private final Map<Integer, Label> exits = new TreeMap<>();
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Compiles the block starting at start, or returns null if the first instruction
+     * is one the engine leaves to Chip.run()
+     */
+    static Result compile(char[] memory, int start, Machine machine, Quirks quirks) {
+        return new BlockCompiler().compileBlock(memory, start, machine, quirks);
+    }
+
+    private Result compileBlock(char[] memory, int start, Machine machine, Quirks quirks) {
+        // local 3 caches the register array for the whole block
+        code.op(ALOAD_1, 1);
+        getField("V", "[C");
+        code.op(ASTORE_3, -1);
+        code.push(0);
+        code.local(ISTORE, COUNT_LOCAL, -1);
+
+        int addr = start;
+        int length = 0;
+        boolean ended = false;
+        // an instruction after one that ends the block is still compiled when a skip lands on it
+        while(!ended || pending(addr)) {
+            if(addr + 1 >= memory.length || length == MAX_INSTRUCTIONS) {
+                break;
+            }
+            int entry = DecodedEngine.decode((memory[addr] << 8) | memory[addr + 1], machine, quirks);
+            int handler = entry >>> 24;
+            if(handler == DecodedEngine.FALLBACK) {
+                if(length == 0) {
+                    return null;
+                }
+                // stop in front of it and let the interpreter take it
+                break;
+            }
+            code.bind(entry(addr));
+            // out of budget, leave with this instruction not run
+            code.local(ILOAD, COUNT_LOCAL, 1);
+            code.op(ILOAD_2, 1);
+            code.branch(IF_ICMPGE, exit(addr), -2);
+            code.iinc(COUNT_LOCAL, 1);
+            if(mayThrow(handler)) {
+                // the block has no exception handler, so pc has to name this instruction before it can fail
+                setPc(addr);
+            }
+            ended = emit(handler, (entry >>> 20) & 0xF, (entry >>> 16) & 0xF, entry & 0xFFFF, addr);
+            addr += 2;
+            length++;
+        }
+        if(!ended) {
+            exitTo(addr);
+        }
+        // skips that land past the block leave through the exits as well
+        for(Map.Entry<Integer, Label> target : entries.entrySet()) {
+            if(target.getValue().offset < 0) {
+                exits.putIfAbsent(target.getKey(), target.getValue());
+            }
+        }
+        for(Map.Entry<Integer, Label> exit : exits.entrySet()) {
+            code.bind(exit.getValue());
+            Label entry = entries.get(exit.getKey());
+            if(entry != null && entry.offset < 0) {
+                code.bind(entry);
+            }
+            exitTo(exit.getKey());
+        }
+        return new Result(assemble(), length, addr - 1);
+    }
+
+    private Label entry(int addr) {
+        return entries.computeIfAbsent(addr, a -> code.label());
+    }
+
+    private Label exit(int addr) {
+        return exits.computeIfAbsent(addr, a -> code.label());
+    }
+
+    //true when a skip lands on addr and it has not been compiled yet
+    private boolean pending(int addr) {
+        Label label = entries.get(addr);
+        return label != null && label.offset < 0;
+    }
+
+    //instructions that index the stack or memory and throw when they run off the end, like Chip.run() does
+    private static boolean mayThrow(int handler) {
+        switch(handler) {
+            case DecodedEngine.RET:
+            case DecodedEngine.CALL:
+            case DecodedEngine.DRW:
+            case DecodedEngine.BCD:
+            case DecodedEngine.STORE:
+            case DecodedEngine.LOAD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //emits one instruction, returns true when it ends the block (the code leaves or jumps back)
+    private boolean emit(int handler, int x, int y, int arg, int addr) {
+        switch(handler) {
+            case DecodedEngine.CLS:
+                code.op(ALOAD_1, 1);
+                invokeChip("clearScreen", "()V", 0, false);
+                return false;
+            case DecodedEngine.RET:
+                // stackPointer--
+                code.op(ALOAD_1, 1);
+                code.op(ALOAD_1, 1);
+                getField("stackPointer", "C");
+                code.push(1);
+                code.op(ISUB, -1);
+                code.op(I2C, 0);
+                putField("stackPointer", "C");
+                // pc = stack[stackPointer] + 2
+                code.op(ALOAD_1, 1);
+                code.op(ALOAD_1, 1);
+                getField("stack", "[C");
+                code.op(ALOAD_1, 1);
+                getField("stackPointer", "C");
+                code.op(CALOAD, -1);
+                code.push(2);
+                code.op(IADD, -1);
+                code.op(I2C, 0);
+                putField("pc", "C");
+                leave();
+                return true;
+            case DecodedEngine.JP:
+                Label target = entries.get(arg);
+                if(target != null && target.offset >= 0) {
+                    // back into the block, the budget check at the target ends the loop
+                    code.branch(GOTO, target, 0);
+                } else {
+                    exitTo(arg);
+                }
+                return true;
+            case DecodedEngine.CALL:
+                // stack[stackPointer] = pc
+                code.op(ALOAD_1, 1);
+                getField("stack", "[C");
+                code.op(ALOAD_1, 1);
+                getField("stackPointer", "C");
+                code.push(addr);
+                code.op(CASTORE, -3);
+                // stackPointer++
+                code.op(ALOAD_1, 1);
+                code.op(ALOAD_1, 1);
+                getField("stackPointer", "C");
+                code.push(1);
+                code.op(IADD, -1);
+                code.op(I2C, 0);
+                putField("stackPointer", "C");
+                exitTo(arg);
+                return true;
+            case DecodedEngine.SE_NN:
+                loadV(x);
+                code.push(arg);
+                skip(IF_ICMPEQ, addr);
+                return false;
+            case DecodedEngine.SNE_NN:
+                loadV(x);
+                code.push(arg);
+                skip(IF_ICMPNE, addr);
+                return false;
+            case DecodedEngine.SE_XY:
+                loadV(x);
+                loadV(y);
+                skip(IF_ICMPEQ, addr);
+                return false;
+            case DecodedEngine.SNE_XY:
+                loadV(x);
+                loadV(y);
+                skip(IF_ICMPNE, addr);
+                return false;
+            case DecodedEngine.SKP:
+                loadKey(x);
+                skip(IFNE, addr);
+                return false;
+            case DecodedEngine.SKNP:
+                loadKey(x);
+                skip(IFEQ, addr);
+                return false;
+            case DecodedEngine.LD_NN:
+                storeV(x, () -> code.push(arg));
+                return false;
+            case DecodedEngine.ADD_NN:
+                storeV(x, () -> { loadV(x); code.push(arg); code.op(IADD, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.LD_XY:
+                storeV(x, () -> loadV(y));
+                return false;
+            case DecodedEngine.OR:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IOR, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.AND:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IAND, -1); });
+                return false;
+            case DecodedEngine.XOR:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IXOR, -1); });
+                return false;
+            case DecodedEngine.OR_VF:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IOR, -1); mask(0xFF); });
+                storeV(0xF, () -> code.push(0));
+                return false;
+            case DecodedEngine.AND_VF:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IAND, -1); });
+                storeV(0xF, () -> code.push(0));
+                return false;
+            case DecodedEngine.XOR_VF:
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IXOR, -1); });
+                storeV(0xF, () -> code.push(0));
+                return false;
+            case DecodedEngine.ADD_XY:
+                // VF first, then VX re-reads the registers, same order as Chip.run()
+                storeV(0xF, () -> { loadV(x); loadV(y); code.op(IADD, -1); code.push(8); code.op(ISHR, -1); });
+                storeV(x, () -> { loadV(x); loadV(y); code.op(IADD, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.SUB:
+                // VF = 1 unless VX - VY is negative
+                storeV(0xF, () -> { code.push(1); loadV(x); loadV(y); code.op(ISUB, -1); signBit(); code.op(ISUB, -1); });
+                storeV(x, () -> { loadV(x); loadV(y); code.op(ISUB, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.SHR:
+                // y is the register being shifted, VX or VY depending on the quirks
+                storeV(0xF, () -> { loadV(y); mask(0x1); });
+                storeV(x, () -> { loadV(y); code.push(1); code.op(ISHR, -1); });
+                return false;
+            case DecodedEngine.SUBN:
+                // VF = 1 unless VY - VX is negative
+                storeV(0xF, () -> { code.push(1); loadV(y); loadV(x); code.op(ISUB, -1); signBit(); code.op(ISUB, -1); });
+                storeV(x, () -> { loadV(y); loadV(x); code.op(ISUB, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.SHL:
+                storeV(0xF, () -> { loadV(y); code.push(7); code.op(ISHR, -1); });
+                storeV(x, () -> { loadV(y); code.push(1); code.op(ISHL, -1); mask(0xFF); });
+                return false;
+            case DecodedEngine.LD_I:
+                code.op(ALOAD_1, 1);
+                code.push(arg);
+                putField("I", "C");
+                return false;
+            case DecodedEngine.JP_V0:
+                code.op(ALOAD_1, 1);
+                code.push(arg);
+                // V0, or VX with the jump quirk
+                loadV(x);
+                mask(0xFF);
+                code.op(IADD, -1);
+                code.op(I2C, 0);
+                putField("pc", "C");
+                leave();
+                return true;
+            case DecodedEngine.RND:
+                storeV(x, () -> {
+                    code.op(ALOAD_1, 1);
+                    getField("random", "Lchip/Rng;");
+                    code.invoke(INVOKEVIRTUAL, pool.methodRef("chip/Rng", "nextByte", "()I"), 0);
+                    code.push(arg);
+                    code.op(IAND, -1);
+                });
+                return false;
+            case DecodedEngine.DRW:
+                code.op(ALOAD_1, 1);
+                loadV(x);
+                loadV(y);
+                code.push(arg);
+                invokeChip("draw", "(III)V", 3, false);
+                return false;
+            case DecodedEngine.LD_X_DT:
+                storeV(x, () -> { code.op(ALOAD_1, 1); getField("delay_timer", "I"); });
+                return false;
+            case DecodedEngine.LD_X_K:
+                // waitForKey only moves pc on when a key is down
+                setPc(addr);
+                code.op(ALOAD_1, 1);
+                code.push(x);
+                invokeChip("waitForKey", "(I)V", 1, false);
+                leave();
+                return true;
+            case DecodedEngine.LD_DT_X:
+                code.op(ALOAD_1, 1);
+                loadV(x);
+                putField("delay_timer", "I");
+                return false;
+            case DecodedEngine.LD_ST_X:
+                code.op(ALOAD_1, 1);
+                loadV(x);
+                putField("sound_timer", "I");
+                return false;
+            case DecodedEngine.ADD_I:
+                code.op(ALOAD_1, 1);
+                code.op(ALOAD_1, 1);
+                getField("I", "C");
+                loadV(x);
+                code.op(IADD, -1);
+                code.op(I2C, 0);
+                putField("I", "C");
+                return false;
+            case DecodedEngine.LD_F:
+                // each character takes up 5 bytes
+                code.op(ALOAD_1, 1);
+                code.push(0x050);
+                loadV(x);
+                code.push(5);
+                code.op(IMUL, -1);
+                code.op(IADD, -1);
+                code.op(I2C, 0);
+                putField("I", "C");
+                return false;
+            case DecodedEngine.BCD:
+                // memory writes may hit this very block, so it ends here
+                code.op(ALOAD_1, 1);
+                loadV(x);
+                invokeChip("storeBCD", "(I)V", 1, false);
+                exitTo(addr + 2);
+                return true;
+            case DecodedEngine.STORE:
+                code.op(ALOAD_1, 1);
+                code.push(x);
+                invokeChip("storeRegisters", "(I)V", 1, false);
+                exitTo(addr + 2);
+                return true;
+            case DecodedEngine.LOAD:
+                code.op(ALOAD_1, 1);
+                code.push(x);
+                invokeChip("loadRegisters", "(I)V", 1, false);
+                return false;
+            default:
+                throw new IllegalStateException("No translation for handler " + handler);
+        }
+    }
+
+    //jumps over the next instruction when the branch on what is on the stack is taken
+    private void skip(int branch, int addr) {
+        code.branch(branch, entry(addr + 4), branch == IFEQ || branch == IFNE ? -1 : -2);
+    }
+
+    private void signBit() {
+        code.push(31);
+        code.op(IUSHR, -1);
+    }
+
+    private void mask(int mask) {
+        code.push(mask);
+        code.op(IAND, -1);
+    }
+
+    private void loadV(int x) {
+        code.op(ALOAD_3, 1);
+        code.push(x);
+        code.op(CALOAD, -1);
+    }
+
+    private void storeV(int x, Runnable value) {
+        code.op(ALOAD_3, 1);
+        code.push(x);
+        value.run();
+        code.op(CASTORE, -3);
+    }
+
+    //pushes 1 if the key in VX is held down, 0 otherwise
+    private void loadKey(int x) {
+        code.op(ALOAD_1, 1);
+        getField("keys", "I");
+        loadV(x);
+        code.op(ISHR, -1);
+        mask(0x1);
+    }
+
+    private void setPc(int pc) {
+        code.op(ALOAD_1, 1);
+        code.push(pc & 0xFFFF);
+        putField("pc", "C");
+    }
+
+    //returns the number of instructions run, pc has been written
+    private void leave() {
+        code.local(ILOAD, COUNT_LOCAL, 1);
+        code.op(IRETURN, -1);
+    }
+
+    private void exitTo(int pc) {
+        setPc(pc);
+        leave();
+    }
+
+    private void getField(String name, String type) {
+        code.fieldOp(GETFIELD, pool.fieldRef(CHIP, name, type), 0);
+    }
+
+    private void putField(String name, String type) {
+        code.fieldOp(PUTFIELD, pool.fieldRef(CHIP, name, type), -2);
+    }
+
+    private void invokeChip(String name, String desc, int args, boolean returnsValue) {
+        code.invoke(INVOKEVIRTUAL, pool.methodRef(CHIP, name, desc), -(args + 1) + (returnsValue ? 1 : 0));
+    }
+
+    private byte[] assemble() {
+        int thisClass = pool.classRef("chip/JitBlock");
+        int superClass = pool.classRef("java/lang/Object");
+        int blockInterface = pool.classRef(BLOCK_INTERFACE);
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runDesc = pool.utf8("(L" + CHIP + ";I)I");
+        int codeName = pool.utf8("Code");
+        int stackMapName = pool.utf8("StackMapTable");
+        // every branch target sees the same locals and an empty stack
+        int[] frameLocals = { thisClass, pool.classRef(CHIP), 0, pool.classRef("[C"), 0 };
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            // Java 17 class file
+            out.writeShort(61);
+            pool.write(out);
+            // ACC_FINAL | ACC_SUPER
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(blockInterface);
+            // no fields
+            out.writeShort(0);
+            out.writeShort(2);
+
+            // public <init>() { super(); }
+            Code init = new Code();
+            init.op(ALOAD_0, 1);
+            init.invoke(INVOKESPECIAL, objectInit, -1);
+            init.op(RETURN, 0);
+            writeMethod(out, initName, initDesc, codeName, init, 1, stackMapName, frameLocals);
+
+            // public int run(Chip chip, int budget)
+            writeMethod(out, runName, runDesc, codeName, code, 5, stackMapName, frameLocals);
+
+            // no class attributes
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeName, Code code, int maxLocals,
+            int stackMapName, int[] frameLocals) throws IOException {
+        // ACC_PUBLIC
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        byte[] body = code.toByteArray();
+        // a full_frame per branch target: type, offset delta, locals, empty stack
+        int frameSize = 1 + 2 + 2 + 2;
+        for(int classRef : frameLocals) {
+            frameSize += classRef == 0 ? 1 : 3;
+        }
+        int stackMapSize = code.frames.isEmpty() ? 0 : 2 + 4 + 2 + code.frames.size() * frameSize;
+        out.writeInt(2 + 2 + 4 + body.length + 2 + 2 + stackMapSize);
+        out.writeShort(code.maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        // no exception table
+        out.writeShort(0);
+        if(code.frames.isEmpty()) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(1);
+        out.writeShort(stackMapName);
+        out.writeInt(stackMapSize - 6);
+        out.writeShort(code.frames.size());
+        int previous = -1;
+        for(int offset : code.frames) {
+            out.writeByte(255);
+            out.writeShort(offset - previous - 1);
+            previous = offset;
+            out.writeShort(frameLocals.length);
+            for(int classRef : frameLocals) {
+                if(classRef == 0) {
+                    // ITEM_Integer
+                    out.writeByte(1);
+                } else {
+                    // ITEM_Object
+                    out.writeByte(7);
+                    out.writeShort(classRef);
+                }
+            }
+            out.writeShort(0);
+        }
+    }
+
+    //a position in the code, offset is -1 until it is bound
+    private static final class Label {
+        int offset = -1;
+        //offsets of the branch instructions that jump here
+        final List<Integer> sites = new ArrayList<>();
+    }
+
+    //bytecode buffer that keeps track of the operand stack depth and the branch targets
+    private static final class Code {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final List<Label> labels = new ArrayList<>();
+        //offsets that need a StackMapTable frame
+        final TreeSet<Integer> frames = new TreeSet<>();
+        int stack;
+        int maxStack;
+
+        void op(int opcode, int stackChange) {
+            bytes.write(opcode);
+            adjust(stackChange);
+        }
+
+        //ILOAD or ISTORE of a numbered local
+        void local(int opcode, int index, int stackChange) {
+            op(opcode, stackChange);
+            bytes.write(index);
+        }
+
+        void iinc(int index, int amount) {
+            op(IINC, 0);
+            bytes.write(index);
+            bytes.write(amount);
+        }
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void bind(Label label) {
+            label.offset = bytes.size();
+            frames.add(label.offset);
+        }
+
+        void branch(int opcode, Label target, int stackChange) {
+            target.sites.add(bytes.size());
+            op(opcode, stackChange);
+            bytes.write(0);
+            bytes.write(0);
+        }
+
+        //the code with every branch pointing at its label
+        byte[] toByteArray() {
+            byte[] body = bytes.toByteArray();
+            for(Label label : labels) {
+                for(int site : label.sites) {
+                    int delta = label.offset - site;
+                    body[site + 1] = (byte)(delta >> 8);
+                    body[site + 2] = (byte)delta;
+                }
+            }
+            return body;
+        }
+
+        void push(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                bytes.write(value);
+            } else {
+                op(SIPUSH, 1);
+                bytes.write(value >> 8);
+                bytes.write(value);
+            }
+        }
+
+        void fieldOp(int opcode, int ref, int stackChange) {
+            op(opcode, stackChange);
+            bytes.write(ref >> 8);
+            bytes.write(ref);
+        }
+
+        void invoke(int opcode, int ref, int stackChange) {
+            fieldOp(opcode, ref, stackChange);
+        }
+
+        private void adjust(int change) {
+            stack += change;
+            maxStack = Math.max(maxStack, stack);
+        }
+    }
+
+    //constant pool with deduplicated entries
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, () -> { out.writeByte(1); out.writeUTF(value); });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, () -> { out.writeByte(7); out.writeShort(nameIndex); });
+        }
+
+        int fieldRef(String owner, String name, String type) {
+            return memberRef(9, owner, name, type);
+        }
+
+        int methodRef(String owner, String name, String type) {
+            return memberRef(10, owner, name, type);
+        }
+
+        private int memberRef(int tag, String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = entry("N" + name + ":" + type, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return entry(tag + owner + "." + name + ":" + type, () -> {
+                out.writeByte(tag);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+
+        private int entry(String key, Writer writer) {
+            Integer index = entries.get(key);
+            if(index != null) {
+                return index;
+            }
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            entries.put(key, next);
+            return next++;
+        }
+    }
+}
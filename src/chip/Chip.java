@@ -1,40 +1,103 @@
 package chip;
 
 import java.io.*;
-import java.util.Random;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class Chip {
+    //machine state is package private so the execution engines in this package can work on it directly
+
     //memory represented by a char array
     //each char starts with 0x00, then its byte of data
-    private char[] memory;
+    char[] memory;
     //registers
-    private char[] V;
+    char[] V;
     //address pointer
     //12 out of 16 bits will be used
-    private char I;
+    char I;
     // program counter
-    private char pc;
+    char pc;
 
     //stack and stack pointer
-    private char stack[];
-    private char stackPointer;
+    char stack[];
+    char stackPointer;
 
     // tick at 60hz
-    private int delay_timer;
-    private int sound_timer;
+    int delay_timer;
+    int sound_timer;
+
+    //keys that are held down, bit n for key n
+    int keys;
+
+    //display size of the original machine, see getWidth() / getHeight() for the current one
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+
+    //variant being emulated, fixes memory and display size at init()
+    Machine machine = Machine.CHIP8;
 
-    //keys that can be inputted
-    private byte[] keys;
+    //one bit per pixel (0 = black, 1 = white), words longs per row and height rows per bitplane,
+    //planes stored one after the other. The leftmost pixel is the most significant bit of a row's
+    //first word, so on the 64 pixel wide display a sprite row is a rotate and an XOR
+    long[] rows;
+    private int width;
+    private int height;
+    private int words;
 
-    // 0 = black, 1 = white
+    //SUPER-CHIP and XO-CHIP state: 128x64 mode, bitplanes DXYN and scrolling work on, RPL flags
+    boolean hires;
+    int planeMask;
+    char[] flags;
+
+    //memory is tracked in pages for copy on write snapshots
+    public static final int PAGE_SIZE = 256;
+    //bit n set when page n was written since the last takeDirtyPages()
+    private long[] dirtyPages;
+
+    //one byte per pixel copy of rows for getDisplay(), only rebuilt when asked for after a change
     private byte[] display;
+    private boolean displayStale;
 
     // do we need to redraw the screen
-    private boolean needRedraw;
+    boolean needRedraw;
+
+    //source for CXNN, part of the machine state so runs can be replayed
+    Rng random;
+
+    //optional per instruction listener, null unless debugging
+    TraceListener tracer;
+    //set by a Debugger only while it has something armed, null otherwise
+    volatile Debugger debugger;
+    //optional counters, null unless profiling
+    private Profiler profiler;
+    //skips the rest of a frame spent in a wait loop, null when off
+    private IdleDetector idle;
+
+    //interpreter differences, null until set or until init() takes the machine's profile
+    private Quirks quirks;
+    private Quirks bound;
+    //the profile bound into plain values by bindQuirks(), so run() has no quirk branches:
+    //8XY6/8XYE read the register at (opcode >> shiftSource) & 0xF, 8 for VX and 4 for VY
+    int shiftSource;
+    //FX55/FX65 add (X + indexBase) & indexMask to I, a mask of 0 leaves I alone
+    int indexBase;
+    int indexMask;
+    //BNNN adds the register at (opcode >> 8) & jumpMask, 0 for V0 and 0xF for VX
+    int jumpMask;
+    //8XY1/8XY2/8XY3 leave VF & logicFlagMask, 0 resets it
+    int logicFlagMask;
+    boolean clipSprites;
+
+    //executes instructions for execute(), run() below is the reference the engines are checked against
+    private Engine engine;
+    private EngineType engineType = EngineType.SWITCH;
+    //what is known about the loaded program, handed to every engine created for it
+    private ProgramAnalysis analysis;
 
     public void init() {
-        //4 kB of memory
-        memory = new char[4096];
+        //4 kB of memory, 64 kB on XO-CHIP
+        memory = new char[machine.memorySize];
         //16 registers
         V = new char[16];
         I = 0x0;
@@ -48,18 +111,146 @@ public class Chip {
         sound_timer = 0;
 
         // 16 different keys
-        keys = new byte[16];
-        // 64 x 32
-        display = new byte[64 * 32];
+        keys = 0;
+        // 64 x 32, or 128 x 64 on the extended machines
+        width = machine.width;
+        height = machine.height;
+        words = width / 64;
+        rows = new long[words * height * machine.planes];
+        display = new byte[width * height];
+        displayStale = false;
+        hires = false;
+        planeMask = 1;
+        flags = new char[16];
         needRedraw = false;
+        random = new Rng(System.nanoTime());
+        dirtyPages = new long[(memory.length / PAGE_SIZE + 63) / 64];
+        if(profiler != null) {
+            profiler.attach(memory.length);
+        }
+        bindQuirks(quirks != null ? quirks : machine.quirks);
+        // engines size their caches by memory and decode with the bound quirks
+        engine = engineType.create(this);
+        analysis = null;
+        memoryWritten(0, memory.length - 1);
         loadFontset();
     }
 
+    public void setEngine(EngineType type) {
+        engineType = type;
+        // before init() there is no memory yet, init() creates it
+        if(memory != null) {
+            engine = type.create(this);
+            prepareEngine();
+        }
+    }
+
+    /**
+     * Lets the engines decode or compile the code the analysis found before it runs, after loadProgram().
+     * Only saves work: what runs is always decoded from memory, so a stale analysis costs time, not correctness
+     */
+    public void setAnalysis(ProgramAnalysis analysis) {
+        this.analysis = analysis;
+        prepareEngine();
+    }
+
+    private void prepareEngine() {
+        if(analysis != null && memory != null) {
+            engine.prepare(analysis);
+        }
+    }
+
+    /**
+     * Picks the interpreter behaviour, null for the machine's default. After init() it applies
+     * at once and the engines decode everything again
+     */
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+        if(memory != null) {
+            bindQuirks(quirks != null ? quirks : machine.quirks);
+            engine = engineType.create(this);
+            prepareEngine();
+        }
+    }
+
+    //the profile in effect, the machine's default until setQuirks()
+    public Quirks getQuirks() {
+        return bound;
+    }
+
+    private void bindQuirks(Quirks quirks) {
+        bound = quirks;
+        shiftSource = quirks.shiftVy ? 4 : 8;
+        indexBase = Math.max(quirks.indexStep, 0);
+        indexMask = quirks.indexStep < 0 ? 0 : 0xFFFF;
+        jumpMask = quirks.jumpVx ? 0xF : 0;
+        logicFlagMask = quirks.resetVf ? 0 : 0xFF;
+        clipSprites = quirks.clipSprites;
+    }
+
+    //picks the variant to emulate, takes effect at the next init()
+    public void setMachine(Machine machine) {
+        this.machine = machine;
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Runs the given number of instructions on the selected engine and returns how many ran.
+     * Tracing, detailed profiling and an armed Debugger always go through the reference interpreter
+     * so every instruction is seen
+     */
+    public int execute(int cycles) {
+        Profiler profiler = activeProfiler();
+        Debugger debugger = this.debugger;
+        if(debugger != null) {
+            // one instruction at a time until the debugger has nothing armed any more
+            int ran = debugger.execute(cycles);
+            if(profiler != null) {
+                profiler.instructions(ran);
+            }
+            return ran;
+        }
+        if(profiler != null && profiler.isDetailed()) {
+            // the histograms need every instruction, same as tracing
+            for(int i = 0; i < cycles; i++) {
+                profiler.instruction(pc, (memory[pc] << 8) | memory[pc + 1]);
+                run();
+                profiler.instructions(1);
+            }
+            return cycles;
+        }
+        int ran;
+        if(tracer != null) {
+            for(int i = 0; i < cycles; i++) {
+                run();
+            }
+            ran = cycles;
+        } else {
+            ran = idle != null ? idle.skip(cycles) : 0;
+            if(ran < cycles) {
+                ran += engine.execute(cycles - ran);
+            }
+        }
+        if(profiler != null) {
+            profiler.instructions(ran);
+        }
+        return ran;
+    }
+
     public void run() {
         //fetch operation code ("Opcode")
         //left shift to get upper byte, then combine with an or
         char opcode = (char) ((memory[pc] << 8) | memory[pc + 1]);
-        System.out.println(Integer.toHexString(opcode));
+        if (tracer != null) {
+            tracer.trace(pc, opcode, V, I);
+        }
         //decode Opcode
         // a bunch of cases for each possible opcode
         //first 4 bits indicate type of operation, rest are arguements
@@ -68,11 +259,8 @@ public class Chip {
             case 0x0000: {//multiple cases
                 switch(opcode & 0x00FF) {
                     case 0x00E0: {//clear screen
-                        for(int i = 0; i < display.length; i++) {
-                            display[i] = 0;
-                        }
+                        clearScreen();
                         pc += 2;
-                        needRedraw = true;
                         break;
                     }
 
@@ -83,9 +271,9 @@ public class Chip {
                     }
 
                     default: {//0NNN: Calls RCA 1802 Program at address NNN
-                        System.err.println("00__: Unsupported Opcode!");
-                        System.exit(0);
-                        break;
+                        if(machine == Machine.CHIP8 || !runExtended(opcode)) {
+                            throw new UnsupportedOpcodeException(opcode, pc);
+                        }
                     }
                 }
                 break;
@@ -113,7 +301,7 @@ public class Chip {
                 int nn = (opcode & 0x00FF);
                 // jump ahead 4 bytes if V[X] == NN, 2 otherwise
                 if (V[x] == nn) {
-                    pc += 4;
+                    pc += 2 + nextLength();
                 } else {
                     pc += 2;
                 }
@@ -125,7 +313,7 @@ public class Chip {
                 int nn = (opcode & 0x00FF);
                 // jump ahead 4 bytes if V[X] != NN, 2 otherwise
                 if (V[x] != nn) {
-                    pc += 4;
+                    pc += 2 + nextLength();
                 } else {
                     pc += 2;
                 }
@@ -133,11 +321,17 @@ public class Chip {
             }
 
             case 0x5000: {//5XY0: Skips the next instruction if V[X] equals V[Y]
+                if(machine == Machine.XOCHIP && (opcode & 0x000F) != 0) {
+                    if(!runExtended(opcode)) {
+                        throw new UnsupportedOpcodeException(opcode, pc);
+                    }
+                    break;
+                }
                 int x = (opcode & 0x0F00) >> 8;
                 int y = (opcode & 0x00F0) >> 4;
                 // jump ahead 4 bytes if V[X] == V[Y], 2 otherwise
-                if (V[x] != V[y]) {
-                    pc += 4;
+                if (V[x] == V[y]) {
+                    pc += 2 + nextLength();
                 } else {
                     pc += 2;
                 }
@@ -167,7 +361,6 @@ public class Chip {
                     case 0x0000: { //8XY0: Sets VX to the value of VY
                         int x = (opcode & 0x0F00) >> 8;
                         int y = (opcode & 0x00F0) >> 4;
-                        System.out.println("Setting V[" + x + "] to " + (int)V[y]);
                         V[x] = V[y];
                         pc += 2;
                         break;
@@ -176,8 +369,8 @@ public class Chip {
                     case 0x0001: { //8XY1 Sets VX to VX or VY.
                         int x = (opcode & 0x0F00) >> 8;
                         int y = (opcode & 0x00F0) >> 4;
-                        System.out.println("Setting V[" + x + "] = V[" + x + "] | V[" + y + "]");
                         V[x] = (char)((V[x] | V[y]) & 0xFF);
+                        V[0xF] = (char)(V[0xF] & logicFlagMask);
                         pc += 2;
                         break;
                     }
@@ -185,8 +378,17 @@ public class Chip {
                     case 0x0002: { //8XY2: Sets VX to VX & VY
                         int x = (opcode & 0x0F00) >> 8;
                         int y = (opcode & 0x00F0) >> 4;
-                        System.out.println("Set V[" + x + "] to V[" + x + "] = " + (int)V[x] + " & V[" + y + "] = " + (int)V[y] + " = " + (int)(V[x] & V[y]));
                         V[x] = (char)(V[x] & V[y]);
+                        V[0xF] = (char)(V[0xF] & logicFlagMask);
+                        pc += 2;
+                        break;
+                    }
+
+                    case 0x0003: { //8XY3: Sets VX to VX xor VY
+                        int x = (opcode & 0x0F00) >> 8;
+                        int y = (opcode & 0x00F0) >> 4;
+                        V[x] = (char)(V[x] ^ V[y]);
+                        V[0xF] = (char)(V[0xF] & logicFlagMask);
                         pc += 2;
                         break;
                     }
@@ -194,13 +396,10 @@ public class Chip {
                     case 0x0004: { //Adds VY to VX. VF is set to 1 when carry applies else to 0
                         int x = (opcode & 0x0F00) >> 8;
                         int y = (opcode & 0x00F0) >> 4;
-                        System.out.print("Adding V[" + x + "] (" + (int)V[x]  + ") to V[" + y + "] (" + (int)V[y]  + ") = " + ((V[x] + V[y]) & 0xFF) + ", ");
                         if(V[y] > 0xFF - V[x]) {
                             V[0xF] = 1;
-                            System.out.println("Carry!");
                         } else {
                             V[0xF] = 0;
-                            System.out.println("No Carry");
                         }
                         V[x] = (char)((V[x] + V[y]) & 0xFF);
                         pc += 2;
@@ -210,25 +409,22 @@ public class Chip {
                     case 0x0005: { //VY is subtracted from VX. VF is set to 0 when there is a borrow else 1
                         int x = (opcode & 0x0F00) >> 8;
                         int y = (opcode & 0x00F0) >> 4;
-                        System.out.print("V[" + x + "] = " + (int)V[x] + " V[" + y + "] = " + (int)V[y] + ", ");
-                        if(V[x] > V[y]) {
+                        if(V[x] >= V[y]) {
                             V[0xF] = 1;
-                            System.out.println("No Borrow");
                         } else {
                             V[0xF] = 0;
-                            System.out.println("Borrow");
                         }
                         V[x] = (char)((V[x] - V[y]) & 0xFF);
                         pc += 2;
                         break;
                     }
 
-                    case 0x0006: { //8XY6: Shift VX right by one, VF is set to the least significant bit of VX
+                    case 0x0006: { //8XY6: Shift VX (or VY) right by one into VX, VF is set to the least significant bit
                         int x = (opcode & 0x0F00) >> 8;
-                        V[0xF] = (char)(V[x] & 0x1);
-                        V[x] = (char)(V[x] >> 1);
+                        int source = (opcode >> shiftSource) & 0xF;
+                        V[0xF] = (char)(V[source] & 0x1);
+                        V[x] = (char)(V[source] >> 1);
                         pc += 2;
-                        System.out.println("Shift V[ " + x + "] >> 1 and VF to LSB of VX");
                         break;
                     }
 
@@ -242,7 +438,6 @@ public class Chip {
                             V[0xF] = 1;
 
                         V[x] = (char)((V[y] - V[x]) & 0xFF);
-                        System.out.println("V[" + x + "] = V[" + y + "] - V[" + x + "], Applies Borrow if needed");
 
                         pc += 2;
                         break;
@@ -250,17 +445,15 @@ public class Chip {
 
                     case 0x000E: { //8XYE Shifts VX left by one. VF is set to the value of the most significant bit of VX before the shift.
                         int x = (opcode & 0x0F00) >> 8;
-                        V[0xF] = (char)(V[x] & 0x80);
-                        V[x] = (char)(V[x] << 1);
+                        int source = (opcode >> shiftSource) & 0xF;
+                        V[0xF] = (char)(V[source] >> 7);
+                        V[x] = (char)((V[source] << 1) & 0xFF);
                         pc += 2;
-                        System.out.println("Shift V[ " + x + "] << 1 and VF to MSB of VX");
                         break;
                     }
 
                     default:
-                        System.err.println("Unsupported Opcode!");
-                        System.exit(0);
-                        break;
+                        throw new UnsupportedOpcodeException(opcode, pc);
                 }
                 break;
             }
@@ -269,10 +462,8 @@ public class Chip {
                 int x = (opcode & 0x0F00) >> 8;
                 int y = (opcode & 0x00F0) >> 4;
                 if(V[x] != V[y]) {
-                    System.out.println("Skipping next instruction V[" + x + "] != V[" + y + "]");
-                    pc += 4;
+                    pc += 2 + nextLength();
                 } else {
-                    System.out.println("Skipping next instruction V[" + x + "] !/= V[" + y + "]");
                     pc += 2;
                 }
                 break;
@@ -284,9 +475,9 @@ public class Chip {
                 break;
             }
 
-            case 0xB000: { //BNNN Jumps to the address NNN plus V0.
+            case 0xB000: { //BNNN Jumps to the address NNN plus V0 (or VX).
                 int nnn = opcode & 0x0FFF;
-                int extra = V[0] & 0xFF;
+                int extra = V[(opcode >> 8) & jumpMask] & 0xFF;
                 pc = (char)(nnn + extra);
                 break;
             }
@@ -294,46 +485,18 @@ public class Chip {
             case 0xC000: { //CXNN: Set V[X] to random number & NN
                 int x = (opcode & 0x0F00) >> 8;
                 int nn = (opcode & 0x00FF);
-                int randomNumber = new Random().nextInt(256) & nn;
-                System.out.println("V[" + x + "] has been set to (randomised) " + randomNumber);
+                int randomNumber = random.nextByte() & nn;
                 V[x] = (char)randomNumber;
                 pc += 2;
                 break;
             }
 
             case 0xD000: {//DXYN: Draw a sprite at coordinate (V[X], V[Y]), with height 8, and width N. Sprite is located at I
-                //draw by XOR'ing display array
-                //Check Collision Flag register V[0xF] and update
                 int x = V[(opcode & 0x0F00) >> 8];
                 int y = V[(opcode & 0x00F0) >> 4];
                 int height = opcode & 0x000F;
-
-                V[0xF] = 0;
-
-                for(int _y = 0; _y < height; _y++) {
-                    //move to different line in memory for each pixel of height
-                    int line = memory[I + _y];
-                    for(int _x = 0; _x < 8; _x++) {
-                        //grab pixel located in x'th position
-                        int pixel = line & (0x80 >> _x);
-                        // if there are any pixels to set
-                        if(pixel != 0) {
-                            // calculate pixel coordinate for display array
-                            int totalX = (x + _x) % 64;
-                            int totalY = (y + _y) % 32;
-                            int index = (totalY * 64) + totalX;
-
-                            //if pixel at location is already 1, set collision flag to 1
-                            if(display[index] == 1) {
-                                V[0xF] = 1;
-                            }
-                            //use XOR to set pixel
-                            display[index] ^= 1;
-                        }
-                    }
-                }
+                draw(x, y, height);
                 pc += 2;
-                needRedraw = true;
                 break;
             }
 
@@ -342,8 +505,8 @@ public class Chip {
                     case 0x009E: { //EX9E Skip the next instruction if the Key VX is pressed
                         int x = (opcode & 0x0F00) >> 8;
                         int key = V[x];
-                        if(keys[key] == 1) {
-                            pc += 4;
+                        if(((keys >> key) & 1) == 1) {
+                            pc += 2 + nextLength();
                         } else {
                             pc += 2;
                         }
@@ -353,8 +516,8 @@ public class Chip {
                     case 0x00A1: { //EXA1 Skip the next instruction if the Key VX is NOT pressed
                         int x = (opcode & 0x0F00) >> 8;
                         int key = V[x];
-                        if(keys[key] == 0) {
-                            pc += 4;
+                        if(((keys >> key) & 1) == 0) {
+                            pc += 2 + nextLength();
                         } else {
                             pc += 2;
                         }
@@ -362,9 +525,7 @@ public class Chip {
                     }
 
                     default:
-                        System.err.println("Unexisting opcode");
-                        System.exit(0);
-                        return;
+                        throw new UnsupportedOpcodeException(opcode, pc);
                 }
                 break;
             }
@@ -376,18 +537,12 @@ public class Chip {
                         int x = (opcode & 0x0F00) >> 8;
                         V[x] = (char)delay_timer;
                         pc += 2;
+                        break;
                     }
 
                     case 0x000A: { //FX0A A key press is awaited, and then stored in VX.
                         int x = (opcode & 0x0F00) >> 8;
-                        for(int i = 0; i < keys.length; i++) {
-                            if(keys[i] == 1) {
-                                V[x] = (char)i;
-                                pc += 2;
-                                break;
-                            }
-                        }
-                        System.out.println("Awaiting key press to be stored in V[" + x + "]");
+                        waitForKey(x);
                         break;
                     }
 
@@ -395,6 +550,7 @@ public class Chip {
                         int x = (opcode & 0x0F00) >> 8;
                         delay_timer = V[x];
                         pc += 2;
+                        break;
                     }
 
                     case 0x0018: { //FX18: Set the sound timer to V[x]
@@ -407,7 +563,6 @@ public class Chip {
                     case 0x001E: { //FX1E: Adds VX to I
                         int x = (opcode & 0x0F00) >> 8;
                         I = (char)(I + V[x]);
-                        System.out.println("Adding V[" + x + "] = " + (int)V[x] + " to I");
                         pc += 2;
                         break;
                     }
@@ -423,63 +578,534 @@ public class Chip {
 
                     case 0x0033: {//FX33 Store the binary-coded decimal value at V[X] with hundreds place at I, tens place at I + 1, and  ones place at I + 2
                         int x = (opcode & 0x0F00) >> 8;
-                        int value = V[x];
-                        int hundreds = (value - (value % 100)) / 100;
-                        value -= hundreds * 100;
-                        int tens = (value - (value % 10))/ 10;
-                        value -= tens * 10;
-                        memory[I] = (char)hundreds;
-                        memory[I + 1] = (char)tens;
-                        memory[I + 2] = (char)value;
+                        storeBCD(V[x]);
                         pc += 2;
                         break;
                     }
 
                     case 0x0055: { //FX55 Stores V0 to VX in memory starting at address I.
                         int x = (opcode & 0x0F00) >> 8;
-                        for(int i = 0; i <= x; i++) {
-                            memory[I + i] = V[i];
-                        }
-                        System.out.println("Setting Memory[" + Integer.toHexString(I & 0xFFFF).toUpperCase() + " + n] = V[0] to V[x]");
+                        storeRegisters(x);
                         pc += 2;
                         break;
                     }
 
                     case 0x0065: {//FX65 Fills V0 to VX with values starting from I
                         int x = (opcode & 0x0F00) >> 8;
-                        for(int i = 0; i <= x; i++) {
-                            V[i] = memory[I + i];
-                        }
-                        // increment memory pointer
-                        I = (char)(I + x + 1);
+                        loadRegisters(x);
                         pc += 2;
                         break;
                     }
 
                     default: {
-                        System.err.println("F___: Unsupported Opcode!");
-                        System.exit(0);
+                        if(machine == Machine.CHIP8 || !runExtended(opcode)) {
+                            throw new UnsupportedOpcodeException(opcode, pc);
+                        }
                     }
                 }
                 break;
             }
             default: {
-                System.err.println("Unsupported Opcode!");
-                System.exit(0);
+                throw new UnsupportedOpcodeException(opcode, pc);
             }
         }
+    }
+
+    //instructions shared by all engines, none of them touch pc
+
+    void clearScreen() {
+        if(planeMask == 1) {
+            Arrays.fill(rows, 0, words * height, 0L);
+        } else {
+            for(int plane = 0; plane < machine.planes; plane++) {
+                if((planeMask & (1 << plane)) != 0) {
+                    Arrays.fill(rows, plane * words * height, (plane + 1) * words * height, 0L);
+                }
+            }
+        }
+        displayChanged();
+    }
+
+    private void displayChanged() {
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //DXYN: Draw a sprite at coordinate (x, y), with width 8 and the given height. Sprite is located at I
+    void draw(int x, int y, int height) {
+        if(words != 1) {
+            drawWide(x, y, height);
+            return;
+        }
+        //draw by XOR'ing each sprite row into its display row
+        //Check Collision Flag register V[0xF] and update
+        int collision = 0;
+        int lines = height;
+        long keep = -1L;
+        if(clipSprites) {
+            x &= WIDTH - 1;
+            y &= HEIGHT - 1;
+            lines = Math.min(height, HEIGHT - y);
+            //pixels rotated past the right edge are masked off
+            keep = -1L >>> x;
+        }
+
+        for(int _y = 0; _y < lines; _y++) {
+            //sprite byte at the top of the word, rotated to column x, wrapping around the right edge
+            long line = Long.rotateRight((long)(memory[I + _y] & 0xFF) << 56, x) & keep;
+            int row = (y + _y) & (HEIGHT - 1);
+            //any pixel already set under the sprite is a collision
+            if((rows[row] & line) != 0) {
+                collision = 1;
+            }
+            rows[row] ^= line;
+        }
+        Profiler profiler = activeProfiler();
+        if(profiler != null) {
+            int pixels = 0;
+            for(int _y = 0; _y < height; _y++) {
+                pixels += Integer.bitCount(memory[I + _y] & 0xFF);
+            }
+            profiler.draw(pixels);
+        }
+        V[0xF] = (char)collision;
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //lores sprite bytes with every pixel doubled, for drawing 64x32 mode on the 128x64 display
+    private static final int[] DOUBLED = new int[256];
+    static {
+        for(int b = 0; b < 256; b++) {
+            int doubled = 0;
+            for(int bit = 0; bit < 8; bit++) {
+                if((b & (1 << bit)) != 0) {
+                    doubled |= 3 << (bit * 2);
+                }
+            }
+            DOUBLED[b] = doubled;
+        }
+    }
+
+    /**
+     * DXYN on the 128x64 display: each row is two words, a sprite line is shifted across both.
+     * N = 0 draws a 16x16 sprite. In lores mode coordinates and pixels are doubled.
+     * SUPER-CHIP clips at the edges and counts colliding rows in VF in hires mode,
+     * XO-CHIP wraps, draws to every selected plane and sets VF to 1 on any collision
+     */
+    private void drawWide(int vx, int vy, int n) {
+        if(hires && planeMask == 1) {
+            drawHires(vx & (width - 1), vy & (height - 1), n);
+            return;
+        }
+        int scale = hires ? 1 : 2;
+        int x = (vx * scale) & (width - 1);
+        int y = (vy * scale) & (height - 1);
+        int lines = n == 0 ? 16 : n;
+        int bytesPerLine = n == 0 ? 2 : 1;
+        // sprite line width in display pixels
+        int lineWidth = 8 * bytesPerLine * scale;
+        boolean wrap = !clipSprites;
+        int mask = memory.length - 1;
+        int planeSize = words * height;
+
+        int collision = 0;
+        int address = I;
+        for(int plane = 0; plane < machine.planes; plane++) {
+            if((planeMask & (1 << plane)) == 0) {
+                continue;
+            }
+            int base = plane * planeSize;
+            for(int line = 0; line < lines; line++) {
+                int bits = memory[address & mask];
+                if(bytesPerLine == 2) {
+                    bits = (bits << 8) | memory[(address + 1) & mask];
+                }
+                address += bytesPerLine;
+                if(scale == 2) {
+                    bits = bytesPerLine == 2 ? (DOUBLED[bits >> 8] << 16) | DOUBLED[bits & 0xFF] : DOUBLED[bits];
+                }
+                // the line at the top of a 128 bit value, shifted right to column x
+                long sprite = (long)bits << (64 - lineWidth);
+                long left = x < 64 ? sprite >>> x : 0;
+                long right = x == 0 ? 0 : x < 64 ? sprite << (64 - x) : sprite >>> (x - 64);
+                if(wrap && x > 64) {
+                    left |= sprite << (128 - x);
+                }
+                boolean hit = false;
+                for(int k = 0; k < scale; k++) {
+                    int row = y + line * scale + k;
+                    if(row >= height) {
+                        if(!wrap) {
+                            break;
+                        }
+                        row &= height - 1;
+                    }
+                    int at = base + row * 2;
+                    if(((rows[at] & left) | (rows[at + 1] & right)) != 0) {
+                        hit = true;
+                    }
+                    rows[at] ^= left;
+                    rows[at + 1] ^= right;
+                }
+                if(hit) {
+                    collision = hires && machine == Machine.SCHIP ? collision + 1 : 1;
+                }
+            }
+        }
+        Profiler profiler = activeProfiler();
+        if(profiler != null) {
+            profiler.draw(lines * 8 * bytesPerLine);
+        }
+        V[0xF] = (char)collision;
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //drawWide() for the common case of hires on plane 1 only: the word and shift are fixed for the whole sprite
+    private void drawHires(int x, int y, int n) {
+        int lines = n == 0 ? 16 : n;
+        boolean big = n == 0;
+        boolean wrap = !clipSprites;
+        int mask = memory.length - 1;
+        int word = x >>> 6;
+        int shift = x & 63;
+        int collision = 0;
+        int address = I;
+        for(int line = 0; line < lines; line++) {
+            int row = y + line;
+            if(row >= height) {
+                if(!wrap) {
+                    break;
+                }
+                row &= height - 1;
+            }
+            long sprite;
+            if(big) {
+                sprite = (long)((memory[address & mask] << 8) | memory[(address + 1) & mask]) << 48;
+                address += 2;
+            } else {
+                sprite = (long)memory[address & mask] << 56;
+                address++;
+            }
+            int at = row * 2;
+            long first = sprite >>> shift;
+            boolean hit = (rows[at + word] & first) != 0;
+            rows[at + word] ^= first;
+            // what runs past the first word goes to the second, or wraps to the first on XO-CHIP
+            long spill = shift == 0 ? 0 : sprite << (64 - shift);
+            if(spill != 0 && (word == 0 || wrap)) {
+                int second = at + 1 - word;
+                hit |= (rows[second] & spill) != 0;
+                rows[second] ^= spill;
+            }
+            if(hit) {
+                collision = machine == Machine.SCHIP ? collision + 1 : 1;
+            }
+        }
+        Profiler profiler = activeProfiler();
+        if(profiler != null) {
+            profiler.draw(lines * (big ? 16 : 8));
+        }
+        V[0xF] = (char)collision;
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //bytes taken by the instruction after this one, XO-CHIP's F000 NNNN is 4
+    private int nextLength() {
+        return machine == Machine.XOCHIP && memory[pc + 2] == 0xF0 && memory[pc + 3] == 0x00 ? 4 : 2;
+    }
+
+    //SUPER-CHIP and XO-CHIP opcodes, false if the opcode is not one of them
+    private boolean runExtended(int opcode) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        boolean xo = machine == Machine.XOCHIP;
+        if((opcode & 0xFFF0) == 0x00C0) {//00CN: scroll down N rows
+            scrollVertical((opcode & 0xF) * (hires ? 1 : 2));
+        } else if(xo && (opcode & 0xFFF0) == 0x00D0) {//00DN: scroll up N rows
+            scrollVertical(-(opcode & 0xF) * (hires ? 1 : 2));
+        } else if(opcode == 0x00FB) {//scroll right 4 pixels
+            scrollHorizontal(hires ? 4 : 8);
+        } else if(opcode == 0x00FC) {//scroll left 4 pixels
+            scrollHorizontal(hires ? -4 : -8);
+        } else if(opcode == 0x00FD) {//exit, the machine stays on this instruction
+            return true;
+        } else if(opcode == 0x00FE || opcode == 0x00FF) {//lores / hires
+            hires = opcode == 0x00FF;
+            if(xo) {
+                clearScreen();
+            }
+        } else if(xo && (opcode & 0xF00F) == 0x5002) {//5XY2: store VX..VY at I
+            int step = x <= y ? 1 : -1;
+            for(int i = 0, r = x; i <= Math.abs(y - x); i++, r += step) {
+                memory[(I + i) & 0xFFFF] = V[r];
+            }
+            int last = I + Math.abs(y - x);
+            if(last > 0xFFFF) {
+                // the store wrapped around to 0x0000
+                memoryWritten(I, 0xFFFF);
+                memoryWritten(0, last & 0xFFFF);
+            } else {
+                memoryWritten(I, last);
+            }
+        } else if(xo && (opcode & 0xF00F) == 0x5003) {//5XY3: load VX..VY from I
+            int step = x <= y ? 1 : -1;
+            for(int i = 0, r = x; i <= Math.abs(y - x); i++, r += step) {
+                V[r] = memory[(I + i) & 0xFFFF];
+            }
+        } else if(xo && opcode == 0xF000) {//F000 NNNN: I = NNNN
+            I = (char)((memory[pc + 2] << 8) | memory[pc + 3]);
+            pc += 4;
+            return true;
+        } else if(xo && (opcode & 0xF0FF) == 0xF001) {//FN01: select bitplanes
+            planeMask = x & 3;
+        } else if(xo && (opcode == 0xF002 || (opcode & 0xF0FF) == 0xF03A)) {
+            //audio pattern and pitch, the beeper plays its own tone
+        } else if((opcode & 0xF0FF) == 0xF030) {//FX30: I = big font digit VX
+            I = (char)(0xA0 + (V[x] & 0xF) * 10);
+        } else if((opcode & 0xF0FF) == 0xF075 && x < machine.flags) {//FX75: store V0..VX in the RPL flags
+            System.arraycopy(V, 0, flags, 0, x + 1);
+        } else if((opcode & 0xF0FF) == 0xF085 && x < machine.flags) {//FX85: load V0..VX from the RPL flags
+            System.arraycopy(flags, 0, V, 0, x + 1);
+        } else {
+            return false;
+        }
+        pc += 2;
+        return true;
+    }
+
+    //positive moves the selected planes down, negative up
+    private void scrollVertical(int amount) {
+        int planeSize = words * height;
+        for(int plane = 0; plane < machine.planes; plane++) {
+            if((planeMask & (1 << plane)) == 0) {
+                continue;
+            }
+            int base = plane * planeSize;
+            int shift = Math.min(Math.abs(amount), height) * words;
+            if(amount > 0) {
+                System.arraycopy(rows, base, rows, base + shift, planeSize - shift);
+                Arrays.fill(rows, base, base + shift, 0L);
+            } else {
+                System.arraycopy(rows, base + shift, rows, base, planeSize - shift);
+                Arrays.fill(rows, base + planeSize - shift, base + planeSize, 0L);
+            }
+        }
+        displayChanged();
+    }
+
+    //positive moves the selected planes right, negative left, less than 64 pixels
+    private void scrollHorizontal(int amount) {
+        int planeSize = words * height;
+        for(int plane = 0; plane < machine.planes; plane++) {
+            if((planeMask & (1 << plane)) == 0) {
+                continue;
+            }
+            for(int at = plane * planeSize; at < (plane + 1) * planeSize; at += 2) {
+                long left = rows[at];
+                long right = rows[at + 1];
+                if(amount > 0) {
+                    rows[at] = left >>> amount;
+                    rows[at + 1] = (right >>> amount) | (left << (64 - amount));
+                } else {
+                    rows[at] = (left << -amount) | (right >>> (64 + amount));
+                    rows[at + 1] = right << -amount;
+                }
+            }
+        }
+        displayChanged();
+    }
+
+    //FX0A: stores the lowest pressed key in V[x] and moves on, otherwise stays on this instruction
+    void waitForKey(int x) {
+        if(keys != 0) {
+            V[x] = (char)Integer.numberOfTrailingZeros(keys);
+            pc += 2;
+        }
+    }
+
+    //FX33: hundreds place at I, tens place at I + 1, and ones place at I + 2
+    void storeBCD(int value) {
+        int hundreds = (value - (value % 100)) / 100;
+        value -= hundreds * 100;
+        int tens = (value - (value % 10))/ 10;
+        value -= tens * 10;
+        memory[I] = (char)hundreds;
+        memory[I + 1] = (char)tens;
+        memory[I + 2] = (char)value;
+        memoryWritten(I, I + 2);
+    }
+
+    //FX55: Stores V0 to VX in memory starting at address I, then moves I as the quirks say
+    void storeRegisters(int x) {
+        for(int i = 0; i <= x; i++) {
+            memory[I + i] = V[i];
+        }
+        memoryWritten(I, I + x);
+        I = (char)(I + ((x + indexBase) & indexMask));
+    }
+
+    //FX65: Fills V0 to VX with values starting from I, then moves I as the quirks say
+    void loadRegisters(int x) {
+        for(int i = 0; i <= x; i++) {
+            V[i] = memory[I + i];
+        }
+        I = (char)(I + ((x + indexBase) & indexMask));
+    }
+
+    //everything that writes memory goes through here, so engines and snapshots see the change
+    void memoryWritten(int from, int to) {
+        engine.invalidate(from, to);
+        Debugger debugger = this.debugger;
+        if(debugger != null) {
+            debugger.written(from, to);
+        }
+        int last = Math.min(to, memory.length - 1) / PAGE_SIZE;
+        for(int page = Math.max(from, 0) / PAGE_SIZE; page <= last; page++) {
+            dirtyPages[page >> 6] |= 1L << page;
+        }
+    }
+
+    //copies the dirty page bits into target, then clears them
+    void takeDirtyPages(long[] target) {
+        System.arraycopy(dirtyPages, 0, target, 0, dirtyPages.length);
+        Arrays.fill(dirtyPages, 0L);
+    }
+
+    //seeds CXNN, the same seed and inputs give the same run
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    public Snapshot saveState() {
+        return new Snapshot(this);
+    }
+
+    //puts the machine back into a saved state, cheap enough to do every frame
+    public void loadState(Snapshot snapshot) {
+        snapshot.restore(this);
+        stateReplaced();
+    }
+
+    /**
+     * Puts the machine back into a snapshot taken (or loaded) when the dirty pages were last taken, copying
+     * only the pages written since. The engines keep everything decoded from the other pages, so going back
+     * to the same state over and over costs little. pages is scratch space, and nothing else may take the
+     * dirty pages in between (no RewindBuffer on this chip)
+     */
+    void resetState(Snapshot snapshot, long[] pages) {
+        takeDirtyPages(pages);
+        snapshot.restore(this, pages);
+        int count = memory.length / PAGE_SIZE;
+        for(int page = 0; page < count; page++) {
+            if((pages[page >> 6] & (1L << page)) != 0) {
+                // the page equals the snapshot again, so it is not marked dirty
+                engine.invalidate(page * PAGE_SIZE, page * PAGE_SIZE + PAGE_SIZE - 1);
+            }
+        }
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //longs needed for the dirty page bits of this machine's memory
+    int dirtyPageWords() {
+        return dirtyPages.length;
+    }
+
+    //after memory, display and registers were swapped out from under the engines
+    void stateReplaced() {
+        memoryWritten(0, memory.length - 1);
+        displayStale = true;
+        needRedraw = true;
+    }
+
+    //counts both timers down, called at 60hz by the scheduler independently of the instruction rate
+    public void tickTimers() {
+        Debugger debugger = this.debugger;
+        if(debugger != null && debugger.isPaused()) {
+            // time stands still at a breakpoint
+            return;
+        }
         if (sound_timer > 0) {
             sound_timer--;
         }
         if (delay_timer > 0) {
             delay_timer--;
         }
+        Profiler profiler = activeProfiler();
+        if(profiler != null) {
+            profiler.frame();
+        }
     }
 
+    //one byte per pixel view of the display, row by row, bit n set when the pixel is on in plane n
     public byte[] getDisplay() {
+        if(displayStale) {
+            int planeSize = words * height;
+            for(int y = 0; y < height; y++) {
+                int offset = y * width;
+                for(int x = 0; x < width; x++) {
+                    int color = 0;
+                    for(int plane = 0; plane < machine.planes; plane++) {
+                        long word = rows[plane * planeSize + y * words + (x >> 6)];
+                        color |= (int)((word >>> (63 - (x & 63))) & 1) << plane;
+                    }
+                    display[offset + x] = (byte)color;
+                }
+            }
+            displayStale = false;
+        }
         return display;
     }
 
+    /**
+     * The packed display: getWordsPerRow() longs per row with the leftmost pixel in the top bit
+     * of the first, getHeight() rows per plane, planes one after the other. Do not modify
+     */
+    public long[] getDisplayRows() {
+        return rows;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWordsPerRow() {
+        return words;
+    }
+
+    public int getPlanes() {
+        return machine.planes;
+    }
+
+    //true in the SUPER-CHIP / XO-CHIP 128x64 mode, lores drawing doubles every pixel
+    public boolean isHires() {
+        return hires;
+    }
+
+    public void copyDisplayRows(long[] target) {
+        System.arraycopy(rows, 0, target, 0, rows.length);
+    }
+
+    //64 bit hash of the display, cheap enough to compare frames every tick
+    public long displayHash() {
+        return hashRows(rows);
+    }
+
+    public static long hashRows(long[] rows) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for(int i = 0; i < rows.length; i++) {
+            hash = Long.rotateLeft(hash ^ rows[i], 27) * 0xC2B2AE3D27D4EB4FL;
+        }
+        return hash ^ (hash >>> 31);
+    }
+
     public boolean needsRedraw() {
         return needRedraw;
     }
@@ -489,37 +1115,110 @@ public class Chip {
     }
 
     public void loadProgram(String file) {
-        DataInputStream input = null;
         try {
-            input = new DataInputStream(new FileInputStream(file));
-            int offset = 0;
-            while (input.available() > 0) {
-                // program starts at 0x200 & mask last Byte
-                memory[0x200 + offset] = (char)(input.readByte() & 0xFF);
-                offset++;
-            }
+            // ROMs are at most 64 kB, a plain read is cheaper than a mapping the GC has to release
+            loadProgram(Files.readAllBytes(Paths.get(file)));
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {}
-            }
         }
     }
 
+    //loads a program image already in memory, starting at 0x200
+    public void loadProgram(byte[] program) {
+        if(program.length > memory.length - 0x200) {
+            throw new IllegalArgumentException("Program too large: " + program.length + " bytes");
+        }
+        for(int i = 0; i < program.length; i++) {
+            memory[0x200 + i] = (char)(program[i] & 0xFF);
+        }
+        memoryWritten(0x200, 0x200 + program.length);
+    }
+
     //loads fontset into memory
     public void loadFontset() {
         for(int i = 0; i < ChipData.fontset.length; i++) {
             memory[0x50 + i] = (char)(ChipData.fontset[i] & 0xFF);
         }
+        if(machine != Machine.CHIP8) {
+            for(int i = 0; i < ChipData.bigFontset.length; i++) {
+                memory[0xA0 + i] = (char)(ChipData.bigFontset[i] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Lets execute() skip the rest of the budget while the program waits in FX0A or a loop polling
+     * the delay timer. The state afterwards is exactly what running those instructions would give
+     */
+    public void setIdleSkip(boolean skip) {
+        idle = skip ? new IdleDetector(this) : null;
+    }
+
+    //true while FX0A waits and no key is down, nothing changes until the keys do
+    public boolean isWaitingForKey() {
+        int opcode = (memory[pc] << 8) | memory[pc + 1];
+        return (opcode & 0xF0FF) == 0xF00A && keys == 0;
+    }
+
+    //attach counters, or null to detach. Profiler.setEnabled() pauses them without detaching
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if(profiler != null && memory != null) {
+            profiler.attach(memory.length);
+        }
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    private Profiler activeProfiler() {
+        Profiler profiler = this.profiler;
+        return profiler != null && profiler.isEnabled() ? profiler : null;
+    }
+
+    //attach a listener that sees every instruction before it executes, or null to detach
+    public void setTraceListener(TraceListener tracer) {
+        this.tracer = tracer;
     }
 
     public void setKeyBuffer(int[] keyBuffer) {
-        for(int i = 0; i < keys.length; i++) {
-            keys[i] = (byte)keyBuffer[i];
+        int state = 0;
+        for(int i = 0; i < 16; i++) {
+            if(keyBuffer[i] == 1) {
+                state |= 1 << i;
+            }
         }
+        keys = state;
+    }
+
+    //sets which keys are held down, bit n for key n
+    public void setKeys(int keys) {
+        this.keys = keys & 0xFFFF;
+    }
+
+    public int getKeys() {
+        return keys;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public int getI() {
+        return I;
+    }
+
+    public int getRegister(int x) {
+        return V[x];
+    }
+
+    public int getDelayTimer() {
+        return delay_timer;
+    }
+
+    public int getSoundTimer() {
+        return sound_timer;
     }
 }
@@ -0,0 +1,200 @@
+package chip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Line based front end for a Debugger, read from a console while the chip keeps running on its own thread.
+ * Addresses are hex, condition values decimal unless they start with 0x. "help" lists the commands
+ */
+public class DebugConsole implements Runnable {
+
+    private static final String HELP =
+            "b <addr>              break before the instruction at addr\n" +
+            "clear <addr>          remove that breakpoint\n" +
+            "watch <from> [to]     stop after writes to memory from..to\n" +
+            "unwatch <from> [to]   stop watching from..to\n" +
+            "cond <reg> <op> <n>   stop when e.g. V3 == 5 or I >= 0x300 becomes true (V0-VF, I, DT, ST, SP)\n" +
+            "uncond <index>        remove a condition\n" +
+            "info                  list breakpoints, watchpoints and conditions\n" +
+            "p                     pause\n" +
+            "c                     continue\n" +
+            "s [n]                 step n instructions\n" +
+            "n                     step over a call\n" +
+            "finish                run until the subroutine returns\n" +
+            "r                     registers and stack\n" +
+            "x <addr> [length]     memory\n" +
+            "l [addr] [count]      disassembly, from the pc by default\n" +
+            "k <mask>              hold down keys, a hex mask with bit n for key n\n" +
+            "q                     quit\n";
+
+    //how long stepping commands wait for the step to finish before giving the prompt back
+    private static final long STEP_WAIT_MILLIS = 1000;
+
+    private final Debugger debugger;
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    public DebugConsole(Debugger debugger, BufferedReader in, PrintStream out) {
+        this.debugger = debugger;
+        this.in = in;
+        this.out = out;
+        debugger.setStopListener((d, reason) -> {
+            out.println("stopped: " + reason);
+            out.print(d.disassemble(d.getChip().getPc(), 1));
+        });
+    }
+
+    //reads commands until q or the end of the input
+    @Override
+    public void run() {
+        out.println("Debugger, \"help\" lists the commands");
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if(words[0].isEmpty()) {
+                    continue;
+                }
+                if(words[0].equals("q")) {
+                    return;
+                }
+                try {
+                    command(words, line.trim());
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    out.println(e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            out.println(e.getMessage());
+        }
+    }
+
+    private void command(String[] words, String line) throws InterruptedException {
+        Chip chip = debugger.getChip();
+        switch(words[0]) {
+            case "help":
+                out.print(HELP);
+                break;
+            case "b":
+                debugger.setBreakpoint(address(words, 1));
+                break;
+            case "clear":
+                debugger.clearBreakpoint(address(words, 1));
+                break;
+            case "watch":
+                debugger.watch(address(words, 1), words.length > 2 ? address(words, 2) : address(words, 1));
+                break;
+            case "unwatch":
+                debugger.unwatch(address(words, 1), words.length > 2 ? address(words, 2) : address(words, 1));
+                break;
+            case "cond":
+                debugger.addCondition(Debugger.Condition.parse(line.substring(words[0].length())));
+                break;
+            case "uncond":
+                debugger.removeCondition(Integer.parseInt(argument(words, 1)));
+                break;
+            case "info":
+                info();
+                break;
+            case "p":
+                debugger.pause();
+                debugger.awaitPause(STEP_WAIT_MILLIS);
+                break;
+            case "c":
+                debugger.resume();
+                break;
+            case "s":
+                debugger.step(words.length > 1 ? Integer.parseInt(words[1]) : 1);
+                debugger.awaitPause(STEP_WAIT_MILLIS);
+                break;
+            case "n":
+                debugger.stepOver();
+                debugger.awaitPause(STEP_WAIT_MILLIS);
+                break;
+            case "finish":
+                debugger.stepOut();
+                debugger.awaitPause(STEP_WAIT_MILLIS);
+                break;
+            case "r":
+                out.print(debugger.registers());
+                break;
+            case "x":
+                out.print(debugger.memory(address(words, 1), words.length > 2 ? Integer.decode(words[2]) : 64));
+                break;
+            case "l":
+                out.print(debugger.disassemble(words.length > 1 ? address(words, 1) : chip.getPc(),
+                        words.length > 2 ? Integer.parseInt(words[2]) : 10));
+                break;
+            case "k":
+                chip.setKeys(address(words, 1));
+                break;
+            default:
+                out.println("Unknown command " + words[0] + ", \"help\" lists the commands");
+        }
+    }
+
+    private void info() {
+        for(int address : debugger.getBreakpoints()) {
+            out.println(String.format("break %03X", address));
+        }
+        for(int[] range : debugger.getWatchpoints()) {
+            out.println(String.format("watch %03X-%03X", range[0], range[1]));
+        }
+        List<Debugger.Condition> conditions = debugger.getConditions();
+        for(int i = 0; i < conditions.size(); i++) {
+            out.println("cond " + i + ": " + conditions.get(i));
+        }
+        out.println(debugger.isPaused() ? "paused: " + debugger.getReason() : "running");
+    }
+
+    private static String argument(String[] words, int index) {
+        if(words.length <= index) {
+            throw new IllegalArgumentException("Missing argument, \"help\" lists the commands");
+        }
+        return words[index];
+    }
+
+    //hex, with or without 0x
+    private static int address(String[] words, int index) {
+        String word = argument(words, index);
+        return Integer.parseInt(word.startsWith("0x") || word.startsWith("0X") ? word.substring(2) : word, 16);
+    }
+
+    /**
+     * Usage: java chip.DebugConsole <rom> [chip8|schip|xochip] [quirks] [engine]
+     * Runs a ROM without a window, paused before its first instruction, with the debugger on the console
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: DebugConsole <rom> [chip8|schip|xochip] [quirks] [engine]");
+            System.exit(1);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(args[0]));
+        Chip chip = new Chip();
+        chip.setMachine(args.length > 1 ? Machine.parse(args[1]) : Machine.forFile(args[0]));
+        chip.setQuirks(args.length > 2 ? Quirks.parse(args[2]) : null);
+        chip.init();
+        chip.setEngine(args.length > 3 ? EngineType.parse(args[3]) : EngineType.SWITCH);
+        chip.loadProgram(program);
+        chip.setAnalysis(ProgramAnalysis.of(program, chip.getMachine(), chip.getQuirks()));
+        Debugger debugger = new Debugger(chip);
+        debugger.pause();
+        Scheduler scheduler = new Scheduler(chip, (c, render) -> {});
+        debugger.setWakeup(scheduler::wake);
+        DebugConsole console = new DebugConsole(debugger, new BufferedReader(new InputStreamReader(System.in)), System.out);
+        Thread emulation = new Thread(scheduler, "chip8-emulation");
+        emulation.setDaemon(true);
+        emulation.start();
+        console.run();
+        scheduler.stop();
+    }
+}
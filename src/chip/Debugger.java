@@ -0,0 +1,526 @@
+package chip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Breakpoints, memory watchpoints, register conditions and stepping for one Chip.
+ *
+ * Costs nothing while nothing is armed: with no breakpoint, watchpoint or condition set and no step or
+ * pause pending the debugger is detached and execute() runs the selected engine as usual. Once armed,
+ * execute() hands its budget to the debugger, which runs one instruction at a time on the reference
+ * interpreter and looks breakpoints up in a bitmap by address. Watchpoints are checked in
+ * Chip.memoryWritten(), which every store already goes through, so they add nothing per instruction.
+ *
+ * Can be driven from any thread while the chip runs on its own, usually under a Scheduler. While paused
+ * execute() runs nothing and the timers stand still, so resuming continues exactly where it stopped.
+ */
+public class Debugger {
+
+    public interface StopListener {
+        /**
+         * Called on the emulation thread each time execution pauses, with why it did
+         */
+        void stopped(Debugger debugger, String reason);
+    }
+
+    //what a condition can look at, V0 to VF are 0 to 15
+    public static final int REGISTER_I = 16;
+    public static final int REGISTER_DT = 17;
+    public static final int REGISTER_ST = 18;
+    public static final int REGISTER_SP = 19;
+
+    private static final String[] REGISTER_NAMES = {
+            "V0", "V1", "V2", "V3", "V4", "V5", "V6", "V7", "V8", "V9", "VA", "VB", "VC", "VD", "VE", "VF",
+            "I", "DT", "ST", "SP"
+    };
+    private static final String[] OPERATORS = {"==", "!=", "<=", ">=", "<", ">"};
+
+    /**
+     * Stops when a comparison of a register with a value becomes true, e.g. "v3 == 5" or "i >= 0x300".
+     * Only the change from false to true stops, so continuing does not stop again at once
+     */
+    public static final class Condition {
+        private final int register;
+        private final String operator;
+        private final int value;
+        private boolean last;
+
+        public Condition(int register, String operator, int value) {
+            if(register < 0 || register >= REGISTER_NAMES.length) {
+                throw new IllegalArgumentException("No such register: " + register);
+            }
+            if(operatorIndex(operator) < 0) {
+                throw new IllegalArgumentException("No such comparison: " + operator);
+            }
+            this.register = register;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        //"<register> <comparison> <value>", registers V0-VF, I, DT, ST and SP, values decimal or 0x hex
+        public static Condition parse(String text) {
+            String[] parts = text.trim().split("\\s+");
+            if(parts.length != 3) {
+                throw new IllegalArgumentException("Expected <register> <comparison> <value>: " + text);
+            }
+            int register = -1;
+            for(int i = 0; i < REGISTER_NAMES.length; i++) {
+                if(REGISTER_NAMES[i].equalsIgnoreCase(parts[0])) {
+                    register = i;
+                }
+            }
+            if(register < 0) {
+                throw new IllegalArgumentException("No such register: " + parts[0]);
+            }
+            return new Condition(register, parts[1], Integer.decode(parts[2]));
+        }
+
+        boolean test(Chip chip) {
+            int actual;
+            if(register < 16) {
+                actual = chip.V[register];
+            } else if(register == REGISTER_I) {
+                actual = chip.I;
+            } else if(register == REGISTER_DT) {
+                actual = chip.delay_timer;
+            } else if(register == REGISTER_ST) {
+                actual = chip.sound_timer;
+            } else {
+                actual = chip.stackPointer;
+            }
+            switch(operatorIndex(operator)) {
+                case 0: return actual == value;
+                case 1: return actual != value;
+                case 2: return actual <= value;
+                case 3: return actual >= value;
+                case 4: return actual < value;
+                default: return actual > value;
+            }
+        }
+
+        private static int operatorIndex(String operator) {
+            for(int i = 0; i < OPERATORS.length; i++) {
+                if(OPERATORS[i].equals(operator)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return REGISTER_NAMES[register] + " " + operator + " " + (register == REGISTER_I ? hex(value, 3) : Integer.toString(value));
+        }
+    }
+
+    //pending step, NONE when running freely
+    private enum Step { NONE, INTO, RETURN }
+
+    //XO-CHIP addresses 64 kB, one bit per address
+    private static final int ADDRESSES = 0x10000;
+
+    private final Chip chip;
+    private final long[] breakpoints = new long[ADDRESSES / 64];
+    private final long[] watchpoints = new long[ADDRESSES / 64];
+    private int breakpointCount;
+    private int watchpointCount;
+    private final List<Condition> conditions = new ArrayList<>();
+
+    private boolean paused;
+    //pause() was called, execute() pauses when it next runs
+    private boolean pausing;
+    private String reason;
+    private Step step = Step.NONE;
+    //instructions left for INTO, and the stack depth RETURN stops below
+    private int stepCount;
+    private int stepDepth;
+    //resuming from a breakpoint runs the instruction there instead of stopping at it again
+    private boolean leaveBreakpoint;
+
+    //set while execute() runs an instruction, written() only looks then
+    private boolean running;
+    //first watched address the instruction being run wrote, -1 for none
+    private int watchHit = -1;
+
+    private volatile StopListener listener;
+    private volatile Runnable wakeup;
+
+    //the chip must have been through init()
+    public Debugger(Chip chip) {
+        this.chip = chip;
+    }
+
+    public Chip getChip() {
+        return chip;
+    }
+
+    public void setStopListener(StopListener listener) {
+        this.listener = listener;
+    }
+
+    //called whenever execution resumes, so a Scheduler parked in FX0A gets going (Scheduler::wake)
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    public synchronized void setBreakpoint(int address) {
+        checkAddress(address);
+        if(!set(breakpoints, address)) {
+            breakpointCount++;
+            attach();
+        }
+    }
+
+    public synchronized void clearBreakpoint(int address) {
+        checkAddress(address);
+        if(clear(breakpoints, address)) {
+            breakpointCount--;
+            attach();
+        }
+    }
+
+    public synchronized int[] getBreakpoints() {
+        int[] addresses = new int[breakpointCount];
+        for(int address = 0, i = 0; i < addresses.length; address++) {
+            if(isSet(breakpoints, address)) {
+                addresses[i++] = address;
+            }
+        }
+        return addresses;
+    }
+
+    //stops after any instruction that writes memory between from and to (inclusive)
+    public synchronized void watch(int from, int to) {
+        for(int address = Math.max(from, 0); address <= Math.min(to, ADDRESSES - 1); address++) {
+            if(!set(watchpoints, address)) {
+                watchpointCount++;
+            }
+        }
+        attach();
+    }
+
+    public synchronized void unwatch(int from, int to) {
+        for(int address = Math.max(from, 0); address <= Math.min(to, ADDRESSES - 1); address++) {
+            if(clear(watchpoints, address)) {
+                watchpointCount--;
+            }
+        }
+        attach();
+    }
+
+    //watched ranges as {from, to}, inclusive
+    public synchronized List<int[]> getWatchpoints() {
+        List<int[]> ranges = new ArrayList<>();
+        for(int address = 0; address < ADDRESSES; address++) {
+            if(isSet(watchpoints, address)) {
+                int from = address;
+                while(address + 1 < ADDRESSES && isSet(watchpoints, address + 1)) {
+                    address++;
+                }
+                ranges.add(new int[] {from, address});
+            }
+        }
+        return ranges;
+    }
+
+    public synchronized void addCondition(Condition condition) {
+        condition.last = condition.test(chip);
+        conditions.add(condition);
+        attach();
+    }
+
+    public synchronized void removeCondition(int index) {
+        conditions.remove(index);
+        attach();
+    }
+
+    public synchronized List<Condition> getConditions() {
+        return new ArrayList<>(conditions);
+    }
+
+    //stops before the next instruction the chip runs, awaitPause() tells when it has
+    public void pause() {
+        synchronized(this) {
+            if(paused || pausing) {
+                return;
+            }
+            pausing = true;
+            attach();
+        }
+        // a parked scheduler has to run a frame to see it
+        wake();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    //why execution last paused, null if it never did
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    //runs freely until the next breakpoint, watchpoint or condition
+    public void resume() {
+        synchronized(this) {
+            requirePaused();
+            step = Step.NONE;
+            run();
+        }
+        wake();
+    }
+
+    //runs count instructions, then pauses
+    public void step(int count) {
+        if(count <= 0) {
+            throw new IllegalArgumentException("Need at least one instruction: " + count);
+        }
+        synchronized(this) {
+            requirePaused();
+            step = Step.INTO;
+            stepCount = count;
+            run();
+        }
+        wake();
+    }
+
+    //runs one instruction, or a whole subroutine if it is a call
+    public void stepOver() {
+        synchronized(this) {
+            requirePaused();
+            if((chip.memory[chip.pc] & 0xF0) == 0x20) {
+                // until the call returns to this depth
+                step = Step.RETURN;
+                stepDepth = chip.stackPointer + 1;
+            } else {
+                step = Step.INTO;
+                stepCount = 1;
+            }
+            run();
+        }
+        wake();
+    }
+
+    //runs until the current subroutine returns
+    public void stepOut() {
+        synchronized(this) {
+            requirePaused();
+            if(chip.stackPointer == 0) {
+                throw new IllegalStateException("Not in a subroutine");
+            }
+            step = Step.RETURN;
+            stepDepth = chip.stackPointer;
+            run();
+        }
+        wake();
+    }
+
+    //waits up to millis for execution to pause, true if it is paused
+    public synchronized boolean awaitPause(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while(!paused) {
+            long wait = deadline - System.currentTimeMillis();
+            if(wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    private void requirePaused() {
+        if(!paused) {
+            throw new IllegalStateException("Pause first");
+        }
+    }
+
+    private void run() {
+        paused = false;
+        pausing = false;
+        leaveBreakpoint = true;
+        attach();
+    }
+
+    private void wake() {
+        Runnable wakeup = this.wakeup;
+        if(wakeup != null) {
+            wakeup.run();
+        }
+    }
+
+    //only an armed debugger is seen by the chip, a detached one costs execute() nothing
+    private void attach() {
+        boolean armed = paused || pausing || step != Step.NONE
+                || breakpointCount > 0 || watchpointCount > 0 || !conditions.isEmpty();
+        chip.debugger = armed ? this : null;
+    }
+
+    /**
+     * Chip.execute() while armed: runs up to cycles instructions one at a time, stopping before a breakpoint
+     * and after a watched write, a condition coming true or the end of a step. Returns how many ran
+     */
+    int execute(int cycles) {
+        int ran = 0;
+        String stop = null;
+        synchronized(this) {
+            if(pausing) {
+                pausing = false;
+                stop = "paused";
+            }
+            while(stop == null && ran < cycles && !paused) {
+                int pc = chip.pc;
+                if(leaveBreakpoint) {
+                    leaveBreakpoint = false;
+                } else if(isSet(breakpoints, pc)) {
+                    stop = "breakpoint at " + hex(pc, 3);
+                    break;
+                }
+                running = true;
+                try {
+                    chip.run();
+                } catch (RuntimeException e) {
+                    // the pc still points at the instruction, so it can be looked at
+                    stop = e.getMessage() != null ? e.getMessage() : e.toString();
+                    break;
+                } finally {
+                    running = false;
+                }
+                ran++;
+                if(watchHit >= 0) {
+                    stop = "write to " + hex(watchHit, 3) + " by " + hex(pc, 3);
+                    watchHit = -1;
+                    break;
+                }
+                stop = checkConditions();
+                if(stop != null) {
+                    break;
+                }
+                if(step == Step.INTO && --stepCount == 0) {
+                    stop = "step";
+                    break;
+                }
+                if(step == Step.RETURN && chip.stackPointer < stepDepth) {
+                    stop = "returned to " + hex(chip.pc, 3);
+                    break;
+                }
+            }
+            if(stop != null) {
+                paused = true;
+                reason = stop;
+                step = Step.NONE;
+                attach();
+                notifyAll();
+            }
+        }
+        StopListener listener = this.listener;
+        if(stop != null && listener != null) {
+            listener.stopped(this, stop);
+        }
+        return ran;
+    }
+
+    //every condition is evaluated so each one sees every change, the first that came true is reported
+    private String checkConditions() {
+        String stop = null;
+        for(Condition condition : conditions) {
+            boolean now = condition.test(chip);
+            if(now && !condition.last && stop == null) {
+                stop = condition.toString();
+            }
+            condition.last = now;
+        }
+        return stop;
+    }
+
+    //Chip.memoryWritten() while armed
+    void written(int from, int to) {
+        if(!running || watchpointCount == 0 || watchHit >= 0) {
+            return;
+        }
+        for(int address = Math.max(from, 0); address <= Math.min(to, ADDRESSES - 1); address++) {
+            if(isSet(watchpoints, address)) {
+                watchHit = address;
+                return;
+            }
+        }
+    }
+
+    //V0-VF, I, timers, pc and the stack, one line each
+    public synchronized String registers() {
+        StringBuilder out = new StringBuilder();
+        for(int x = 0; x < 16; x++) {
+            out.append(x == 0 ? "" : x == 8 ? "\n" : " ").append(REGISTER_NAMES[x]).append('=').append(hex(chip.V[x], 2));
+        }
+        out.append("\nPC=").append(hex(chip.pc, 3)).append(" I=").append(hex(chip.I, 3))
+                .append(" DT=").append(chip.delay_timer).append(" ST=").append(chip.sound_timer)
+                .append(" keys=").append(hex(chip.keys, 4));
+        out.append("\nstack");
+        if(chip.stackPointer == 0) {
+            out.append(" empty");
+        }
+        for(int i = chip.stackPointer - 1; i >= 0; i--) {
+            out.append(' ').append(hex(chip.stack[i], 3));
+        }
+        return out.append('\n').toString();
+    }
+
+    //hex dump of length bytes from from, 16 per line
+    public synchronized String memory(int from, int length) {
+        StringBuilder out = new StringBuilder();
+        int to = Math.min(from + length, chip.memory.length);
+        for(int line = Math.max(from, 0); line < to; line += 16) {
+            out.append(hex(line, 3)).append(' ');
+            for(int address = line; address < Math.min(line + 16, to); address++) {
+                out.append(' ').append(hex(chip.memory[address], 2));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    //count instructions from address as they are in memory now, breakpoints marked with *
+    public synchronized String disassemble(int address, int count) {
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < count && address + 1 < chip.memory.length; i++) {
+            int opcode = (chip.memory[address] << 8) | chip.memory[address + 1];
+            out.append(isSet(breakpoints, address) ? '*' : ' ').append(address == chip.pc ? '>' : ' ')
+                    .append(hex(address, 3)).append("  ").append(hex(opcode, 4)).append("  ")
+                    .append(ProgramAnalysis.disassemble(opcode));
+            if(opcode == 0xF000 && chip.machine == Machine.XOCHIP && address + 3 < chip.memory.length) {
+                out.append(' ').append(hex((chip.memory[address + 2] << 8) | chip.memory[address + 3], 4));
+                address += 2;
+            }
+            out.append('\n');
+            address += 2;
+        }
+        return out.toString();
+    }
+
+    private static void checkAddress(int address) {
+        if(address < 0 || address >= ADDRESSES) {
+            throw new IllegalArgumentException("No such address: " + hex(address, 3));
+        }
+    }
+
+    //these return whether the bit was set before
+    private static boolean set(long[] bits, int address) {
+        boolean was = isSet(bits, address);
+        bits[address >> 6] |= 1L << address;
+        return was;
+    }
+
+    private static boolean clear(long[] bits, int address) {
+        boolean was = isSet(bits, address);
+        bits[address >> 6] &= ~(1L << address);
+        return was;
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        return (bits[(address >> 6) & (bits.length - 1)] & (1L << address)) != 0;
+    }
+
+    private static String hex(int value, int digits) {
+        return String.format("%0" + digits + "X", value);
+    }
+}
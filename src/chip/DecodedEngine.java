@@ -0,0 +1,365 @@
+package chip;
+
+/**
+ * Decodes each address once into a handler index plus its operands and keeps it cached,
+ * so the hot loop is a single dense switch on the handler instead of the nested opcode switches.
+ * Entries are dropped when FX33/FX55 or a program load write into memory.
+ *
+ * Entry layout: handler << 24 | X << 20 | Y << 16 | argument (NNN, NN or N)
+ *
+ * Quirks are bound while decoding: SHR/SHL carry the register they shift in the Y slot,
+ * JP_V0 the register it adds in the X slot, and the VF resetting logic opcodes get handlers of their own.
+ */
+public class DecodedEngine implements Engine {
+
+    //0 marks an address that has not been decoded yet
+    static final int UNDECODED = 0;
+    static final int CLS = 1;
+    static final int RET = 2;
+    static final int JP = 3;
+    static final int CALL = 4;
+    static final int SE_NN = 5;
+    static final int SNE_NN = 6;
+    static final int SE_XY = 7;
+    static final int LD_NN = 8;
+    static final int ADD_NN = 9;
+    static final int LD_XY = 10;
+    static final int OR = 11;
+    static final int AND = 12;
+    static final int ADD_XY = 13;
+    static final int SUB = 14;
+    static final int SHR = 15;
+    static final int SUBN = 16;
+    static final int SHL = 17;
+    static final int SNE_XY = 18;
+    static final int LD_I = 19;
+    static final int JP_V0 = 20;
+    static final int RND = 21;
+    static final int DRW = 22;
+    static final int SKP = 23;
+    static final int SKNP = 24;
+    static final int LD_X_DT = 25;
+    static final int LD_X_K = 26;
+    static final int LD_DT_X = 27;
+    static final int LD_ST_X = 28;
+    static final int ADD_I = 29;
+    static final int LD_F = 30;
+    static final int BCD = 31;
+    static final int STORE = 32;
+    static final int LOAD = 33;
+    static final int XOR = 34;
+    //8XY1/8XY2/8XY3 that also set VF to 0
+    static final int OR_VF = 35;
+    static final int AND_VF = 36;
+    static final int XOR_VF = 37;
+    //anything else goes through Chip.run() so unsupported opcodes behave the same
+    static final int FALLBACK = 38;
+
+    private final Chip chip;
+    //one entry per address
+    private final int[] decoded;
+
+    public DecodedEngine(Chip chip) {
+        this.chip = chip;
+        this.decoded = new int[chip.memory.length];
+    }
+
+    @Override
+    public int execute(int cycles) {
+        final char[] memory = chip.memory;
+        final char[] V = chip.V;
+        final int[] decoded = this.decoded;
+        int pc = chip.pc;
+
+        // pc is written back even when an instruction throws, so it names the failing one like Chip.run() does
+        try {
+            for(int i = 0; i < cycles; i++) {
+                int entry = decoded[pc];
+                if(entry == UNDECODED) {
+                    entry = decode((memory[pc] << 8) | memory[pc + 1], chip.machine, chip.getQuirks());
+                    decoded[pc] = entry;
+                }
+                int x = (entry >>> 20) & 0xF;
+                int y = (entry >>> 16) & 0xF;
+                int arg = entry & 0xFFFF;
+
+                switch(entry >>> 24) {
+                    case CLS:
+                        chip.clearScreen();
+                        pc += 2;
+                        break;
+                    case RET:
+                        chip.stackPointer--;
+                        pc = chip.stack[chip.stackPointer] + 2;
+                        break;
+                    case JP:
+                        pc = arg;
+                        break;
+                    case CALL:
+                        chip.stack[chip.stackPointer] = (char)pc;
+                        chip.stackPointer++;
+                        pc = arg;
+                        break;
+                    case SE_NN:
+                        pc += V[x] == arg ? 4 : 2;
+                        break;
+                    case SNE_NN:
+                        pc += V[x] != arg ? 4 : 2;
+                        break;
+                    case SE_XY:
+                        pc += V[x] == V[y] ? 4 : 2;
+                        break;
+                    case LD_NN:
+                        V[x] = (char)arg;
+                        pc += 2;
+                        break;
+                    case ADD_NN:
+                        V[x] = (char)((V[x] + arg) & 0xFF);
+                        pc += 2;
+                        break;
+                    case LD_XY:
+                        V[x] = V[y];
+                        pc += 2;
+                        break;
+                    case OR:
+                        V[x] = (char)((V[x] | V[y]) & 0xFF);
+                        pc += 2;
+                        break;
+                    case AND:
+                        V[x] = (char)(V[x] & V[y]);
+                        pc += 2;
+                        break;
+                    case XOR:
+                        V[x] = (char)(V[x] ^ V[y]);
+                        pc += 2;
+                        break;
+                    case OR_VF:
+                        V[x] = (char)((V[x] | V[y]) & 0xFF);
+                        V[0xF] = 0;
+                        pc += 2;
+                        break;
+                    case AND_VF:
+                        V[x] = (char)(V[x] & V[y]);
+                        V[0xF] = 0;
+                        pc += 2;
+                        break;
+                    case XOR_VF:
+                        V[x] = (char)(V[x] ^ V[y]);
+                        V[0xF] = 0;
+                        pc += 2;
+                        break;
+                    case ADD_XY:
+                        // VF is written first and read back when X or Y is F, same as Chip.run()
+                        V[0xF] = (char)((V[x] + V[y]) >> 8);
+                        V[x] = (char)((V[x] + V[y]) & 0xFF);
+                        pc += 2;
+                        break;
+                    case SUB:
+                        V[0xF] = (char)(V[x] >= V[y] ? 1 : 0);
+                        V[x] = (char)((V[x] - V[y]) & 0xFF);
+                        pc += 2;
+                        break;
+                    case SHR:
+                        V[0xF] = (char)(V[y] & 0x1);
+                        V[x] = (char)(V[y] >> 1);
+                        pc += 2;
+                        break;
+                    case SUBN:
+                        V[0xF] = (char)(V[x] > V[y] ? 0 : 1);
+                        V[x] = (char)((V[y] - V[x]) & 0xFF);
+                        pc += 2;
+                        break;
+                    case SHL:
+                        V[0xF] = (char)(V[y] >> 7);
+                        V[x] = (char)((V[y] << 1) & 0xFF);
+                        pc += 2;
+                        break;
+                    case SNE_XY:
+                        pc += V[x] != V[y] ? 4 : 2;
+                        break;
+                    case LD_I:
+                        chip.I = (char)arg;
+                        pc += 2;
+                        break;
+                    case JP_V0:
+                        pc = arg + (V[x] & 0xFF);
+                        break;
+                    case RND:
+                        V[x] = (char)(chip.random.nextByte() & arg);
+                        pc += 2;
+                        break;
+                    case DRW:
+                        chip.draw(V[x], V[y], arg);
+                        pc += 2;
+                        break;
+                    case SKP:
+                        pc += ((chip.keys >> V[x]) & 1) == 1 ? 4 : 2;
+                        break;
+                    case SKNP:
+                        pc += ((chip.keys >> V[x]) & 1) == 0 ? 4 : 2;
+                        break;
+                    case LD_X_DT:
+                        V[x] = (char)chip.delay_timer;
+                        pc += 2;
+                        break;
+                    case LD_X_K:
+                        chip.pc = (char)pc;
+                        chip.waitForKey(x);
+                        pc = chip.pc;
+                        break;
+                    case LD_DT_X:
+                        chip.delay_timer = V[x];
+                        pc += 2;
+                        break;
+                    case LD_ST_X:
+                        chip.sound_timer = V[x];
+                        pc += 2;
+                        break;
+                    case ADD_I:
+                        chip.I = (char)(chip.I + V[x]);
+                        pc += 2;
+                        break;
+                    case LD_F:
+                        // each character takes up 5 bytes
+                        chip.I = (char)(0x050 + (V[x] * 5));
+                        pc += 2;
+                        break;
+                    case BCD:
+                        chip.storeBCD(V[x]);
+                        pc += 2;
+                        break;
+                    case STORE:
+                        chip.storeRegisters(x);
+                        pc += 2;
+                        break;
+                    case LOAD:
+                        chip.loadRegisters(x);
+                        pc += 2;
+                        break;
+                    default:
+                        chip.pc = (char)pc;
+                        try {
+                            chip.run();
+                        } finally {
+                            // whatever pc Chip.run() left, also when it threw
+                            pc = chip.pc;
+                        }
+                        break;
+                }
+                // pc is a char in Chip, keep the same 16 bit wrap around
+                pc &= 0xFFFF;
+            }
+        } finally {
+            chip.pc = (char)pc;
+        }
+        return cycles;
+    }
+
+    @Override
+    public void invalidate(int from, int to) {
+        // an instruction at from - 1 reads the byte at from as its low half
+        int start = Math.max(0, from - 1);
+        int end = Math.min(decoded.length - 1, to);
+        for(int i = start; i <= end; i++) {
+            decoded[i] = UNDECODED;
+        }
+    }
+
+    //decodes every instruction the analysis found from what is in memory now
+    @Override
+    public void prepare(ProgramAnalysis analysis) {
+        final char[] memory = chip.memory;
+        for(int pc = 0; pc + 1 < decoded.length; pc++) {
+            if(decoded[pc] == UNDECODED && analysis.isInstruction(pc)) {
+                decoded[pc] = decode((memory[pc] << 8) | memory[pc + 1], chip.machine, chip.getQuirks());
+            }
+        }
+    }
+
+    //like decode(int, Quirks), but XO-CHIP skips may have to jump over a 4 byte instruction, Chip.run() does those
+    static int decode(int opcode, Machine machine, Quirks quirks) {
+        int entry = decode(opcode, quirks);
+        if(machine == Machine.XOCHIP) {
+            switch(entry >>> 24) {
+                case SE_NN:
+                case SNE_NN:
+                case SE_XY:
+                case SNE_XY:
+                case SKP:
+                case SKNP:
+                    return entry(FALLBACK, 0, 0, 0);
+            }
+        }
+        return entry;
+    }
+
+    //decodes with the MODERN quirks, enough for telling what kind of instruction it is
+    static int decode(int opcode) {
+        return decode(opcode, Quirks.MODERN);
+    }
+
+    static int decode(int opcode, Quirks quirks) {
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int n = opcode & 0x000F;
+        int nn = opcode & 0x00FF;
+        int nnn = opcode & 0x0FFF;
+
+        switch(opcode & 0xF000) {
+            case 0x0000:
+                switch(nn) {
+                    case 0xE0: return entry(CLS, 0, 0, 0);
+                    case 0xEE: return entry(RET, 0, 0, 0);
+                    default: return entry(FALLBACK, 0, 0, 0);
+                }
+            case 0x1000: return entry(JP, 0, 0, nnn);
+            case 0x2000: return entry(CALL, 0, 0, nnn);
+            case 0x3000: return entry(SE_NN, x, 0, nn);
+            case 0x4000: return entry(SNE_NN, x, 0, nn);
+            case 0x5000: return n == 0 ? entry(SE_XY, x, y, 0) : entry(FALLBACK, 0, 0, 0);
+            case 0x6000: return entry(LD_NN, x, 0, nn);
+            case 0x7000: return entry(ADD_NN, x, 0, nn);
+            case 0x8000:
+                switch(n) {
+                    case 0x0: return entry(LD_XY, x, y, 0);
+                    case 0x1: return entry(quirks.resetVf ? OR_VF : OR, x, y, 0);
+                    case 0x2: return entry(quirks.resetVf ? AND_VF : AND, x, y, 0);
+                    case 0x3: return entry(quirks.resetVf ? XOR_VF : XOR, x, y, 0);
+                    case 0x4: return entry(ADD_XY, x, y, 0);
+                    case 0x5: return entry(SUB, x, y, 0);
+                    case 0x6: return entry(SHR, x, quirks.shiftVy ? y : x, 0);
+                    case 0x7: return entry(SUBN, x, y, 0);
+                    case 0xE: return entry(SHL, x, quirks.shiftVy ? y : x, 0);
+                    default: return entry(FALLBACK, 0, 0, 0);
+                }
+            case 0x9000: return entry(SNE_XY, x, y, 0);
+            case 0xA000: return entry(LD_I, 0, 0, nnn);
+            case 0xB000: return entry(JP_V0, quirks.jumpVx ? x : 0, 0, nnn);
+            case 0xC000: return entry(RND, x, 0, nn);
+            case 0xD000: return entry(DRW, x, y, n);
+            case 0xE000:
+                switch(nn) {
+                    case 0x9E: return entry(SKP, x, 0, 0);
+                    case 0xA1: return entry(SKNP, x, 0, 0);
+                    default: return entry(FALLBACK, 0, 0, 0);
+                }
+            default:
+                switch(nn) {
+                    case 0x07: return entry(LD_X_DT, x, 0, 0);
+                    case 0x0A: return entry(LD_X_K, x, 0, 0);
+                    case 0x15: return entry(LD_DT_X, x, 0, 0);
+                    case 0x18: return entry(LD_ST_X, x, 0, 0);
+                    case 0x1E: return entry(ADD_I, x, 0, 0);
+                    case 0x29: return entry(LD_F, x, 0, 0);
+                    case 0x33: return entry(BCD, x, 0, 0);
+                    case 0x55: return entry(STORE, x, 0, 0);
+                    case 0x65: return entry(LOAD, x, 0, 0);
+                    default: return entry(FALLBACK, 0, 0, 0);
+                }
+        }
+    }
+
+    private static int entry(int handler, int x, int y, int arg) {
+        return handler << 24 | x << 20 | y << 16 | arg;
+    }
+}
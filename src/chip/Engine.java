@@ -0,0 +1,26 @@
+package chip;
+
+/**
+ * Executes instructions for one Chip.
+ * Every engine has to leave the machine in exactly the state Chip.run() would
+ */
+public interface Engine {
+
+    /**
+     * Runs exactly the given number of instructions and returns how many ran
+     */
+    int execute(int cycles);
+
+    /**
+     * Called after memory between from and to (inclusive) was written,
+     * so anything derived from those bytes can be dropped
+     */
+    void invalidate(int from, int to);
+
+    /**
+     * Called with the analysis of the loaded program, so the engine can do up front what it would
+     * otherwise do the first time it gets there. Must not change what execute() does
+     */
+    default void prepare(ProgramAnalysis analysis) {
+    }
+}
@@ -0,0 +1,35 @@
+package chip;
+
+public enum EngineType {
+
+    //the switch interpreter in Chip.run(), the reference implementation
+    SWITCH {
+        @Override
+        public Engine create(Chip chip) {
+            return new SwitchEngine(chip);
+        }
+    },
+
+    //caches each decoded instruction by address
+    DECODED {
+        @Override
+        public Engine create(Chip chip) {
+            return new DecodedEngine(chip);
+        }
+    },
+
+    //compiles hot basic blocks to hidden classes
+    JIT {
+        @Override
+        public Engine create(Chip chip) {
+            return new JitEngine(chip);
+        }
+    };
+
+    public abstract Engine create(Chip chip);
+
+    //case insensitive lookup for command line options such as -Dchip8.engine
+    public static EngineType parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,31 @@
+package chip;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event committed by the Profiler once per emulated frame, only costs anything while a recording has it enabled
+ */
+@Name("chip8.Frame")
+@Label("CHIP-8 Frame")
+@Category("CHIP-8")
+@Description("Instructions and drawing of one 60hz frame")
+@StackTrace(false)
+class FrameEvent extends Event {
+
+    @Label("Frame")
+    long frame;
+
+    @Label("Instructions")
+    long instructions;
+
+    @Label("Draw Calls")
+    long drawCalls;
+
+    @Label("Pixels Drawn")
+    long pixelsDrawn;
+}
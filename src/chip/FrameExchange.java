@@ -0,0 +1,56 @@
+package chip;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock free triple buffer for handing packed frames from the emulation thread to a reader.
+ * The writer always has a private buffer to fill, the reader always gets the newest complete frame,
+ * and frames the reader never picked up are simply overwritten instead of queued.
+ */
+public class FrameExchange {
+
+    //set in the shared state when the buffer in it has not been picked up yet
+    private static final int FRESH = 4;
+
+    private final long[][] buffers;
+    //index of the buffer between writer and reader, plus FRESH
+    private final AtomicInteger shared = new AtomicInteger(1);
+    //only touched by the writer
+    private int writing = 0;
+    //only touched by the reader
+    private int reading = 2;
+
+    public FrameExchange() {
+        this(Chip.HEIGHT);
+    }
+
+    public FrameExchange(int words) {
+        buffers = new long[3][words];
+    }
+
+    //writer side: copies the frame and makes it the newest one
+    public void publish(long[] frame) {
+        System.arraycopy(frame, 0, buffers[writing], 0, buffers[writing].length);
+        writing = shared.getAndSet(writing | FRESH) & 3;
+    }
+
+    public void publish(Chip chip) {
+        publish(chip.getDisplayRows());
+    }
+
+    /**
+     * Reader side: returns the newest published frame. The array belongs to the reader
+     * until the next call, when it may be handed back to the writer
+     */
+    public long[] acquire() {
+        if((shared.get() & FRESH) != 0) {
+            reading = shared.getAndSet(reading) & 3;
+        }
+        return buffers[reading];
+    }
+
+    //true when a frame was published since the last acquire()
+    public boolean hasNewFrame() {
+        return (shared.get() & FRESH) != 0;
+    }
+}
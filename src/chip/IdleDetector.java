@@ -0,0 +1,135 @@
+package chip;
+
+/**
+ * Finds the loops a program spins in while it waits: FX0A with no key down, and polling loops
+ * like "FX07, 3X00, 1NNN" waiting for the delay timer.
+ *
+ * Keys and timers only change between frames, so a loop that only reads registers, keys and timers
+ * and comes back to the exact same state after one lap will do so for the rest of the frame. The
+ * remaining whole laps change nothing and are skipped; the machine state is the same as if they ran.
+ */
+final class IdleDetector {
+
+    //longest loop, in instructions, that is checked
+    static final int MAX_PERIOD = 8;
+
+    private final Chip chip;
+    //register state after the first lap
+    private final char[] V = new char[16];
+    private int consumed;
+
+    IdleDetector(Chip chip) {
+        this.chip = chip;
+    }
+
+    /**
+     * Runs at most a couple of laps of the loop at pc on the reference interpreter and returns
+     * how many of the given instructions are done, counting the skipped laps.
+     * 0 means the chip is not idling and nothing ran
+     */
+    int skip(int cycles) {
+        int opcode = opcodeAt(chip.pc);
+        if(DecodedEngine.decode(opcode) >>> 24 == DecodedEngine.LD_X_K) {
+            // FX0A stays on itself until a key is down
+            return chip.keys == 0 ? cycles : 0;
+        }
+        if(!loopAhead()) {
+            return 0;
+        }
+        consumed = 0;
+        int start = chip.pc;
+        // the first lap may still change registers, e.g. FX07 picking up the new timer value
+        if(lap(start, cycles) < 0) {
+            return consumed;
+        }
+        System.arraycopy(chip.V, 0, V, 0, 16);
+        int I = chip.I;
+        int period = lap(start, cycles);
+        if(period <= 0 || chip.I != I || !sameRegisters()) {
+            return consumed;
+        }
+        int remaining = cycles - consumed;
+        return consumed + remaining - remaining % period;
+    }
+
+    //true if pure instructions from pc reach a backward jump to at or before pc
+    private boolean loopAhead() {
+        int pc = chip.pc;
+        for(int i = 0; i < MAX_PERIOD; i++, pc += 2) {
+            int opcode = opcodeAt(pc);
+            if(opcode < 0 || !isPure(opcode)) {
+                return false;
+            }
+            if((opcode & 0xF000) == 0x1000) {
+                int target = opcode & 0x0FFF;
+                return target <= chip.pc && chip.pc - target < MAX_PERIOD * 2;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs pure instructions until pc is back at start. Returns the lap length,
+     * or -1 if it left the loop, ran out of instructions or hit an impure one
+     */
+    private int lap(int start, int cycles) {
+        for(int n = 1; n <= MAX_PERIOD && consumed < cycles; n++) {
+            int opcode = opcodeAt(chip.pc);
+            if(opcode < 0 || !isPure(opcode)) {
+                return -1;
+            }
+            chip.run();
+            consumed++;
+            if(chip.pc == start) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameRegisters() {
+        for(int i = 0; i < 16; i++) {
+            if(chip.V[i] != V[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int opcodeAt(int pc) {
+        char[] memory = chip.memory;
+        return pc + 1 < memory.length ? (memory[pc] << 8) | memory[pc + 1] : -1;
+    }
+
+    //only touches V, I and pc and reads keys and timers, so a lap can be repeated without side effects
+    private static boolean isPure(int opcode) {
+        switch(DecodedEngine.decode(opcode) >>> 24) {
+            case DecodedEngine.JP:
+            case DecodedEngine.SE_NN:
+            case DecodedEngine.SNE_NN:
+            case DecodedEngine.SE_XY:
+            case DecodedEngine.SNE_XY:
+            case DecodedEngine.LD_NN:
+            case DecodedEngine.ADD_NN:
+            case DecodedEngine.LD_XY:
+            case DecodedEngine.OR:
+            case DecodedEngine.AND:
+            case DecodedEngine.XOR:
+            case DecodedEngine.ADD_XY:
+            case DecodedEngine.SUB:
+            case DecodedEngine.SHR:
+            case DecodedEngine.SUBN:
+            case DecodedEngine.SHL:
+            case DecodedEngine.LD_I:
+            case DecodedEngine.JP_V0:
+            case DecodedEngine.SKP:
+            case DecodedEngine.SKNP:
+            case DecodedEngine.LD_X_DT:
+            case DecodedEngine.ADD_I:
+            case DecodedEngine.LD_F:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package chip;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Compiles hot blocks to JVM bytecode and runs them as hidden classes.
+ *
+ * A block starts at a pc, follows skips and runs until the first jump, call, return, BNNN, FX0A or
+ * memory store (see BlockCompiler). It gets what is left of the budget and stops on the same instruction
+ * the interpreters would. Blocks are cached by start address and dropped when memory they were
+ * compiled from is written. Cold code and opcodes the compiler does not handle run through Chip.run().
+ * After every block the machine state is the same as after running Chip.run() once per instruction.
+ */
+public class JitEngine implements Engine {
+
+    //how often a block start has to be reached before it gets compiled
+    static final int HOT_THRESHOLD = 8;
+
+    //what the hidden classes implement, package private so only this package can see compiled code
+    interface CompiledBlock {
+        //runs at most budget instructions, at least 1, and returns how many it ran
+        int run(Chip chip, int budget);
+    }
+
+    private static final class Block {
+        //null when the block could not be compiled and runs on the interpreter
+        final CompiledBlock code;
+        final int start;
+        final int end;
+
+        Block(CompiledBlock code, int start, int end) {
+            this.code = code;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType CONSTRUCTOR = MethodType.methodType(void.class);
+
+    private final Chip chip;
+    //compiled block by start address
+    private final Block[] blocks;
+    //times each address was reached as a block start while not compiled
+    private final int[] hits;
+    //number of cached blocks that include each address, lets most data writes skip invalidation
+    private final int[] coverage;
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+
+    public JitEngine(Chip chip) {
+        this.chip = chip;
+        int size = chip.memory.length;
+        blocks = new Block[size];
+        hits = new int[size];
+        coverage = new int[size];
+    }
+
+    @Override
+    public int execute(int cycles) {
+        int executed = 0;
+        while(executed < cycles) {
+            int pc = chip.pc;
+            Block block = blocks[pc];
+            if(block == null) {
+                if(++hits[pc] < HOT_THRESHOLD) {
+                    chip.run();
+                    executed++;
+                    continue;
+                }
+                block = compile(pc);
+            }
+            if(block.code == null) {
+                chip.run();
+                executed++;
+            } else {
+                executed += block.code.run(chip, cycles - executed);
+            }
+        }
+        return executed;
+    }
+
+    @Override
+    public void invalidate(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(blocks.length - 1, to);
+        boolean covered = false;
+        for(int i = from; i <= to && !covered; i++) {
+            covered = coverage[i] != 0;
+        }
+        if(!covered) {
+            return;
+        }
+        // any block overlapping [from, to] starts at most one block length before from
+        int first = Math.max(0, from - BlockCompiler.MAX_INSTRUCTIONS * 2);
+        for(int start = first; start <= to; start++) {
+            Block block = blocks[start];
+            if(block != null && block.end >= from) {
+                evict(block);
+            }
+        }
+    }
+
+    /**
+     * Compiles the blocks where the analysis found loops, from what is in memory now. Those get hot anyway,
+     * compiling every block up front costs more than it saves on short runs
+     */
+    @Override
+    public void prepare(ProgramAnalysis analysis) {
+        for(int start : analysis.getLoopHeads()) {
+            if(start < blocks.length && blocks[start] == null) {
+                compile(start);
+            }
+        }
+    }
+
+    public long getCompiledBlocks() {
+        return compiledBlocks;
+    }
+
+    public long getInvalidatedBlocks() {
+        return invalidatedBlocks;
+    }
+
+    private Block compile(int pc) {
+        BlockCompiler.Result result = BlockCompiler.compile(chip.memory, pc, chip.machine, chip.getQuirks());
+        Block block;
+        if(result == null) {
+            // first instruction is left to the interpreter, remember that so we do not retry
+            block = new Block(null, pc, Math.min(pc + 1, blocks.length - 1));
+        } else {
+            block = new Block(define(result.classBytes), pc, result.end);
+            compiledBlocks++;
+        }
+        blocks[pc] = block;
+        for(int i = block.start; i <= block.end; i++) {
+            coverage[i]++;
+        }
+        return block;
+    }
+
+    private void evict(Block block) {
+        blocks[block.start] = null;
+        hits[block.start] = 0;
+        for(int i = block.start; i <= block.end; i++) {
+            coverage[i]--;
+        }
+        if(block.code != null) {
+            invalidatedBlocks++;
+        }
+    }
+
+    private static CompiledBlock define(byte[] classBytes) {
+        try {
+            // not strongly tied to our loader, so evicted blocks can be unloaded
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(classBytes, true);
+            return (CompiledBlock) hidden.findConstructor(hidden.lookupClass(), CONSTRUCTOR).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not define compiled block", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package chip;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The 16 CHIP-8 keys as one bit each (bit n = key n), written by input threads
+ * and read by the emulation thread without locking
+ */
+public class Keypad {
+
+    private final AtomicInteger state = new AtomicInteger();
+    //told about every change, on the thread that made it
+    private volatile Runnable listener;
+
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    public void press(int key) {
+        int current;
+        do {
+            current = state.get();
+        } while(!state.compareAndSet(current, current | (1 << key)));
+        changed();
+    }
+
+    public void release(int key) {
+        int current;
+        do {
+            current = state.get();
+        } while(!state.compareAndSet(current, current & ~(1 << key)));
+        changed();
+    }
+
+    public void set(int keys) {
+        state.set(keys & 0xFFFF);
+        changed();
+    }
+
+    private void changed() {
+        Runnable listener = this.listener;
+        if(listener != null) {
+            listener.run();
+        }
+    }
+
+    public int getState() {
+        return state.get();
+    }
+}
@@ -0,0 +1,928 @@
+package chip;
+
+import java.util.Arrays;
+
+/**
+ * Runs N CHIP-8 machines with the same program side by side, for rollouts where only seeds and inputs differ.
+ *
+ * Registers, I, stack and timers are stored as arrays of lanes (register r of lane l is V[r * lanes + l]).
+ * Lanes at the same pc form a group, and a group's opcode is decoded once and run as one loop over its
+ * lanes, drawing and keys included, so no lane is ever stepped on its own. A branch that goes different
+ * ways splits a group, and a group arriving at a pc where another one waits joins it.
+ *
+ * run() always goes on with the group at the lowest pc, and every lane has a budget of instructions, so
+ * lanes that took different sides of a branch wait for each other at the point where the code comes
+ * together again, the same way GPUs reconverge threads. Lanes are independent and keys and timers do not
+ * change during run(), so the order lanes run in changes nothing, every lane still runs exactly its own
+ * instructions. Lanes that hit an unsupported opcode drop out of their group and keep their last state.
+ *
+ * Code is fetched once per group because every lane's memory holds the same program. Addresses a store has
+ * written may differ between lanes, a group that gets there runs its lanes one by one.
+ */
+public class LockstepChips {
+
+    //execute() result when the lanes of a group go different ways
+    private static final int BRANCH = -1;
+    //any pc a jump can reach
+    private static final int PCS = 0x10000;
+
+    private final int lanes;
+
+    //structure of arrays machine state
+    private final int[] V;
+    private final int[] I;
+    private final int[] stack;
+    private final int[] stackPointer;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    private final int[] keys;
+
+    //per lane memory, display and random source
+    private final char[][] memory;
+    private final long[][] rows;
+    private final Rng[] random;
+
+    //the bytes every lane has, so groups fetch their code from one place
+    private final char[] code;
+    //false where a store may have left different bytes in different lanes, code is not used there
+    private final boolean[] shared;
+
+    //lanes that hit an unsupported opcode stop and keep their last state, pc pointing at the opcode
+    private final UnsupportedOpcodeException[] halted;
+    private final int[] haltedPc;
+
+    //groups of lanes at the same pc, a slot with no lanes is free
+    private final int[] groupPc;
+    private final int[][] groupLanes;
+    private final int[] groupSize;
+    //instructions a running group has run in this run()
+    private final int[] groupClock;
+    private final int[] free;
+    private int freeCount;
+
+    //running group at each pc and group waiting there for the next run(), -1 for none
+    private final int[] active;
+    private final int[] done;
+    //a bit per pc with a running group, lowestWord is the first word that may have one
+    private final long[] activePcs;
+    private int lowestWord;
+    private final int[] doneGroups;
+    private int doneCount;
+    //the clock of its group at which a lane has used up its budget, a group's lanes are sorted by it
+    private final int[] end;
+    //per lane results of a branch, indexed like the group's lanes
+    private final int[] targets;
+    //groups a split made, and room to merge two groups' lanes
+    private final int[] splitOff;
+    private final int[] merging;
+
+    //quirks bound the same way Chip binds them
+    private final int shiftSource;
+    private final int indexBase;
+    private final int indexMask;
+    private final int jumpMask;
+    private final int logicFlagMask;
+    private final boolean clipSprites;
+
+    private long groupSteps;
+    private long laneSteps;
+
+    public LockstepChips(int lanes) {
+        this(lanes, null);
+    }
+
+    //quirks null for the CHIP-8 default
+    public LockstepChips(int lanes, Quirks quirks) {
+        if(lanes <= 0) {
+            throw new IllegalArgumentException("Need at least one lane: " + lanes);
+        }
+        this.lanes = lanes;
+        V = new int[16 * lanes];
+        I = new int[lanes];
+        stack = new int[16 * lanes];
+        stackPointer = new int[lanes];
+        delayTimer = new int[lanes];
+        soundTimer = new int[lanes];
+        keys = new int[lanes];
+        memory = new char[lanes][];
+        rows = new long[lanes][];
+        random = new Rng[lanes];
+        halted = new UnsupportedOpcodeException[lanes];
+        haltedPc = new int[lanes];
+
+        Chip template = new Chip();
+        template.setQuirks(quirks);
+        template.init();
+        shiftSource = template.shiftSource;
+        indexBase = template.indexBase;
+        indexMask = template.indexMask;
+        jumpMask = template.jumpMask;
+        logicFlagMask = template.logicFlagMask;
+        clipSprites = template.clipSprites;
+        for(int l = 0; l < lanes; l++) {
+            // a freshly initialized chip gives the font
+            Chip chip = new Chip();
+            chip.init();
+            memory[l] = chip.memory;
+            rows[l] = chip.rows;
+            random[l] = chip.random;
+        }
+        code = template.memory;
+        shared = new boolean[code.length];
+        Arrays.fill(shared, true);
+
+        // every lane is in one group and groups are never empty, but for the one a branch is splitting
+        int slots = lanes + 1;
+        groupPc = new int[slots];
+        groupLanes = new int[slots][];
+        groupSize = new int[slots];
+        groupClock = new int[slots];
+        free = new int[slots];
+        for(int g = slots - 1; g >= 0; g--) {
+            free[freeCount++] = g;
+        }
+        active = new int[PCS];
+        done = new int[PCS];
+        Arrays.fill(active, -1);
+        Arrays.fill(done, -1);
+        activePcs = new long[PCS / 64];
+        lowestWord = activePcs.length;
+        doneGroups = new int[slots];
+        end = new int[lanes];
+        targets = new int[lanes];
+        splitOff = new int[slots];
+        merging = new int[lanes];
+        for(int l = 0; l < lanes; l++) {
+            finish(l, template.pc);
+        }
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    //loads the same program into every lane
+    public void loadProgram(byte[] program) {
+        for(int l = 0; l < lanes; l++) {
+            for(int i = 0; i < program.length; i++) {
+                memory[l][0x200 + i] = (char)(program[i] & 0xFF);
+            }
+        }
+        for(int i = 0; i < program.length; i++) {
+            code[0x200 + i] = (char)(program[i] & 0xFF);
+        }
+        Arrays.fill(shared, 0x200, 0x200 + program.length, true);
+    }
+
+    public void setSeed(int lane, long seed) {
+        random[lane].setSeed(seed);
+    }
+
+    public void setKeys(int lane, int keys) {
+        this.keys[lane] = keys & 0xFFFF;
+    }
+
+    //runs the given number of instructions on every lane
+    public void run(int cycles) {
+        if(cycles <= 0) {
+            return;
+        }
+        // every lane goes on from where the last run left it, with a new budget
+        for(int d = 0; d < doneCount; d++) {
+            int g = doneGroups[d];
+            done[groupPc[g]] = -1;
+            int[] ls = groupLanes[g];
+            for(int j = 0; j < groupSize[g]; j++) {
+                end[ls[j]] = cycles;
+            }
+            groupClock[g] = 0;
+            activate(g);
+        }
+        doneCount = 0;
+        int pc;
+        while((pc = lowestActive()) >= 0) {
+            int g = active[pc];
+            deactivate(g);
+            if(groupSize[g] > 1 && !isShared(pc)) {
+                separate(g);
+            } else {
+                runGroup(g);
+            }
+        }
+    }
+
+    //one instruction on every running lane
+    public void step() {
+        run(1);
+    }
+
+    public void tickTimers() {
+        for(int l = 0; l < lanes; l++) {
+            delayTimer[l] = Math.max(0, delayTimer[l] - 1);
+            soundTimer[l] = Math.max(0, soundTimer[l] - 1);
+        }
+    }
+
+    //runs one instruction on the lanes of group g, which is not in active, and moves them on
+    private void runGroup(int g) {
+        int pc = groupPc[g];
+        // a group where lanes may disagree has one lane, it reads its own memory
+        char[] from = isShared(pc) ? code : memory[groupLanes[g][0]];
+        int next;
+        int opcode;
+        try {
+            opcode = (from[pc] << 8) | from[pc + 1];
+            next = execute(groupLanes[g], groupSize[g], pc, opcode);
+        } catch (UnsupportedOpcodeException e) {
+            for(int j = 0; j < groupSize[g]; j++) {
+                int l = groupLanes[g][j];
+                halted[l] = e;
+                haltedPc[l] = pc;
+            }
+            release(g);
+            return;
+        } catch (RuntimeException e) {
+            // the lanes stay at the instruction that failed
+            park(g, pc);
+            throw e;
+        }
+        int k = groupSize[g];
+        groupSteps++;
+        laneSteps += k;
+        int clock = ++groupClock[g];
+        boolean spins = spins(opcode);
+        if(next == BRANCH) {
+            next = targets[0];
+            int same = 1;
+            for(int j = 1; j < k; j++) {
+                same += equal(targets[j], next);
+            }
+            if(same < k) {
+                split(g, pc, clock, spins, same * 2 >= k ? next : otherTarget(next, k));
+                return;
+            }
+        }
+        next &= PCS - 1;
+        if(next == pc && spins) {
+            // nothing changes until the lanes run out of budget
+            park(g, pc);
+            return;
+        }
+        groupPc[g] = next;
+        int[] ls = groupLanes[g];
+        if(end[ls[k - 1]] == clock) {
+            park(g, next);
+            return;
+        }
+        // the lanes are sorted by end, the ones done are in front
+        int stopped = 0;
+        while(end[ls[stopped]] == clock) {
+            stopped++;
+        }
+        if(stopped > 0) {
+            finish(ls, stopped, next);
+            System.arraycopy(ls, stopped, ls, 0, k - stopped);
+            groupSize[g] = k - stopped;
+        }
+        join(g);
+    }
+
+    //the first target that is not the given one
+    private int otherTarget(int target, int k) {
+        for(int j = 0; j < k; j++) {
+            if(targets[j] != target) {
+                return targets[j];
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Moves the lanes of group g, which ran the instruction at pc, each to its target. Lanes going to
+     * next stay in g, so a split moves the fewer lanes
+     */
+    private void split(int g, int pc, int clock, boolean spins, int next) {
+        int[] ls = groupLanes[g];
+        int k = groupSize[g];
+        int kept = 0;
+        int splits = 0;
+        int h = -1;
+        next &= PCS - 1;
+        // the lanes are sorted by end, the ones done are in front
+        int stopped = 0;
+        while(stopped < k && end[ls[stopped]] == clock) {
+            finish(ls[stopped], targets[stopped] & (PCS - 1));
+            stopped++;
+        }
+        for(int j = stopped; j < k; j++) {
+            int l = ls[j];
+            int target = targets[j] & (PCS - 1);
+            if(spins && target == pc) {
+                finish(l, target);
+            } else if(target == next) {
+                ls[kept++] = l;
+            } else {
+                // a branch has two ways most of the time, reuse the last group split off
+                if(h < 0 || groupPc[h] != target) {
+                    h = newGroup(target);
+                    groupClock[h] = clock;
+                    splitOff[splits++] = h;
+                }
+                append(h, l);
+            }
+        }
+        // every part keeps the order of g, so they stay sorted by end
+        if(kept == 0) {
+            release(g);
+        } else {
+            groupSize[g] = kept;
+            groupPc[g] = next;
+            join(g);
+        }
+        for(int i = 0; i < splits; i++) {
+            join(splitOff[i]);
+        }
+    }
+
+    /**
+     * Jumps and FX0A change no register, a lane they send back to the same instruction does the same
+     * for the rest of its budget
+     */
+    private static boolean spins(int opcode) {
+        int kind = opcode & 0xF000;
+        return kind == 0x1000 || kind == 0xB000 || (opcode & 0xF0FF) == 0xF00A;
+    }
+
+    //runs the lanes of group g, which is not in active, one by one because they may disagree on the code
+    private void separate(int g) {
+        int[] ls = groupLanes[g];
+        int k = groupSize[g];
+        groupSize[g] = 1;
+        for(int j = 1; j < k; j++) {
+            int s = newGroup(groupPc[g]);
+            groupClock[s] = groupClock[g];
+            append(s, ls[j]);
+            runGroup(s);
+        }
+        runGroup(g);
+    }
+
+    /**
+     * Puts group g, which is not in active, at its pc, merging it with the group already there. The
+     * smaller group's lanes move, their ends counted on the other group's clock
+     */
+    private void join(int g) {
+        int h = active[groupPc[g]];
+        if(h < 0) {
+            activate(g);
+            return;
+        }
+        if(groupSize[h] < groupSize[g]) {
+            deactivate(h);
+            int swap = g;
+            g = h;
+            h = swap;
+            activate(h);
+        }
+        int[] from = groupLanes[g];
+        int m = groupSize[g];
+        int shift = groupClock[h] - groupClock[g];
+        if(shift != 0) {
+            for(int j = 0; j < m; j++) {
+                end[from[j]] += shift;
+            }
+        }
+        int k = groupSize[h];
+        int[] into = reserve(h, m);
+        if(end[from[0]] >= end[into[k - 1]]) {
+            System.arraycopy(from, 0, into, k, m);
+        } else if(end[from[m - 1]] <= end[into[0]]) {
+            System.arraycopy(into, 0, into, m, k);
+            System.arraycopy(from, 0, into, 0, m);
+        } else {
+            // lanes that came to the same place at different times, merge by end
+            System.arraycopy(into, 0, merging, 0, k);
+            int a = 0;
+            int b = 0;
+            for(int j = 0; j < k + m; j++) {
+                if(b == m || (a < k && end[merging[a]] <= end[from[b]])) {
+                    into[j] = merging[a++];
+                } else {
+                    into[j] = from[b++];
+                }
+            }
+        }
+        groupSize[h] = k + m;
+        release(g);
+    }
+
+    //group g, which is not in active, has used up the budget of its lanes and waits at pc
+    private void park(int g, int pc) {
+        groupPc[g] = pc;
+        int d = done[pc];
+        if(d < 0) {
+            done[pc] = g;
+            doneGroups[doneCount++] = g;
+            return;
+        }
+        int size = groupSize[g];
+        System.arraycopy(groupLanes[g], 0, reserve(d, size), groupSize[d], size);
+        groupSize[d] += size;
+        release(g);
+    }
+
+    //lane l has used up its budget and waits at pc
+    private void finish(int l, int pc) {
+        append(doneAt(pc), l);
+    }
+
+    //the first count lanes of ls have used up their budget and wait at pc
+    private void finish(int[] ls, int count, int pc) {
+        int d = doneAt(pc);
+        System.arraycopy(ls, 0, reserve(d, count), groupSize[d], count);
+        groupSize[d] += count;
+    }
+
+    private int doneAt(int pc) {
+        int d = done[pc];
+        if(d < 0) {
+            d = newGroup(pc);
+            done[pc] = d;
+            doneGroups[doneCount++] = d;
+        }
+        return d;
+    }
+
+    private void activate(int g) {
+        int pc = groupPc[g];
+        active[pc] = g;
+        activePcs[pc >>> 6] |= 1L << pc;
+        lowestWord = Math.min(lowestWord, pc >>> 6);
+    }
+
+    private void deactivate(int g) {
+        int pc = groupPc[g];
+        active[pc] = -1;
+        activePcs[pc >>> 6] &= ~(1L << pc);
+    }
+
+    //the lowest pc with a running group, -1 once every lane is done
+    private int lowestActive() {
+        for(int w = lowestWord; w < activePcs.length; w++) {
+            long bits = activePcs[w];
+            if(bits != 0) {
+                lowestWord = w;
+                return (w << 6) | Long.numberOfTrailingZeros(bits);
+            }
+        }
+        lowestWord = activePcs.length;
+        return -1;
+    }
+
+    private boolean isShared(int pc) {
+        return pc + 1 < shared.length && shared[pc] && shared[pc + 1];
+    }
+
+    //true if every lane has the same count bytes from address on
+    private boolean isShared(int address, int count) {
+        if(address + count > shared.length) {
+            return false;
+        }
+        for(int i = address; i < address + count; i++) {
+            if(!shared[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newGroup(int pc) {
+        int g = free[--freeCount];
+        groupPc[g] = pc;
+        groupSize[g] = 0;
+        groupClock[g] = 0;
+        return g;
+    }
+
+    private void release(int g) {
+        groupSize[g] = 0;
+        free[freeCount++] = g;
+    }
+
+    private void append(int g, int lane) {
+        reserve(g, 1)[groupSize[g]++] = lane;
+    }
+
+    //the lanes of group g with room for more after its current size
+    private int[] reserve(int g, int more) {
+        int[] ls = groupLanes[g];
+        int needed = groupSize[g] + more;
+        if(ls == null || ls.length < needed) {
+            int[] grown = new int[Math.min(lanes, Math.max(needed, ls == null ? 8 : ls.length * 2))];
+            if(ls != null) {
+                System.arraycopy(ls, 0, grown, 0, groupSize[g]);
+            }
+            groupLanes[g] = grown;
+            ls = grown;
+        }
+        return ls;
+    }
+
+    /**
+     * Runs the opcode at pc on the first k lanes of ls. Returns where they all go next, or -1 when they
+     * may go different ways, with targets[j] for lane ls[j]
+     */
+    private int execute(int[] ls, int k, int pc, int opcode) {
+        final int n = lanes;
+        int x = (opcode & 0x0F00) >> 8;
+        int y = (opcode & 0x00F0) >> 4;
+        int nn = opcode & 0x00FF;
+        int nnn = opcode & 0x0FFF;
+        int vx = x * n;
+        int vy = y * n;
+        int vf = 0xF * n;
+
+        switch(opcode & 0xF000) {
+            case 0x0000:
+                // 0NE0 and 0NEE too, Chip.run() only looks at the low byte
+                if(nn == 0xE0) {
+                    for(int j = 0; j < k; j++) {
+                        Arrays.fill(rows[ls[j]], 0L);
+                    }
+                    return pc + 2;
+                } else if(nn == 0xEE) {
+                    for(int j = 0; j < k; j++) {
+                        int l = ls[j];
+                        int sp = checkStack(stackPointer[l] - 1);
+                        stackPointer[l] = sp;
+                        targets[j] = stack[sp * n + l] + 2;
+                    }
+                    return BRANCH;
+                }
+                throw new UnsupportedOpcodeException(opcode, pc);
+            case 0x1000:
+                return nnn;
+            case 0x2000:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    int sp = checkStack(stackPointer[l]);
+                    stack[sp * n + l] = pc;
+                    stackPointer[l] = sp + 1;
+                }
+                return nnn;
+            case 0x3000:
+                // skips add 2 more when the condition is 1, no branch per lane
+                for(int j = 0; j < k; j++) {
+                    targets[j] = pc + 2 + (equal(V[vx + ls[j]], nn) << 1);
+                }
+                return BRANCH;
+            case 0x4000:
+                for(int j = 0; j < k; j++) {
+                    targets[j] = pc + 4 - (equal(V[vx + ls[j]], nn) << 1);
+                }
+                return BRANCH;
+            case 0x5000:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    targets[j] = pc + 2 + (equal(V[vx + l], V[vy + l]) << 1);
+                }
+                return BRANCH;
+            case 0x6000:
+                for(int j = 0; j < k; j++) {
+                    V[vx + ls[j]] = nn;
+                }
+                break;
+            case 0x7000:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = (V[vx + l] + nn) & 0xFF;
+                }
+                break;
+            case 0x8000:
+                executeArithmetic(opcode, pc, ls, k, vx, vy, vf);
+                break;
+            case 0x9000:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    targets[j] = pc + 4 - (equal(V[vx + l], V[vy + l]) << 1);
+                }
+                return BRANCH;
+            case 0xA000:
+                for(int j = 0; j < k; j++) {
+                    I[ls[j]] = nnn;
+                }
+                break;
+            case 0xB000: {
+                int jump = ((opcode >> 8) & jumpMask) * n;
+                for(int j = 0; j < k; j++) {
+                    targets[j] = (nnn + (V[jump + ls[j]] & 0xFF)) & 0xFFFF;
+                }
+                return BRANCH;
+            }
+            case 0xC000:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = random[l].nextByte() & nn;
+                }
+                break;
+            case 0xD000:
+                draw(ls, k, vx, vy, opcode & 0x000F);
+                break;
+            case 0xE000:
+                if(nn == 0x9E) {
+                    for(int j = 0; j < k; j++) {
+                        int l = ls[j];
+                        targets[j] = pc + 2 + (((keys[l] >> V[vx + l]) & 1) << 1);
+                    }
+                } else if(nn == 0xA1) {
+                    for(int j = 0; j < k; j++) {
+                        int l = ls[j];
+                        targets[j] = pc + 4 - (((keys[l] >> V[vx + l]) & 1) << 1);
+                    }
+                } else {
+                    throw new UnsupportedOpcodeException(opcode, pc);
+                }
+                return BRANCH;
+            default:
+                if(nn == 0x0A) {
+                    // lanes with no key down stay on FX0A
+                    for(int j = 0; j < k; j++) {
+                        int l = ls[j];
+                        if(keys[l] != 0) {
+                            V[vx + l] = Integer.numberOfTrailingZeros(keys[l]);
+                            targets[j] = pc + 2;
+                        } else {
+                            targets[j] = pc;
+                        }
+                    }
+                    return BRANCH;
+                }
+                executeMisc(opcode, pc, ls, k, x, vx);
+                break;
+        }
+        return pc + 2;
+    }
+
+    //8XYN, VF is written before VX re-reads the registers, same order as Chip.run()
+    private void executeArithmetic(int opcode, int pc, int[] ls, int k, int vx, int vy, int vf) {
+        int source = ((opcode >> shiftSource) & 0xF) * lanes;
+        switch(opcode & 0x000F) {
+            case 0x0:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = V[vy + l];
+                }
+                break;
+            case 0x1:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = (V[vx + l] | V[vy + l]) & 0xFF;
+                    V[vf + l] &= logicFlagMask;
+                }
+                break;
+            case 0x2:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = V[vx + l] & V[vy + l];
+                    V[vf + l] &= logicFlagMask;
+                }
+                break;
+            case 0x3:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = V[vx + l] ^ V[vy + l];
+                    V[vf + l] &= logicFlagMask;
+                }
+                break;
+            case 0x4:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vf + l] = (V[vx + l] + V[vy + l]) >> 8;
+                    V[vx + l] = (V[vx + l] + V[vy + l]) & 0xFF;
+                }
+                break;
+            case 0x5:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vf + l] = 1 - ((V[vx + l] - V[vy + l]) >>> 31);
+                    V[vx + l] = (V[vx + l] - V[vy + l]) & 0xFF;
+                }
+                break;
+            case 0x6:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vf + l] = V[source + l] & 0x1;
+                    V[vx + l] = V[source + l] >> 1;
+                }
+                break;
+            case 0x7:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vf + l] = 1 - ((V[vy + l] - V[vx + l]) >>> 31);
+                    V[vx + l] = (V[vy + l] - V[vx + l]) & 0xFF;
+                }
+                break;
+            case 0xE:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vf + l] = V[source + l] >> 7;
+                    V[vx + l] = (V[source + l] << 1) & 0xFF;
+                }
+                break;
+            default:
+                throw new UnsupportedOpcodeException(opcode, pc);
+        }
+    }
+
+    //FX opcodes but FX0A
+    private void executeMisc(int opcode, int pc, int[] ls, int k, int x, int vx) {
+        switch(opcode & 0x00FF) {
+            case 0x07:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    V[vx + l] = delayTimer[l] & 0xFFFF;
+                }
+                break;
+            case 0x15:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    delayTimer[l] = V[vx + l];
+                }
+                break;
+            case 0x18:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    soundTimer[l] = V[vx + l];
+                }
+                break;
+            case 0x1E:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    I[l] = (I[l] + V[vx + l]) & 0xFFFF;
+                }
+                break;
+            case 0x29:
+                // each character takes up 5 bytes
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    I[l] = (0x050 + V[vx + l] * 5) & 0xFFFF;
+                }
+                break;
+            case 0x33:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    int value = V[vx + l];
+                    int i = I[l];
+                    char[] m = memory[l];
+                    m[i] = (char)(value / 100);
+                    m[i + 1] = (char)(value / 10 % 10);
+                    m[i + 2] = (char)(value % 10);
+                    written(i, i + 2);
+                }
+                break;
+            case 0x55:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    int i = I[l];
+                    char[] m = memory[l];
+                    for(int r = 0; r <= x; r++) {
+                        m[i + r] = (char)V[r * lanes + l];
+                    }
+                    written(i, i + x);
+                    I[l] = (i + ((x + indexBase) & indexMask)) & 0xFFFF;
+                }
+                break;
+            case 0x65:
+                for(int j = 0; j < k; j++) {
+                    int l = ls[j];
+                    int i = I[l];
+                    char[] m = memory[l];
+                    for(int r = 0; r <= x; r++) {
+                        V[r * lanes + l] = m[i + r];
+                    }
+                    I[l] = (i + ((x + indexBase) & indexMask)) & 0xFFFF;
+                }
+                break;
+            default:
+                throw new UnsupportedOpcodeException(opcode, pc);
+        }
+    }
+
+    //DXYN on the first k lanes of ls, Chip.draw() on the 64x32 display
+    private void draw(int[] ls, int k, int vx, int vy, int height) {
+        int vf = 0xF * lanes;
+        for(int j = 0; j < k; j++) {
+            int l = ls[j];
+            int x = V[vx + l];
+            int y = V[vy + l];
+            int lines = height;
+            long keep = -1L;
+            if(clipSprites) {
+                x &= Chip.WIDTH - 1;
+                y &= Chip.HEIGHT - 1;
+                lines = Math.min(height, Chip.HEIGHT - y);
+                keep = -1L >>> x;
+            }
+            long[] display = rows[l];
+            int i = I[l];
+            // sprites are in the program most of the time, read them where every lane does
+            char[] m = isShared(i, lines) ? code : memory[l];
+            long collision = 0;
+            for(int line = 0; line < lines; line++) {
+                long sprite = Long.rotateRight((long)(m[i + line] & 0xFF) << 56, x) & keep;
+                int row = (y + line) & (Chip.HEIGHT - 1);
+                collision |= display[row] & sprite;
+                display[row] ^= sprite;
+            }
+            V[vf + l] = collision != 0 ? 1 : 0;
+        }
+    }
+
+    //a store may have left different bytes in different lanes here
+    private void written(int from, int to) {
+        for(int address = from; address <= to; address++) {
+            shared[address] = false;
+        }
+    }
+
+    //the stack slot a call or return uses, failing like Chip's char[16] stack would
+    private static int checkStack(int slot) {
+        if(slot < 0 || slot >= 16) {
+            throw new ArrayIndexOutOfBoundsException("Stack slot " + slot);
+        }
+        return slot;
+    }
+
+    //1 if a == b, 0 otherwise, for values in 0..0xFFFF
+    private static int equal(int a, int b) {
+        return ((a ^ b) - 1) >>> 31;
+    }
+
+    public int getPc(int lane) {
+        if(halted[lane] != null) {
+            return haltedPc[lane];
+        }
+        for(int g = 0; g < groupSize.length; g++) {
+            int[] ls = groupLanes[g];
+            for(int j = 0; j < groupSize[g]; j++) {
+                if(ls[j] == lane) {
+                    return groupPc[g];
+                }
+            }
+        }
+        throw new IllegalStateException("Lane " + lane + " is in no group");
+    }
+
+    public int getI(int lane) {
+        return I[lane];
+    }
+
+    public int getRegister(int lane, int x) {
+        return V[x * lanes + lane];
+    }
+
+    public int getStackPointer(int lane) {
+        return stackPointer[lane];
+    }
+
+    public int getStack(int lane, int slot) {
+        return stack[slot * lanes + lane];
+    }
+
+    public int getDelayTimer(int lane) {
+        return delayTimer[lane];
+    }
+
+    public int getSoundTimer(int lane) {
+        return soundTimer[lane];
+    }
+
+    //packed display of a lane, one long per row. Do not modify
+    public long[] getDisplayRows(int lane) {
+        return rows[lane];
+    }
+
+    public char[] getMemory(int lane) {
+        return memory[lane];
+    }
+
+    //null while the lane is running
+    public UnsupportedOpcodeException getHaltReason(int lane) {
+        return halted[lane];
+    }
+
+    //groups the running lanes are in between runs, 1 while they are all in step
+    public int getGroups() {
+        return doneCount;
+    }
+
+    //opcodes decoded so far, one per group and instruction
+    public long getGroupSteps() {
+        return groupSteps;
+    }
+
+    //instructions run so far, summed over the lanes
+    public long getLaneSteps() {
+        return laneSteps;
+    }
+}
@@ -0,0 +1,72 @@
+package chip;
+
+/**
+ * Which CHIP-8 variant a Chip emulates: memory size, display size, bitplanes, RPL flags and default quirks.
+ * Set with Chip.setMachine() before init()
+ */
+public enum Machine {
+
+    //the original 64x32 machine with 4 kB of memory
+    CHIP8(4096, 64, 32, 1, 0, Quirks.MODERN),
+
+    //SUPER-CHIP 1.1: 128x64 hi-res mode, scrolling, 16x16 sprites, big font and 8 RPL flags
+    SCHIP(4096, 128, 64, 1, 8, Quirks.SCHIP),
+
+    //XO-CHIP: SUPER-CHIP plus 64 kB of memory, two bitplanes, 16 flags and a few more opcodes
+    XOCHIP(65536, 128, 64, 2, 16, Quirks.XOCHIP);
+
+    final int memorySize;
+    final int width;
+    final int height;
+    final int planes;
+    final int flags;
+    //profile a Chip uses unless setQuirks() picks another
+    final Quirks quirks;
+
+    Machine(int memorySize, int width, int height, int planes, int flags, Quirks quirks) {
+        this.memorySize = memorySize;
+        this.width = width;
+        this.height = height;
+        this.planes = planes;
+        this.flags = flags;
+        this.quirks = quirks;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    //display size in pixels, in hi-res mode for the extended machines
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlanes() {
+        return planes;
+    }
+
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    //case insensitive lookup for command line options such as -Dchip8.machine
+    public static Machine parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace("-", ""));
+    }
+
+    //guesses the machine from a ROM file name: .sc8 for SUPER-CHIP, .xo8 for XO-CHIP
+    public static Machine forFile(String name) {
+        String lower = name.toLowerCase();
+        if(lower.endsWith(".xo8")) {
+            return XOCHIP;
+        }
+        if(lower.endsWith(".sc8")) {
+            return SCHIP;
+        }
+        return CHIP8;
+    }
+}
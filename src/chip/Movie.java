@@ -0,0 +1,178 @@
+package chip;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Key input of a run, recorded per 60hz frame so it can be replayed bit exactly (see MoviePlayer).
+ *
+ * With the same program, RNG seed and instruction rate, a run only depends on the keys latched
+ * after every frame, so the movie stores just the frames where the key state changed.
+ * Binary format (big endian): magic "C8MV", version, machine, quirks, seed, instructions per second, CRC32 of the
+ * program, frame count, event count, then (frame, keys) per event.
+ */
+public class Movie {
+
+    private static final int MAGIC = 0x43384D56;
+    private static final int VERSION = 3;
+
+    private final Machine machine;
+    private final Quirks quirks;
+    private final long seed;
+    private final int instructionsPerSecond;
+    private final long programCrc;
+
+    //frames recorded so far
+    private int frames;
+    //frame numbers and key masks of the changes, growing like an ArrayList
+    private int[] eventFrames = new int[64];
+    private int[] eventKeys = new int[64];
+    private int events;
+    private int lastKeys;
+
+    public Movie(long seed, int instructionsPerSecond, byte[] program) {
+        this(Machine.CHIP8, seed, instructionsPerSecond, program);
+    }
+
+    public Movie(Machine machine, long seed, int instructionsPerSecond, byte[] program) {
+        this(machine, machine.getQuirks(), seed, instructionsPerSecond, program);
+    }
+
+    public Movie(Machine machine, Quirks quirks, long seed, int instructionsPerSecond, byte[] program) {
+        this(machine, quirks, seed, instructionsPerSecond, crc(program));
+    }
+
+    private Movie(Machine machine, Quirks quirks, long seed, int instructionsPerSecond, long programCrc) {
+        if(instructionsPerSecond <= 0) {
+            throw new IllegalArgumentException("Movies need a fixed instruction rate: " + instructionsPerSecond);
+        }
+        this.machine = machine;
+        this.quirks = quirks;
+        this.seed = seed;
+        this.instructionsPerSecond = instructionsPerSecond;
+        this.programCrc = programCrc;
+    }
+
+    //call once per frame with the keys latched after it
+    public void recordFrame(int keys) {
+        keys &= 0xFFFF;
+        if(keys != lastKeys) {
+            if(events == eventFrames.length) {
+                eventFrames = Arrays.copyOf(eventFrames, events * 2);
+                eventKeys = Arrays.copyOf(eventKeys, events * 2);
+            }
+            eventFrames[events] = frames;
+            eventKeys[events] = keys;
+            events++;
+            lastKeys = keys;
+        }
+        frames++;
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getEvents() {
+        return events;
+    }
+
+    int getEventFrame(int event) {
+        return eventFrames[event];
+    }
+
+    int getEventKeys(int event) {
+        return eventKeys[event];
+    }
+
+    public boolean matches(byte[] program) {
+        return crc(program) == programCrc;
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(machine.ordinal());
+        out.writeByte(quirks.ordinal());
+        out.writeLong(seed);
+        out.writeInt(instructionsPerSecond);
+        out.writeInt((int)programCrc);
+        out.writeInt(frames);
+        out.writeInt(events);
+        for(int i = 0; i < events; i++) {
+            out.writeInt(eventFrames[i]);
+            out.writeShort(eventKeys[i]);
+        }
+        out.flush();
+    }
+
+    public static Movie read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a CHIP-8 movie");
+        }
+        int version = in.readUnsignedByte();
+        if(version != VERSION) {
+            throw new IOException("Unsupported movie version " + version);
+        }
+        int machine = in.readUnsignedByte();
+        if(machine >= Machine.values().length) {
+            throw new IOException("Unknown machine " + machine);
+        }
+        int quirks = in.readUnsignedByte();
+        if(quirks >= Quirks.values().length) {
+            throw new IOException("Unknown quirks " + quirks);
+        }
+        long seed = in.readLong();
+        int instructionsPerSecond = in.readInt();
+        long programCrc = in.readInt() & 0xFFFFFFFFL;
+        int frames = in.readInt();
+        int events = in.readInt();
+        if(instructionsPerSecond <= 0 || frames < 0 || events < 0 || events > frames) {
+            throw new IOException("Corrupt movie header");
+        }
+        Movie movie = new Movie(Machine.values()[machine], Quirks.values()[quirks], seed, instructionsPerSecond, programCrc);
+        movie.eventFrames = new int[Math.max(1, events)];
+        movie.eventKeys = new int[Math.max(1, events)];
+        for(int i = 0; i < events; i++) {
+            int frame = in.readInt();
+            if(frame < 0 || frame >= frames || (i > 0 && frame <= movie.eventFrames[i - 1])) {
+                throw new IOException("Corrupt movie event " + i);
+            }
+            movie.eventFrames[i] = frame;
+            movie.eventKeys[i] = in.readUnsignedShort();
+        }
+        movie.events = events;
+        movie.frames = frames;
+        movie.lastKeys = events == 0 ? 0 : movie.eventKeys[events - 1];
+        return movie;
+    }
+
+    private static long crc(byte[] program) {
+        CRC32 crc = new CRC32();
+        crc.update(program);
+        return crc.getValue();
+    }
+}
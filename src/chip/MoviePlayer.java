@@ -0,0 +1,92 @@
+package chip;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Replays a Movie headless and as fast as the host allows.
+ *
+ * Every frame runs the same instruction count the Scheduler gave it while recording,
+ * ticks the timers and then latches the recorded keys, so the final state matches the
+ * recorded run on any engine.
+ */
+public class MoviePlayer {
+
+    private MoviePlayer() {
+    }
+
+    /**
+     * Replays the movie on a chip that has the program loaded and nothing run yet.
+     * Returns the number of instructions executed
+     */
+    public static long play(Chip chip, Movie movie) {
+        return play(chip, movie, null);
+    }
+
+    //same, telling the listener about every frame like the Scheduler does, null for none
+    public static long play(Chip chip, Movie movie, Scheduler.FrameListener listener) {
+        if(chip.getMachine() != movie.getMachine()) {
+            throw new IllegalArgumentException("Movie was recorded on " + movie.getMachine() + ", not " + chip.getMachine());
+        }
+        if(chip.getQuirks() != movie.getQuirks()) {
+            throw new IllegalArgumentException("Movie was recorded with " + movie.getQuirks() + " quirks, not " + chip.getQuirks());
+        }
+        chip.setSeed(movie.getSeed());
+        chip.setKeys(0);
+        int hz = movie.getInstructionsPerSecond();
+        int remainder = 0;
+        int event = 0;
+        long executed = 0;
+        for(int frame = 0; frame < movie.getFrames(); frame++) {
+            // same split of the instruction rate into frames as Scheduler.cyclesForFrame()
+            int total = hz + remainder;
+            remainder = total % Scheduler.FRAME_HZ;
+            executed += chip.execute(total / Scheduler.FRAME_HZ);
+            chip.tickTimers();
+            if(listener != null) {
+                listener.frame(chip, true);
+            }
+            if(event < movie.getEvents() && movie.getEventFrame(event) == frame) {
+                chip.setKeys(movie.getEventKeys(event));
+                event++;
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Usage: java chip.MoviePlayer <movie> <rom> [engine]
+     * Prints the final pc and display hash, which match the recorded run
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: MoviePlayer <movie> <rom> [switch|decoded|jit]");
+            System.exit(1);
+        }
+        Movie movie;
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(args[0])))) {
+            movie = Movie.read(in);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(args[1]));
+        if(!movie.matches(program)) {
+            System.err.println("Movie was not recorded with " + args[1]);
+            System.exit(1);
+        }
+
+        Chip chip = new Chip();
+        chip.setMachine(movie.getMachine());
+        chip.setQuirks(movie.getQuirks());
+        chip.init();
+        chip.setEngine(EngineType.parse(args.length > 2 ? args[2] : "decoded"));
+        chip.loadProgram(program);
+        long start = System.nanoTime();
+        long executed = play(chip, movie);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d frames, %d key changes, %d instructions in %.1f ms",
+                movie.getFrames(), movie.getEvents(), executed, elapsed / 1e6));
+        System.out.println(String.format("pc=%03X hash=%016X", chip.getPc(), chip.displayHash()));
+    }
+}
@@ -0,0 +1,238 @@
+package chip;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for a running Chip: instructions, frames, draw calls and pixels, paint time and,
+ * when detailed, the opcode mix and a pc histogram.
+ *
+ * Attach with Chip.setProfiler() and toggle at any time with setEnabled() / setDetailed(), also over JMX.
+ * The basic counters are updated once per execute() call, draw and frame, so they work on every engine
+ * and cost nothing per instruction. Detailed profiling needs to see every instruction, so while it is on
+ * the Chip runs on the reference interpreter, like tracing.
+ *
+ * Counters are plain primitives written by the emulation thread; readers (JMX) may see values that are
+ * a frame old. Paint time comes from the UI thread and is kept in LongAdders.
+ */
+public class Profiler implements ProfilerMXBean {
+
+    private static final long SECOND_NANOS = 1_000_000_000L;
+
+    private volatile boolean enabled = true;
+    private volatile boolean detailed;
+
+    private long instructions;
+    private long frames;
+    private long drawCalls;
+    private long pixelsDrawn;
+    private final long[] opcodeMix = new long[16];
+    //one counter per memory address, resized by attach()
+    private long[] addresses = new long[4096];
+
+    //instructions count at the last frame boundary
+    private long frameStartInstructions;
+    private long instructionsLastFrame;
+
+    //frames per second over the last whole second
+    private long windowStart = System.nanoTime();
+    private long windowFrames;
+    private volatile double framesPerSecond;
+
+    private final LongAdder paints = new LongAdder();
+    private final LongAdder paintNanos = new LongAdder();
+
+    //registers this profiler with the platform MBean server
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("chip8:type=Profiler"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the profiler", e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public boolean isDetailed() {
+        return detailed;
+    }
+
+    @Override
+    public void setDetailed(boolean detailed) {
+        this.detailed = detailed;
+    }
+
+    //called by Chip.setProfiler() and Chip.init(), sizes the pc histogram to the chip's memory
+    void attach(int memorySize) {
+        if(addresses.length != memorySize) {
+            addresses = new long[memorySize];
+        }
+    }
+
+    //called by Chip.execute()
+    void instructions(int count) {
+        instructions += count;
+    }
+
+    //called before each instruction while detailed
+    void instruction(int pc, int opcode) {
+        opcodeMix[opcode >>> 12]++;
+        addresses[pc]++;
+    }
+
+    //called by Chip.draw() with the number of set sprite pixels
+    void draw(int pixels) {
+        drawCalls++;
+        pixelsDrawn += pixels;
+    }
+
+    //called by Chip.tickTimers(), once per 60hz frame
+    void frame() {
+        frames++;
+        instructionsLastFrame = instructions - frameStartInstructions;
+        frameStartInstructions = instructions;
+
+        FrameEvent event = new FrameEvent();
+        if(event.shouldCommit()) {
+            event.frame = frames;
+            event.instructions = instructionsLastFrame;
+            event.drawCalls = drawCalls;
+            event.pixelsDrawn = pixelsDrawn;
+            event.commit();
+        }
+
+        windowFrames++;
+        long now = System.nanoTime();
+        if(now - windowStart >= SECOND_NANOS) {
+            framesPerSecond = windowFrames * (double)SECOND_NANOS / (now - windowStart);
+            windowStart = now;
+            windowFrames = 0;
+        }
+    }
+
+    //called by the UI after painting a frame
+    public void paint(long nanos) {
+        if(enabled) {
+            paints.increment();
+            paintNanos.add(nanos);
+        }
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions;
+    }
+
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public long getInstructionsLastFrame() {
+        return instructionsLastFrame;
+    }
+
+    @Override
+    public double getInstructionsPerFrame() {
+        long frames = this.frames;
+        return frames == 0 ? 0 : (double)frameStartInstructions / frames;
+    }
+
+    @Override
+    public long getDrawCalls() {
+        return drawCalls;
+    }
+
+    @Override
+    public long getPixelsDrawn() {
+        return pixelsDrawn;
+    }
+
+    @Override
+    public long getPaints() {
+        return paints.sum();
+    }
+
+    @Override
+    public double getAveragePaintMicros() {
+        long count = paints.sum();
+        return count == 0 ? 0 : paintNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public long[] getOpcodeMix() {
+        return opcodeMix.clone();
+    }
+
+    @Override
+    public String[] getHotAddresses() {
+        return getHotAddresses(16);
+    }
+
+    //the given number of most executed addresses as "ADDR=count", most executed first
+    public String[] getHotAddresses(int count) {
+        long[] snapshot = addresses.clone();
+        // count in the high bits, address in the low 16, so one sort orders by count
+        long[] keyed = new long[snapshot.length];
+        int used = 0;
+        for(int pc = 0; pc < snapshot.length; pc++) {
+            if(snapshot[pc] != 0) {
+                keyed[used++] = (Math.min(snapshot[pc], Long.MAX_VALUE >>> 16) << 16) | pc;
+            }
+        }
+        Arrays.sort(keyed, 0, used);
+        // 3 hex digits for 4 KB of memory, 4 for XO-CHIP's 64 KB
+        String format = snapshot.length > 0x1000 ? "%04X=%d" : "%03X=%d";
+        String[] hot = new String[Math.min(count, used)];
+        for(int i = 0; i < hot.length; i++) {
+            long entry = keyed[used - 1 - i];
+            hot[i] = String.format(format, entry & 0xFFFF, entry >>> 16);
+        }
+        return hot;
+    }
+
+    @Override
+    public void reset() {
+        instructions = 0;
+        frames = 0;
+        drawCalls = 0;
+        pixelsDrawn = 0;
+        Arrays.fill(opcodeMix, 0);
+        Arrays.fill(addresses, 0);
+        frameStartInstructions = 0;
+        instructionsLastFrame = 0;
+        windowStart = System.nanoTime();
+        windowFrames = 0;
+        framesPerSecond = 0;
+        paints.reset();
+        paintNanos.reset();
+    }
+
+    //one line summary for logs
+    @Override
+    public String toString() {
+        return String.format("%d instructions, %d frames (%.1f fps, %.1f instructions/frame), %d draws, %d pixels, paint %.1f us",
+                instructions, frames, framesPerSecond, getInstructionsPerFrame(), drawCalls, pixelsDrawn, getAveragePaintMicros());
+    }
+}
@@ -0,0 +1,41 @@
+package chip;
+
+/**
+ * JMX view of a Profiler, registered by Profiler.register() as chip8:type=Profiler
+ */
+public interface ProfilerMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    boolean isDetailed();
+
+    void setDetailed(boolean detailed);
+
+    long getInstructions();
+
+    long getFrames();
+
+    double getFramesPerSecond();
+
+    long getInstructionsLastFrame();
+
+    double getInstructionsPerFrame();
+
+    long getDrawCalls();
+
+    long getPixelsDrawn();
+
+    long getPaints();
+
+    double getAveragePaintMicros();
+
+    //instructions per opcode class 0x0-0xF, only counted while detailed
+    long[] getOpcodeMix();
+
+    //the most executed addresses as "ADDR=count", only counted while detailed
+    String[] getHotAddresses();
+
+    void reset();
+}
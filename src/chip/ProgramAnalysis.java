@@ -0,0 +1,681 @@
+package chip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What can be told about a program without running it: which bytes are code, the basic blocks and their
+ * successors, what is left over as data, and what would go wrong.
+ *
+ * Code is found by following the control flow from 0x200: jumps, calls and both ways of every skip.
+ * BNNN is only followed to NNN, since the register is not known. While following it, I is tracked where it
+ * is a constant (ANNN, F000 NNNN and the FX55/FX65 steps on top), so FX33, FX55 and 5XY2 that write into
+ * code are found. Analyses are cached by the program's SHA-1, machine and quirks; Chip.setAnalysis() hands
+ * one to the engines to decode or compile the code before it runs.
+ */
+public final class ProgramAnalysis {
+
+    public enum Kind {
+        //an opcode Chip.run() throws UnsupportedOpcodeException for, the program would stop there
+        UNSUPPORTED,
+        //FX33, FX55 or 5XY2 writing into code
+        SELF_MODIFYING,
+        //a store through an I that is not known
+        UNKNOWN_STORE,
+        //BNNN, only NNN itself is followed
+        INDIRECT_JUMP,
+        //control flow leaving the program, into the interpreter area or past the end
+        OUTSIDE_PROGRAM
+    }
+
+    public static final class Finding {
+        private final Kind kind;
+        private final int address;
+        private final String detail;
+
+        Finding(Kind kind, int address, String detail) {
+            this.kind = kind;
+            this.address = address;
+            this.detail = detail;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%03X %s: %s", address, kind.name().toLowerCase().replace('_', ' '), detail);
+        }
+    }
+
+    public static final int START = 0x200;
+
+    private static final int CACHE_SIZE = 64;
+    private static final Map<String, ProgramAnalysis> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, ProgramAnalysis>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ProgramAnalysis> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    //I at the entry of an instruction: not reached yet, or reached with an I that is not known
+    private static final int UNVISITED = -2;
+    private static final int UNKNOWN = -1;
+
+    private final byte[] program;
+    private final Machine machine;
+    private final Quirks quirks;
+    private final String sha1;
+    private final int end;
+
+    //per address up to the end of the program: an instruction starts here, the byte belongs to one, a block starts here
+    private final boolean[] starts;
+    private final boolean[] code;
+    private final boolean[] leaders;
+    //I on entry to each instruction, the meet over every path followed
+    private final int[] entryI;
+
+    private int[] blockStarts;
+    private int[] blockEnds;
+    private int[][] successors;
+    private final Map<Integer, Finding> findings = new TreeMap<>();
+
+    private ProgramAnalysis(byte[] program, Machine machine, Quirks quirks, String sha1) {
+        this.program = program.clone();
+        this.machine = machine;
+        this.quirks = quirks;
+        this.sha1 = sha1;
+        end = Math.min(START + program.length, machine.memorySize);
+        // nothing past the program is ever code, so the arrays end there, plus room for a last long instruction
+        starts = new boolean[end + 4];
+        code = new boolean[end + 4];
+        leaders = new boolean[end + 4];
+        entryI = new int[end + 4];
+        Arrays.fill(entryI, UNVISITED);
+    }
+
+    /**
+     * The analysis of the program as loaded at 0x200, null quirks for the machine's default.
+     * Repeated calls for the same bytes, machine and quirks return the cached analysis
+     */
+    public static ProgramAnalysis of(byte[] program, Machine machine, Quirks quirks) {
+        Quirks bound = quirks != null ? quirks : machine.quirks;
+        String sha1 = sha1(program);
+        String key = sha1 + ' ' + machine + ' ' + bound;
+        ProgramAnalysis analysis = CACHE.get(key);
+        if(analysis == null) {
+            analysis = new ProgramAnalysis(program, machine, bound, sha1);
+            analysis.analyze();
+            CACHE.put(key, analysis);
+        }
+        return analysis;
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+
+    public boolean isInstruction(int address) {
+        return address >= 0 && address < starts.length && starts[address];
+    }
+
+    public boolean isCode(int address) {
+        return address >= 0 && address < code.length && code[address];
+    }
+
+    //start addresses of the basic blocks, ascending
+    public int[] getBlockStarts() {
+        return blockStarts.clone();
+    }
+
+    //last instruction of block i
+    public int getBlockEnd(int block) {
+        return blockEnds[block];
+    }
+
+    //blocks control can go to from block i, as start addresses
+    public int[] getSuccessors(int block) {
+        return successors[block].clone();
+    }
+
+    //block starts some block at or after them can go back to, where loops begin
+    public int[] getLoopHeads() {
+        boolean[] heads = new boolean[starts.length];
+        int count = 0;
+        for(int i = 0; i < blockStarts.length; i++) {
+            for(int target : successors[i]) {
+                if(target <= blockEnds[i] && target >= 0 && target < heads.length && starts[target] && !heads[target]) {
+                    heads[target] = true;
+                    count++;
+                }
+            }
+        }
+        int[] loops = new int[count];
+        for(int address = 0, i = 0; i < count; address++) {
+            if(heads[address]) {
+                loops[i++] = address;
+            }
+        }
+        return loops;
+    }
+
+    //runs of program bytes that are not code, as {first, last} pairs
+    public List<int[]> getDataRegions() {
+        List<int[]> regions = new ArrayList<>();
+        for(int address = START; address < end; address++) {
+            if(!code[address]) {
+                int first = address;
+                while(address + 1 < end && !code[address + 1]) {
+                    address++;
+                }
+                regions.add(new int[] { first, address });
+            }
+        }
+        return regions;
+    }
+
+    public List<Finding> getFindings() {
+        return new ArrayList<>(findings.values());
+    }
+
+    //false when the program can reach an opcode that would stop it
+    public boolean isRunnable() {
+        for(Finding finding : findings.values()) {
+            if(finding.kind == Kind.UNSUPPORTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void analyze() {
+        List<int[]> work = new ArrayList<>();
+        leaders[START] = true;
+        work.add(new int[] { START, UNKNOWN });
+        while(!work.isEmpty()) {
+            int[] item = work.remove(work.size() - 1);
+            follow(item[0], item[1], work);
+        }
+        findStores();
+        buildBlocks();
+    }
+
+    //runs along straight line code from address with the given I, queueing the branches
+    private void follow(int address, int I, List<int[]> work) {
+        while(true) {
+            if(address < START || address + 1 >= end) {
+                finding(Kind.OUTSIDE_PROGRAM, address, "control reaches " + hex(address, 3));
+                return;
+            }
+            int seen = entryI[address];
+            if(seen == UNKNOWN || seen == I) {
+                return;
+            }
+            // a second, different I means it is not known here
+            I = seen == UNVISITED ? I : UNKNOWN;
+            entryI[address] = I;
+            starts[address] = true;
+            int opcode = opcode(address);
+            int length = length(address);
+            for(int i = 0; i < length; i++) {
+                code[address + i] = true;
+            }
+            if(!isSupported(opcode)) {
+                finding(Kind.UNSUPPORTED, address, "opcode " + hex(opcode, 4));
+                return;
+            }
+            int next = address + length;
+            int nnn = opcode & 0x0FFF;
+            switch(opcode & 0xF000) {
+                case 0x0000:
+                    if((opcode & 0xFF) == 0xEE || opcode == 0x00FD) {
+                        return;
+                    }
+                    break;
+                case 0x1000:
+                    branch(nnn, I, work);
+                    return;
+                case 0x2000:
+                    branch(nnn, I, work);
+                    // the subroutine may leave any I behind
+                    branch(next, UNKNOWN, work);
+                    return;
+                case 0xB000:
+                    finding(Kind.INDIRECT_JUMP, address, "jumps to " + hex(nnn, 3) + " plus V"
+                            + (quirks.jumpVx ? Integer.toHexString((opcode >> 8) & 0xF).toUpperCase() : "0"));
+                    branch(nnn, I, work);
+                    return;
+                case 0xA000:
+                    I = nnn;
+                    break;
+                default:
+                    break;
+            }
+            if(isSkip(opcode)) {
+                branch(next, I, work);
+                branch(next + length(next), I, work);
+                return;
+            }
+            I = indexAfter(opcode, address, I);
+            address = next;
+        }
+    }
+
+    private void branch(int target, int I, List<int[]> work) {
+        if(target >= 0 && target < leaders.length) {
+            leaders[target] = true;
+        }
+        work.add(new int[] { target, I });
+    }
+
+    //I after the instruction, given I before it
+    private int indexAfter(int opcode, int address, int I) {
+        int x = (opcode >> 8) & 0xF;
+        if(machine == Machine.XOCHIP && opcode == 0xF000) {
+            return opcode(address + 2);
+        }
+        if((opcode & 0xF000) != 0xF000) {
+            return I;
+        }
+        switch(opcode & 0xFF) {
+            case 0x1E:
+            case 0x29:
+            case 0x30:
+                return UNKNOWN;
+            case 0x55:
+            case 0x65:
+                if(I == UNKNOWN || quirks.indexStep < 0) {
+                    return I;
+                }
+                return (I + x + quirks.indexStep) & 0xFFFF;
+            default:
+                return I;
+        }
+    }
+
+    //checks every reachable store against the code found, once all of it is known
+    private void findStores() {
+        for(int address = START; address < end; address++) {
+            if(!starts[address]) {
+                continue;
+            }
+            int opcode = opcode(address);
+            int x = (opcode >> 8) & 0xF;
+            int bytes;
+            if((opcode & 0xF0FF) == 0xF033) {
+                bytes = 3;
+            } else if((opcode & 0xF0FF) == 0xF055) {
+                bytes = x + 1;
+            } else if(machine == Machine.XOCHIP && (opcode & 0xF00F) == 0x5002) {
+                bytes = Math.abs(((opcode >> 4) & 0xF) - x) + 1;
+            } else {
+                continue;
+            }
+            int I = entryI[address];
+            if(I == UNKNOWN) {
+                finding(Kind.UNKNOWN_STORE, address, "I is not known");
+                continue;
+            }
+            for(int i = 0; i < bytes; i++) {
+                int target = (I + i) & (machine.memorySize - 1);
+                if(target < end && code[target]) {
+                    finding(Kind.SELF_MODIFYING, address, "writes code at " + hex(target, 3));
+                    break;
+                }
+            }
+        }
+    }
+
+    private void buildBlocks() {
+        List<Integer> firsts = new ArrayList<>();
+        List<Integer> lasts = new ArrayList<>();
+        List<int[]> next = new ArrayList<>();
+        for(int address = START; address < end; address++) {
+            if(!starts[address] || !(leaders[address] || !reachedByFallthrough(address))) {
+                continue;
+            }
+            int last = address;
+            while(true) {
+                int opcode = opcode(last);
+                int following = last + length(last);
+                if(endsBlock(opcode) || following >= end || !starts[following] || leaders[following]) {
+                    break;
+                }
+                last = following;
+            }
+            firsts.add(address);
+            lasts.add(last);
+            next.add(successorsOf(last));
+        }
+        blockStarts = new int[firsts.size()];
+        blockEnds = new int[firsts.size()];
+        successors = new int[firsts.size()][];
+        for(int i = 0; i < blockStarts.length; i++) {
+            blockStarts[i] = firsts.get(i);
+            blockEnds[i] = lasts.get(i);
+            successors[i] = next.get(i);
+        }
+    }
+
+    //false for an instruction only reached as the next one after another, which its block already holds
+    private boolean reachedByFallthrough(int address) {
+        for(int back = 2; back <= 4 && address - back >= START; back += 2) {
+            int before = address - back;
+            if(starts[before] && before + length(before) == address && !endsBlock(opcode(before))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean endsBlock(int opcode) {
+        switch(opcode & 0xF000) {
+            case 0x1000:
+            case 0x2000:
+            case 0xB000:
+                return true;
+            case 0x0000:
+                return (opcode & 0xFF) == 0xEE || opcode == 0x00FD || !isSupported(opcode);
+            default:
+                return isSkip(opcode) || !isSupported(opcode);
+        }
+    }
+
+    private int[] successorsOf(int address) {
+        int opcode = opcode(address);
+        int next = address + length(address);
+        int nnn = opcode & 0x0FFF;
+        if(!isSupported(opcode)) {
+            return new int[0];
+        }
+        switch(opcode & 0xF000) {
+            case 0x1000:
+            case 0xB000:
+                return new int[] { nnn };
+            case 0x2000:
+                return new int[] { nnn, next };
+            case 0x0000:
+                if((opcode & 0xFF) == 0xEE || opcode == 0x00FD) {
+                    return new int[0];
+                }
+                return new int[] { next };
+            default:
+                if(isSkip(opcode)) {
+                    return new int[] { next, next + length(next) };
+                }
+                return new int[] { next };
+        }
+    }
+
+    private boolean isSkip(int opcode) {
+        switch(opcode & 0xF000) {
+            case 0x3000:
+            case 0x4000:
+                return true;
+            case 0x5000:
+            case 0x9000:
+                return (opcode & 0xF) == 0;
+            case 0xE000:
+                return (opcode & 0xFF) == 0x9E || (opcode & 0xFF) == 0xA1;
+            default:
+                return false;
+        }
+    }
+
+    //the same opcodes Chip.run() and runExtended() take on this machine
+    private boolean isSupported(int opcode) {
+        if(DecodedEngine.decode(opcode) >>> 24 != DecodedEngine.FALLBACK) {
+            return true;
+        }
+        if(machine == Machine.CHIP8) {
+            return false;
+        }
+        boolean xo = machine == Machine.XOCHIP;
+        int x = (opcode >> 8) & 0xF;
+        return (opcode & 0xFFF0) == 0x00C0
+                || (xo && (opcode & 0xFFF0) == 0x00D0)
+                || (opcode >= 0x00FB && opcode <= 0x00FF)
+                || (xo && ((opcode & 0xF00F) == 0x5002 || (opcode & 0xF00F) == 0x5003))
+                || (xo && (opcode == 0xF000 || (opcode & 0xF0FF) == 0xF001 || opcode == 0xF002 || (opcode & 0xF0FF) == 0xF03A))
+                || (opcode & 0xF0FF) == 0xF030
+                || (((opcode & 0xF0FF) == 0xF075 || (opcode & 0xF0FF) == 0xF085) && x < machine.flags);
+    }
+
+    //bytes the instruction at address takes, XO-CHIP's F000 NNNN is 4
+    private int length(int address) {
+        return machine == Machine.XOCHIP && address + 1 < end && opcode(address) == 0xF000 ? 4 : 2;
+    }
+
+    private int opcode(int address) {
+        return (at(address) << 8) | at(address + 1);
+    }
+
+    //the program as loaded, zero outside of it
+    private int at(int address) {
+        int offset = address - START;
+        return offset >= 0 && offset < program.length ? program[offset] & 0xFF : 0;
+    }
+
+    private void finding(Kind kind, int address, String detail) {
+        findings.put(address, new Finding(kind, address, detail));
+    }
+
+    /**
+     * One instruction in the usual CHIP-8 assembler notation. F000 NNNN shows only the first word,
+     * the listing adds the address
+     */
+    public static String disassemble(int opcode) {
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        String vx = "V" + hex(x, 1);
+        String vy = "V" + hex(y, 1);
+        String nnn = hex(opcode & 0xFFF, 3);
+        switch(opcode & 0xF000) {
+            case 0x0000:
+                if(nn == 0xE0) return "CLS";
+                if(nn == 0xEE) return "RET";
+                if((opcode & 0xFFF0) == 0x00C0) return "SCD " + n;
+                if((opcode & 0xFFF0) == 0x00D0) return "SCU " + n;
+                if(opcode == 0x00FB) return "SCR";
+                if(opcode == 0x00FC) return "SCL";
+                if(opcode == 0x00FD) return "EXIT";
+                if(opcode == 0x00FE) return "LOW";
+                if(opcode == 0x00FF) return "HIGH";
+                return "SYS " + nnn;
+            case 0x1000: return "JP " + nnn;
+            case 0x2000: return "CALL " + nnn;
+            case 0x3000: return "SE " + vx + ", " + hex(nn, 2);
+            case 0x4000: return "SNE " + vx + ", " + hex(nn, 2);
+            case 0x5000:
+                if(n == 0) return "SE " + vx + ", " + vy;
+                if(n == 2) return "SAVE " + vx + " - " + vy;
+                if(n == 3) return "LOAD " + vx + " - " + vy;
+                break;
+            case 0x6000: return "LD " + vx + ", " + hex(nn, 2);
+            case 0x7000: return "ADD " + vx + ", " + hex(nn, 2);
+            case 0x8000:
+                switch(n) {
+                    case 0x0: return "LD " + vx + ", " + vy;
+                    case 0x1: return "OR " + vx + ", " + vy;
+                    case 0x2: return "AND " + vx + ", " + vy;
+                    case 0x3: return "XOR " + vx + ", " + vy;
+                    case 0x4: return "ADD " + vx + ", " + vy;
+                    case 0x5: return "SUB " + vx + ", " + vy;
+                    case 0x6: return "SHR " + vx + ", " + vy;
+                    case 0x7: return "SUBN " + vx + ", " + vy;
+                    case 0xE: return "SHL " + vx + ", " + vy;
+                    default: break;
+                }
+                break;
+            case 0x9000:
+                if(n == 0) return "SNE " + vx + ", " + vy;
+                break;
+            case 0xA000: return "LD I, " + nnn;
+            case 0xB000: return "JP V0, " + nnn;
+            case 0xC000: return "RND " + vx + ", " + hex(nn, 2);
+            case 0xD000: return "DRW " + vx + ", " + vy + ", " + n;
+            case 0xE000:
+                if(nn == 0x9E) return "SKP " + vx;
+                if(nn == 0xA1) return "SKNP " + vx;
+                break;
+            default:
+                switch(nn) {
+                    case 0x00: return opcode == 0xF000 ? "LD I, long" : "DW " + hex(opcode, 4);
+                    case 0x01: return "PLANE " + x;
+                    case 0x02: return "AUDIO";
+                    case 0x07: return "LD " + vx + ", DT";
+                    case 0x0A: return "LD " + vx + ", K";
+                    case 0x15: return "LD DT, " + vx;
+                    case 0x18: return "LD ST, " + vx;
+                    case 0x1E: return "ADD I, " + vx;
+                    case 0x29: return "LD F, " + vx;
+                    case 0x30: return "LD HF, " + vx;
+                    case 0x33: return "LD B, " + vx;
+                    case 0x3A: return "PITCH " + vx;
+                    case 0x55: return "LD [I], " + vx;
+                    case 0x65: return "LD " + vx + ", [I]";
+                    case 0x75: return "LD R, " + vx;
+                    case 0x85: return "LD " + vx + ", R";
+                    default: break;
+                }
+                break;
+        }
+        return "DW " + hex(opcode, 4);
+    }
+
+    //the whole program: blocks with their successors, instructions and data bytes
+    public String listing() {
+        StringBuilder out = new StringBuilder();
+        Map<Integer, Integer> blockAt = new TreeMap<>();
+        for(int i = 0; i < blockStarts.length; i++) {
+            blockAt.put(blockStarts[i], i);
+        }
+        for(int address = START; address < end; ) {
+            if(starts[address]) {
+                Integer block = blockAt.get(address);
+                if(block != null) {
+                    out.append('\n').append(hex(address, 3)).append(":");
+                    int[] next = successors[block];
+                    if(next.length > 0) {
+                        out.append("  ; ->");
+                        for(int target : next) {
+                            out.append(' ').append(hex(target, 3));
+                        }
+                    }
+                    out.append('\n');
+                }
+                int opcode = opcode(address);
+                int length = length(address);
+                out.append("  ").append(hex(address, 3)).append("  ").append(hex(opcode, 4)).append("  ");
+                out.append(disassemble(opcode));
+                if(length == 4) {
+                    out.append(" ").append(hex(opcode(address + 2), 4));
+                }
+                Finding finding = findings.get(address);
+                if(finding != null) {
+                    out.append("  ; ").append(finding.detail);
+                }
+                out.append('\n');
+                address += length;
+            } else if(code[address]) {
+                // the second byte of an instruction that starts one byte earlier than another one
+                address++;
+            } else {
+                out.append("  ").append(hex(address, 3)).append("  DB");
+                for(int i = 0; i < 8 && address < end && !code[address]; i++, address++) {
+                    out.append(i == 0 ? " " : ", ").append(hex(at(address), 2));
+                }
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        int instructions = 0;
+        for(boolean start : starts) {
+            instructions += start ? 1 : 0;
+        }
+        int data = 0;
+        List<int[]> regions = getDataRegions();
+        for(int[] region : regions) {
+            data += region[1] - region[0] + 1;
+        }
+        return String.format("%d bytes on %s with %s quirks: %d instructions in %d blocks, %d data bytes in %d regions, %d findings",
+                program.length, machine, quirks, instructions, blockStarts.length, data, regions.size(), findings.size());
+    }
+
+    private static String hex(int value, int digits) {
+        return String.format("%0" + digits + "X", value);
+    }
+
+    private static String sha1(byte[] program) {
+        try {
+            StringBuilder hex = new StringBuilder(40);
+            for(byte b : MessageDigest.getInstance("SHA-1").digest(program)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        }
+    }
+
+    /**
+     * Usage: java chip.ProgramAnalysis <rom> [machine] [quirks] [-list]
+     * Prints the summary and the findings, with -list the whole disassembly. Exits with 2 when the
+     * program can reach an unsupported opcode, so scripts can reject it
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        boolean list = options.remove("-list");
+        if(options.isEmpty()) {
+            System.err.println("Usage: ProgramAnalysis <rom> [chip8|schip|xochip] [quirks] [-list]");
+            System.exit(1);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(options.get(0)));
+        Machine machine = options.size() > 1 ? Machine.parse(options.get(1)) : Machine.forFile(options.get(0));
+        Quirks quirks = options.size() > 2 ? Quirks.parse(options.get(2)) : null;
+        ProgramAnalysis analysis = of(program, machine, quirks);
+        System.out.println(options.get(0) + " (" + analysis.getSha1() + ")");
+        System.out.println(analysis);
+        for(Finding finding : analysis.getFindings()) {
+            System.out.println("  " + finding);
+        }
+        if(list) {
+            System.out.print(analysis.listing());
+        }
+        if(!analysis.isRunnable()) {
+            System.exit(2);
+        }
+    }
+}
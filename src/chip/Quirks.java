@@ -0,0 +1,69 @@
+package chip;
+
+/**
+ * Behaviour that differs between CHIP-8 interpreters. Chip.setQuirks() binds a profile once:
+ * Chip.run() reads it through masks and shifts, and the decoded and JIT engines pick operands and
+ * handlers at decode time, so no engine checks a quirk per instruction.
+ */
+public enum Quirks {
+
+    //plain CHIP-8 as most ROMs written for PC interpreters expect it: shifts in place, BNNN adds V0, sprites wrap
+    MODERN(false, 1, false, false, false),
+
+    //the original COSMAC VIP interpreter
+    VIP(true, 1, false, true, true),
+
+    //CHIP-48 on the HP-48, FX55/FX65 leave I one short of where VIP leaves it
+    CHIP48(false, 0, true, true, false),
+
+    //SUPER-CHIP 1.1, FX55/FX65 leave I alone
+    SCHIP(false, -1, true, true, false),
+
+    //XO-CHIP as Octo runs it
+    XOCHIP(true, 1, false, false, false);
+
+    //8XY6/8XYE shift VY into VX instead of shifting VX in place
+    final boolean shiftVy;
+    //FX55/FX65 add X + indexStep to I, -1 leaves I alone
+    final int indexStep;
+    //BNNN becomes BXNN and adds VX instead of V0
+    final boolean jumpVx;
+    //DXYN cuts sprites off at the display edges instead of wrapping them around
+    final boolean clipSprites;
+    //8XY1/8XY2/8XY3 set VF to 0
+    final boolean resetVf;
+
+    Quirks(boolean shiftVy, int indexStep, boolean jumpVx, boolean clipSprites, boolean resetVf) {
+        this.shiftVy = shiftVy;
+        this.indexStep = indexStep;
+        this.jumpVx = jumpVx;
+        this.clipSprites = clipSprites;
+        this.resetVf = resetVf;
+    }
+
+    public boolean isShiftVy() {
+        return shiftVy;
+    }
+
+    public boolean isJumpVx() {
+        return jumpVx;
+    }
+
+    public boolean isClipSprites() {
+        return clipSprites;
+    }
+
+    public boolean isResetVf() {
+        return resetVf;
+    }
+
+    //what FX55/FX65 add to I on top of X: 1, 0 on CHIP-48, or -1 when I is left alone
+    public int getIndexStep() {
+        return indexStep;
+    }
+
+    //case insensitive lookup for command line options such as -Dchip8.quirks
+    public static Quirks parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace("-", ""));
+    }
+}
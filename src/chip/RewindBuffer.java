@@ -0,0 +1,337 @@
+package chip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Ring of per frame machine states for rewinding.
+ *
+ * Every frame is stored as a small delta record against the frame before it: the registers,
+ * display rows and memory bytes that changed. Memory is only compared in the 256 byte pages
+ * the Chip marked as written since the last frame, so untouched pages cost nothing.
+ * Every KEYFRAME_INTERVAL frames a full record is stored instead, and a rewind replays
+ * at most that many deltas on top of the nearest key frame. Rings smaller than that store
+ * a key frame every capacity / 2 frames, so at least half of what they hold can be restored,
+ * and a key frame is always stored when the record about to be dropped is the last key frame
+ * left in the ring.
+ */
+public class RewindBuffer {
+
+    static final int KEYFRAME_INTERVAL = 64;
+
+    private static final int KEY = 0;
+    private static final int DELTA = 1;
+
+    //V0-VF, I, pc, stack[16], stack pointer, delay timer, sound timer, keys, random state,
+    //hires mode, plane mask, RPL flags[16]
+    private static final int SCALARS = 16 + 2 + 16 + 4 + 4 + 2 + 16;
+
+    private final int capacity;
+    //frames between key frames
+    private final int keyInterval;
+    private final byte[][] records;
+    //index of the next record to write and number of records held
+    private int head;
+    private int size;
+    //frames pushed since the last key frame
+    private int sinceKey;
+    //key frames among the records held
+    private int keyFrames;
+
+    //the state of the newest frame, deltas are taken against it
+    private byte[] lastMemory;
+    private long[] lastRows;
+    private final char[] lastScalars = new char[SCALARS];
+
+    //scratch space reused by every push
+    private long[] dirtyPages;
+    private final char[] scalars = new char[SCALARS];
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    public RewindBuffer(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        keyInterval = Math.max(1, Math.min(KEYFRAME_INTERVAL, capacity / 2));
+        records = new byte[capacity][];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        Arrays.fill(records, null);
+        head = 0;
+        size = 0;
+        keyFrames = 0;
+        lastMemory = null;
+    }
+
+    //records the chip's current state as the newest frame, dropping the oldest when full
+    public void push(Chip chip) {
+        if(lastMemory == null || lastMemory.length != chip.memory.length) {
+            lastMemory = new byte[chip.memory.length];
+            lastRows = new long[chip.rows.length];
+            dirtyPages = new long[(chip.memory.length / Chip.PAGE_SIZE + 63) / 64];
+            sinceKey = keyInterval;
+        }
+        chip.takeDirtyPages(dirtyPages);
+        captureScalars(chip, scalars);
+
+        // when full the push overwrites the oldest record, which may be the key frame the rest build on
+        boolean dropsKey = size == capacity && records[head][0] == KEY;
+        if(dropsKey) {
+            keyFrames--;
+        }
+        bytes.reset();
+        try {
+            if(sinceKey >= keyInterval || (dropsKey && keyFrames == 0)) {
+                writeKey(chip);
+                keyFrames++;
+                sinceKey = 0;
+            } else {
+                writeDelta(chip);
+            }
+            sinceKey++;
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        records[head] = bytes.toByteArray();
+        head = (head + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+    }
+
+    /**
+     * Restores the state from the given number of frames back (0 = the newest frame)
+     * and forgets every frame after it. Returns false if that frame is no longer held
+     */
+    public boolean rewind(Chip chip, int frames) {
+        if(frames < 0 || frames >= size) {
+            return false;
+        }
+        int target = (head - 1 - frames + 2 * capacity) % capacity;
+        // walk back to the key frame the target builds on
+        int back = 0;
+        while(records[(target - back + capacity) % capacity][0] != KEY) {
+            back++;
+            if(frames + back >= size) {
+                return false;
+            }
+        }
+
+        try {
+            for(int i = back; i >= 0; i--) {
+                apply(records[(target - i + capacity) % capacity]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for(int i = 0; i < frames; i++) {
+            head = (head - 1 + capacity) % capacity;
+            if(records[head][0] == KEY) {
+                keyFrames--;
+            }
+            records[head] = null;
+        }
+        size -= frames;
+        // deltas after the rewind continue from the restored frame
+        sinceKey = back + 1;
+
+        for(int i = 0; i < lastMemory.length; i++) {
+            chip.memory[i] = (char)(lastMemory[i] & 0xFF);
+        }
+        System.arraycopy(lastRows, 0, chip.rows, 0, lastRows.length);
+        restoreScalars(chip, lastScalars);
+        chip.stateReplaced();
+        // memory matches lastMemory exactly, nothing to compare on the next push
+        chip.takeDirtyPages(dirtyPages);
+        return true;
+    }
+
+    //bytes held by the records
+    public long retainedBytes() {
+        long total = 0;
+        for(byte[] record : records) {
+            if(record != null) {
+                total += record.length;
+            }
+        }
+        return total;
+    }
+
+    private void writeKey(Chip chip) throws IOException {
+        out.writeByte(KEY);
+        for(char value : scalars) {
+            out.writeChar(value);
+        }
+        System.arraycopy(scalars, 0, lastScalars, 0, SCALARS);
+        for(int i = 0; i < chip.rows.length; i++) {
+            out.writeLong(chip.rows[i]);
+            lastRows[i] = chip.rows[i];
+        }
+        for(int i = 0; i < lastMemory.length; i++) {
+            lastMemory[i] = (byte)chip.memory[i];
+        }
+        // memory as runs of non zero bytes
+        writeRuns(0, lastMemory.length, null);
+    }
+
+    private void writeDelta(Chip chip) throws IOException {
+        out.writeByte(DELTA);
+
+        long changed = 0;
+        for(int i = 0; i < SCALARS; i++) {
+            if(scalars[i] != lastScalars[i]) {
+                changed |= 1L << i;
+            }
+        }
+        out.writeLong(changed);
+        for(int i = 0; i < SCALARS; i++) {
+            if((changed & (1L << i)) != 0) {
+                out.writeChar(scalars[i]);
+                lastScalars[i] = scalars[i];
+            }
+        }
+
+        // display words in groups of 64, a change mask per group
+        for(int group = 0; group < chip.rows.length; group += 64) {
+            int end = Math.min(group + 64, chip.rows.length);
+            changed = 0;
+            for(int i = group; i < end; i++) {
+                if(chip.rows[i] != lastRows[i]) {
+                    changed |= 1L << (i - group);
+                }
+            }
+            out.writeLong(changed);
+            for(int i = group; i < end; i++) {
+                if((changed & (1L << (i - group))) != 0) {
+                    out.writeLong(chip.rows[i]);
+                    lastRows[i] = chip.rows[i];
+                }
+            }
+        }
+
+        // only pages written since the last frame can differ
+        int pages = lastMemory.length / Chip.PAGE_SIZE;
+        for(int page = 0; page < pages; page++) {
+            if((dirtyPages[page >> 6] & (1L << page)) != 0) {
+                writeRuns(page * Chip.PAGE_SIZE, (page + 1) * Chip.PAGE_SIZE, chip.memory);
+            }
+        }
+        out.writeShort(0);
+    }
+
+    /**
+     * Writes the bytes in [from, to) that differ from lastMemory as (length, offset, bytes) runs.
+     * With memory == null it writes the non zero runs of lastMemory itself, ending with a 0 length.
+     * Runs are at most 255 bytes
+     */
+    private void writeRuns(int from, int to, char[] memory) throws IOException {
+        int i = from;
+        while(i < to) {
+            if(memory == null ? lastMemory[i] == 0 : (byte)memory[i] == lastMemory[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while(i < to && i - start < 255 && (memory == null ? lastMemory[i] != 0 : (byte)memory[i] != lastMemory[i])) {
+                if(memory != null) {
+                    lastMemory[i] = (byte)memory[i];
+                }
+                i++;
+            }
+            out.writeShort(i - start);
+            out.writeShort(start);
+            out.write(lastMemory, start, i - start);
+        }
+        if(memory == null) {
+            out.writeShort(0);
+        }
+    }
+
+    //applies a record on top of the last* arrays
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if(in.readUnsignedByte() == KEY) {
+            for(int i = 0; i < SCALARS; i++) {
+                lastScalars[i] = in.readChar();
+            }
+            for(int i = 0; i < lastRows.length; i++) {
+                lastRows[i] = in.readLong();
+            }
+            Arrays.fill(lastMemory, (byte)0);
+        } else {
+            long changed = in.readLong();
+            for(int i = 0; i < SCALARS; i++) {
+                if((changed & (1L << i)) != 0) {
+                    lastScalars[i] = in.readChar();
+                }
+            }
+            for(int group = 0; group < lastRows.length; group += 64) {
+                changed = in.readLong();
+                for(int i = group; i < Math.min(group + 64, lastRows.length); i++) {
+                    if((changed & (1L << (i - group))) != 0) {
+                        lastRows[i] = in.readLong();
+                    }
+                }
+            }
+        }
+        int length;
+        while((length = in.readUnsignedShort()) != 0) {
+            int offset = in.readUnsignedShort();
+            in.readFully(lastMemory, offset, length);
+        }
+    }
+
+    private static void captureScalars(Chip chip, char[] target) {
+        System.arraycopy(chip.V, 0, target, 0, 16);
+        target[16] = chip.I;
+        target[17] = chip.pc;
+        System.arraycopy(chip.stack, 0, target, 18, 16);
+        target[34] = chip.stackPointer;
+        target[35] = (char)chip.delay_timer;
+        target[36] = (char)chip.sound_timer;
+        target[37] = (char)chip.keys;
+        long random = chip.random.getState();
+        for(int i = 0; i < 4; i++) {
+            target[38 + i] = (char)(random >>> (i * 16));
+        }
+        target[42] = (char)(chip.hires ? 1 : 0);
+        target[43] = (char)chip.planeMask;
+        System.arraycopy(chip.flags, 0, target, 44, 16);
+    }
+
+    private static void restoreScalars(Chip chip, char[] source) {
+        System.arraycopy(source, 0, chip.V, 0, 16);
+        chip.I = source[16];
+        chip.pc = source[17];
+        System.arraycopy(source, 18, chip.stack, 0, 16);
+        chip.stackPointer = source[34];
+        chip.delay_timer = source[35];
+        chip.sound_timer = source[36];
+        chip.keys = source[37];
+        long random = 0;
+        for(int i = 0; i < 4; i++) {
+            random |= (long)source[38 + i] << (i * 16);
+        }
+        chip.random.setState(random);
+        chip.hires = source[42] != 0;
+        chip.planeMask = source[43];
+        System.arraycopy(source, 44, chip.flags, 0, 16);
+    }
+}
@@ -0,0 +1,41 @@
+package chip;
+
+/**
+ * Seedable xorshift64* generator for CXNN. One long of state, no allocation,
+ * and the same seed always gives the same sequence, so runs can be replayed
+ */
+public class Rng {
+
+    private long state;
+
+    public Rng(long seed) {
+        setSeed(seed);
+    }
+
+    public void setSeed(long seed) {
+        // spread the seed with splitmix64 so small seeds still start from a busy state, never 0
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        state = z == 0 ? 0x9E3779B97F4A7C15L : z;
+    }
+
+    //next value in 0..255
+    public int nextByte() {
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+        return (int)((x * 0x2545F4914F6CDD1DL) >>> 56);
+    }
+
+    long getState() {
+        return state;
+    }
+
+    void setState(long state) {
+        this.state = state;
+    }
+}
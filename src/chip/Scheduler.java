@@ -0,0 +1,254 @@
+package chip;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a Chip at a configurable instruction rate while the timers
+ * tick independently at 60hz off System.nanoTime().
+ *
+ * In turbo mode frames run back to back as fast as the host allows, only every Nth frame
+ * is rendered and never more than 60 per second of real time, and the timers follow either
+ * the emulated frames or the wall clock (see TimerClock). Unthrottled, a turbo frame is
+ * UNTHROTTLED_CHUNK instructions, so turbo never runs fewer instructions per second than without it
+ */
+public class Scheduler implements Runnable {
+
+    // timers and frames run at 60hz
+    public static final int FRAME_HZ = 60;
+    public static final long FRAME_NANOS = 1_000_000_000L / FRAME_HZ;
+
+    // instructions per second used when nothing is configured
+    public static final int DEFAULT_HZ = 700;
+    // 0 instructions per second means run as fast as the host allows
+    public static final int UNTHROTTLED = 0;
+
+    // how many frames we may skip rendering before forcing one
+    private static final int MAX_FRAME_SKIP = 5;
+    // instructions executed between clock checks when unthrottled
+    private static final int UNTHROTTLED_CHUNK = 1024;
+    // turbo renders one frame in this many unless set otherwise
+    public static final int DEFAULT_TURBO_RENDER_INTERVAL = 8;
+
+    //what the timers follow in turbo mode
+    public enum TimerClock {
+        //a tick per emulated frame: delays shrink with everything else and recorded runs stay replayable
+        EMULATED,
+        //a tick per 1/60 s of real time: delays keep their real length while the code races ahead
+        WALL
+    }
+
+    public interface FrameListener {
+        /**
+         * Called once per 60hz frame, after the frame's instructions and timer tick.
+         * render is false when we are behind schedule and the frame should be skipped
+         */
+        void frame(Chip chip, boolean render);
+    }
+
+    private final Chip chip;
+    private final FrameListener listener;
+
+    private volatile int instructionsPerSecond;
+    private volatile boolean running;
+    //park instead of running frames while the chip can only be woken by a key
+    private volatile boolean idleParking;
+    //set by wake(), cleared at the start of every frame
+    private volatile boolean woken;
+    private volatile Thread thread;
+    private volatile boolean turbo;
+    private volatile int turboRenderInterval = DEFAULT_TURBO_RENDER_INTERVAL;
+    private volatile TimerClock turboTimers = TimerClock.EMULATED;
+
+    //leftover from dividing the instruction rate into frames
+    private int cycleRemainder;
+    private int skippedFrames;
+    //turbo frames run so far, when the last one was rendered and when the next wall clock tick is due
+    private long turboFrames;
+    private long lastRender;
+    private long timerDeadline;
+
+    public Scheduler(Chip chip, FrameListener listener) {
+        this(chip, listener, DEFAULT_HZ);
+    }
+
+    public Scheduler(Chip chip, FrameListener listener, int instructionsPerSecond) {
+        this.chip = chip;
+        this.listener = listener;
+        setInstructionsPerSecond(instructionsPerSecond);
+    }
+
+    public void setInstructionsPerSecond(int instructionsPerSecond) {
+        if(instructionsPerSecond < 0) {
+            throw new IllegalArgumentException("Instruction rate must be >= 0: " + instructionsPerSecond);
+        }
+        this.instructionsPerSecond = instructionsPerSecond;
+    }
+
+    public int getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    public void stop() {
+        running = false;
+        wake();
+    }
+
+    /**
+     * Parks the emulation thread while the program waits in FX0A with no key down and both timers
+     * at 0, nothing can change until a key does. Whoever delivers keys has to call wake() then
+     */
+    public void setIdleParking(boolean idleParking) {
+        this.idleParking = idleParking;
+    }
+
+    //runs frames back to back instead of at 60hz, can be switched at any time from any thread
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    //turbo renders every interval-th frame, still at most 60 per second
+    public void setTurboRenderInterval(int interval) {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("Render interval must be positive: " + interval);
+        }
+        turboRenderInterval = interval;
+    }
+
+    public int getTurboRenderInterval() {
+        return turboRenderInterval;
+    }
+
+    public void setTurboTimers(TimerClock clock) {
+        turboTimers = clock;
+    }
+
+    public TimerClock getTurboTimers() {
+        return turboTimers;
+    }
+
+    //the input changed, ends idle parking
+    public void wake() {
+        woken = true;
+        Thread thread = this.thread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void run() {
+        running = true;
+        thread = Thread.currentThread();
+        long deadline = System.nanoTime() + FRAME_NANOS;
+        boolean wasTurbo = false;
+        while(running) {
+            woken = false;
+            boolean fast = turbo;
+            if(fast != wasTurbo) {
+                // either way the clock starts over from now
+                deadline = System.nanoTime() + FRAME_NANOS;
+                timerDeadline = deadline;
+                wasTurbo = fast;
+            }
+            if(fast) {
+                runTurboFrame();
+                if(parkWhileIdle()) {
+                    timerDeadline = System.nanoTime() + FRAME_NANOS;
+                }
+                continue;
+            }
+            int hz = instructionsPerSecond;
+            if(hz == UNTHROTTLED) {
+                // keep executing until the frame is due
+                do {
+                    runCycles(UNTHROTTLED_CHUNK);
+                } while(System.nanoTime() - deadline < 0);
+            } else {
+                runCycles(cyclesForFrame(hz));
+            }
+            chip.tickTimers();
+
+            long now = System.nanoTime();
+            long late = now - deadline;
+            boolean render;
+            if(late > MAX_FRAME_SKIP * FRAME_NANOS) {
+                // too far behind to catch up (debugger, GC, suspended laptop), resync the clock
+                deadline = now;
+                render = true;
+            } else {
+                // skip rendering while behind, but never for too long
+                render = late <= 0 || skippedFrames >= MAX_FRAME_SKIP;
+            }
+            skippedFrames = render ? 0 : skippedFrames + 1;
+            listener.frame(chip, render);
+
+            if(parkWhileIdle()) {
+                deadline = System.nanoTime();
+            }
+
+            // wait for the end of this frame, then schedule the next one against the ideal
+            // deadline rather than now, so sleep error does not drift
+            long wait = deadline - System.nanoTime();
+            if(wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            deadline += FRAME_NANOS;
+        }
+    }
+
+    //one turbo frame: the frame's instructions, the timers by the chosen clock, no waiting
+    private void runTurboFrame() {
+        // a frame is still a 60th of the instruction rate, unthrottled it is one chunk
+        int hz = instructionsPerSecond;
+        runCycles(hz == UNTHROTTLED ? UNTHROTTLED_CHUNK : cyclesForFrame(hz));
+        long now = System.nanoTime();
+        if(turboTimers == TimerClock.EMULATED) {
+            chip.tickTimers();
+        } else {
+            if(now - timerDeadline > MAX_FRAME_SKIP * FRAME_NANOS) {
+                // stalled, tick once and resync instead of draining the timers at once
+                timerDeadline = now;
+            }
+            while(now - timerDeadline >= 0) {
+                chip.tickTimers();
+                timerDeadline += FRAME_NANOS;
+            }
+        }
+        turboFrames++;
+        boolean render = turboFrames % turboRenderInterval == 0 && now - lastRender >= FRAME_NANOS;
+        if(render) {
+            lastRender = now;
+        }
+        listener.frame(chip, render);
+    }
+
+    //parks while isParked(), true if it did
+    private boolean parkWhileIdle() {
+        if(!idleParking || !isParked()) {
+            return false;
+        }
+        // a frozen machine skips its frames entirely, replays see the same frames
+        while(running && !woken) {
+            LockSupport.park(this);
+        }
+        return true;
+    }
+
+    private boolean isParked() {
+        return !woken && chip.isWaitingForKey() && chip.getDelayTimer() == 0 && chip.getSoundTimer() == 0;
+    }
+
+    //spreads the instruction rate over frames, carrying the remainder so e.g. 700hz stays exact
+    private int cyclesForFrame(int hz) {
+        int total = hz + cycleRemainder;
+        cycleRemainder = total % FRAME_HZ;
+        return total / FRAME_HZ;
+    }
+
+    private void runCycles(int cycles) {
+        chip.execute(cycles);
+    }
+}
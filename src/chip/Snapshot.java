@@ -0,0 +1,398 @@
+package chip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Complete machine state: memory, registers, stack, timers, keys and display.
+ *
+ * Binary format (big endian): magic "C8SS", version, machine, memory size, a bitmap of the non zero
+ * 256 byte pages followed by just those pages, then V0-VF, I, pc, stack, stack pointer,
+ * timers, keys, the random generator state, hires mode, plane mask, RPL flags and the packed
+ * display rows. Mostly empty memory keeps it around 1 kB.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x43385353;
+    private static final int VERSION = 3;
+    //what Chip.init() allocates on every machine
+    private static final int STACK_SIZE = 16;
+    private static final int FLAGS = 16;
+
+    final Machine machine;
+    final byte[] memory;
+    final byte[] V;
+    final int I;
+    final int pc;
+    final int[] stack;
+    final int stackPointer;
+    final int delayTimer;
+    final int soundTimer;
+    final int keys;
+    final long random;
+    final boolean hires;
+    final int planeMask;
+    final byte[] flags;
+    final long[] rows;
+
+    Snapshot(Chip chip) {
+        machine = chip.machine;
+        memory = new byte[chip.memory.length];
+        for(int i = 0; i < memory.length; i++) {
+            memory[i] = (byte)chip.memory[i];
+        }
+        V = new byte[16];
+        for(int i = 0; i < 16; i++) {
+            V[i] = (byte)chip.V[i];
+        }
+        I = chip.I;
+        pc = chip.pc;
+        stack = new int[chip.stack.length];
+        for(int i = 0; i < stack.length; i++) {
+            stack[i] = chip.stack[i];
+        }
+        stackPointer = chip.stackPointer;
+        delayTimer = chip.delay_timer;
+        soundTimer = chip.sound_timer;
+        keys = chip.keys;
+        random = chip.random.getState();
+        hires = chip.hires;
+        planeMask = chip.planeMask;
+        flags = new byte[chip.flags.length];
+        for(int i = 0; i < flags.length; i++) {
+            flags[i] = (byte)chip.flags[i];
+        }
+        rows = chip.rows.clone();
+    }
+
+    private Snapshot(Machine machine, byte[] memory, byte[] V, int I, int pc, int[] stack, int stackPointer,
+                     int delayTimer, int soundTimer, int keys, long random,
+                     boolean hires, int planeMask, byte[] flags, long[] rows) {
+        this.machine = machine;
+        this.memory = memory;
+        this.V = V;
+        this.I = I;
+        this.pc = pc;
+        this.stack = stack;
+        this.stackPointer = stackPointer;
+        this.delayTimer = delayTimer;
+        this.soundTimer = soundTimer;
+        this.keys = keys;
+        this.random = random;
+        this.hires = hires;
+        this.planeMask = planeMask;
+        this.flags = flags;
+        this.rows = rows;
+    }
+
+    //copies the state into the chip, Chip.loadState() takes care of the engines
+    void restore(Chip chip) {
+        if(machine != chip.machine || memory.length != chip.memory.length || rows.length != chip.rows.length) {
+            throw new IllegalArgumentException("Snapshot does not fit this machine");
+        }
+        for(int i = 0; i < memory.length; i++) {
+            chip.memory[i] = (char)(memory[i] & 0xFF);
+        }
+        restoreRegisters(chip);
+    }
+
+    //like restore(), but only copies the memory pages set in pages (bit n for page n)
+    void restore(Chip chip, long[] pages) {
+        if(machine != chip.machine || memory.length != chip.memory.length || rows.length != chip.rows.length) {
+            throw new IllegalArgumentException("Snapshot does not fit this machine");
+        }
+        int count = memory.length / Chip.PAGE_SIZE;
+        for(int page = 0; page < count; page++) {
+            if((pages[page >> 6] & (1L << page)) != 0) {
+                for(int i = page * Chip.PAGE_SIZE, end = i + Chip.PAGE_SIZE; i < end; i++) {
+                    chip.memory[i] = (char)(memory[i] & 0xFF);
+                }
+            }
+        }
+        restoreRegisters(chip);
+    }
+
+    private void restoreRegisters(Chip chip) {
+        for(int i = 0; i < 16; i++) {
+            chip.V[i] = (char)(V[i] & 0xFF);
+        }
+        chip.I = (char)I;
+        chip.pc = (char)pc;
+        for(int i = 0; i < stack.length; i++) {
+            chip.stack[i] = (char)stack[i];
+        }
+        chip.stackPointer = (char)stackPointer;
+        chip.delay_timer = delayTimer;
+        chip.sound_timer = soundTimer;
+        chip.keys = keys;
+        chip.random.setState(random);
+        chip.hires = hires;
+        chip.planeMask = planeMask;
+        for(int i = 0; i < flags.length; i++) {
+            chip.flags[i] = (char)(flags[i] & 0xFF);
+        }
+        System.arraycopy(rows, 0, chip.rows, 0, rows.length);
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    //the instruction at pc, 0 when pc is at the end of memory
+    public int getOpcode() {
+        if(pc + 1 >= memory.length) {
+            return 0;
+        }
+        return (memory[pc] & 0xFF) << 8 | (memory[pc + 1] & 0xFF);
+    }
+
+    public long displayHash() {
+        return Chip.hashRows(rows);
+    }
+
+    //64 bit hash of the whole state, memory and extended mode state included, for golden values
+    public long stateHash() {
+        long hash = mix(machine.ordinal(), memory.length);
+        for(int i = 0; i < memory.length; i += 8) {
+            long word = 0;
+            for(int j = i; j < Math.min(i + 8, memory.length); j++) {
+                word = (word << 8) | (memory[j] & 0xFF);
+            }
+            hash = mix(hash, word);
+        }
+        for(byte value : V) {
+            hash = mix(hash, value & 0xFF);
+        }
+        hash = mix(hash, I);
+        hash = mix(hash, pc);
+        for(int value : stack) {
+            hash = mix(hash, value);
+        }
+        hash = mix(hash, stackPointer);
+        hash = mix(hash, delayTimer);
+        hash = mix(hash, soundTimer);
+        hash = mix(hash, keys);
+        hash = mix(hash, random);
+        hash = mix(hash, hires ? 1 : 0);
+        hash = mix(hash, planeMask);
+        for(byte flag : flags) {
+            hash = mix(hash, flag & 0xFF);
+        }
+        for(long row : rows) {
+            hash = mix(hash, row);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft(hash ^ value, 27) * 0xC2B2AE3D27D4EB4FL;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(machine.ordinal());
+            out.writeInt(memory.length);
+            int pages = memory.length / Chip.PAGE_SIZE;
+            byte[] used = new byte[(pages + 7) / 8];
+            for(int page = 0; page < pages; page++) {
+                if(!isZero(page)) {
+                    used[page >> 3] |= 1 << (page & 7);
+                }
+            }
+            out.write(used);
+            for(int page = 0; page < pages; page++) {
+                if((used[page >> 3] & (1 << (page & 7))) != 0) {
+                    out.write(memory, page * Chip.PAGE_SIZE, Chip.PAGE_SIZE);
+                }
+            }
+            out.write(V);
+            out.writeShort(I);
+            out.writeShort(pc);
+            out.writeByte(stack.length);
+            for(int value : stack) {
+                out.writeShort(value);
+            }
+            out.writeShort(stackPointer);
+            out.writeShort(delayTimer);
+            out.writeShort(soundTimer);
+            out.writeShort(keys);
+            out.writeLong(random);
+            out.writeBoolean(hires);
+            out.writeByte(planeMask);
+            out.writeByte(flags.length);
+            out.write(flags);
+            out.writeShort(rows.length);
+            for(long row : rows) {
+                out.writeLong(row);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Snapshot fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a CHIP-8 snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if(version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int machine = in.readUnsignedByte();
+        if(machine >= Machine.values().length) {
+            throw new IOException("Unknown machine " + machine);
+        }
+        Machine kind = Machine.values()[machine];
+        int memorySize = in.readInt();
+        if(memorySize != kind.memorySize) {
+            throw new IOException("Memory size " + memorySize + " does not fit " + kind);
+        }
+        byte[] memory = new byte[memorySize];
+        int pages = memory.length / Chip.PAGE_SIZE;
+        byte[] used = new byte[(pages + 7) / 8];
+        in.readFully(used);
+        for(int page = 0; page < pages; page++) {
+            if((used[page >> 3] & (1 << (page & 7))) != 0) {
+                in.readFully(memory, page * Chip.PAGE_SIZE, Chip.PAGE_SIZE);
+            }
+        }
+        byte[] V = new byte[16];
+        in.readFully(V);
+        int I = in.readUnsignedShort();
+        int pc = in.readUnsignedShort();
+        if(pc > memorySize - 2) {
+            // the next fetch reads memory[pc] and memory[pc + 1]
+            throw new IOException("Program counter " + Integer.toHexString(pc) + " outside the " + kind + " memory");
+        }
+        int[] stack = new int[in.readUnsignedByte()];
+        if(stack.length != STACK_SIZE) {
+            throw new IOException("Stack of " + stack.length + " entries, expected " + STACK_SIZE);
+        }
+        for(int i = 0; i < stack.length; i++) {
+            stack[i] = in.readUnsignedShort();
+        }
+        int stackPointer = in.readUnsignedShort();
+        if(stackPointer > STACK_SIZE) {
+            throw new IOException("Stack pointer " + stackPointer + " out of range");
+        }
+        int delayTimer = in.readUnsignedShort();
+        int soundTimer = in.readUnsignedShort();
+        int keys = in.readUnsignedShort();
+        long random = in.readLong();
+        boolean hires = in.readBoolean();
+        int planeMask = in.readUnsignedByte();
+        if(planeMask >= 1 << kind.planes) {
+            throw new IOException("Plane mask " + planeMask + " does not fit " + kind);
+        }
+        byte[] flags = new byte[in.readUnsignedByte()];
+        if(flags.length != FLAGS) {
+            throw new IOException(flags.length + " RPL flags, expected " + FLAGS);
+        }
+        in.readFully(flags);
+        int words = kind.width / 64 * kind.height * kind.planes;
+        long[] rows = new long[in.readUnsignedShort()];
+        if(rows.length != words) {
+            throw new IOException("Display of " + rows.length + " words does not fit " + kind);
+        }
+        for(int i = 0; i < rows.length; i++) {
+            rows[i] = in.readLong();
+        }
+        return new Snapshot(kind, memory, V, I, pc, stack, stackPointer,
+                delayTimer, soundTimer, keys, random, hires, planeMask, flags, rows);
+    }
+
+    private boolean isZero(int page) {
+        for(int i = page * Chip.PAGE_SIZE, end = i + Chip.PAGE_SIZE; i < end; i++) {
+            if(memory[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names what differs from the other snapshot, e.g. "V3 C/D, I 300/302, display words 4-5" (hex),
+     * or an empty string when they are equal
+     */
+    public String describeDifferences(Snapshot other) {
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < 16; i++) {
+            difference(out, "V" + Integer.toHexString(i).toUpperCase(), V[i] & 0xFF, other.V[i] & 0xFF);
+        }
+        difference(out, "I", I, other.I);
+        difference(out, "pc", pc, other.pc);
+        difference(out, "sp", stackPointer, other.stackPointer);
+        for(int i = 0; i < Math.min(stack.length, other.stack.length); i++) {
+            difference(out, "stack[" + i + "]", stack[i], other.stack[i]);
+        }
+        difference(out, "delay", delayTimer, other.delayTimer);
+        difference(out, "sound", soundTimer, other.soundTimer);
+        difference(out, "keys", keys, other.keys);
+        if(random != other.random) {
+            separate(out).append("random state");
+        }
+        if(hires != other.hires || planeMask != other.planeMask || !Arrays.equals(flags, other.flags)) {
+            separate(out).append("extended mode state");
+        }
+        int first = -1;
+        int last = -1;
+        for(int i = 0; i < Math.min(rows.length, other.rows.length); i++) {
+            if(rows[i] != other.rows[i]) {
+                first = first < 0 ? i : first;
+                last = i;
+            }
+        }
+        if(first >= 0) {
+            separate(out).append("display words ").append(first).append('-').append(last);
+        }
+        for(int i = 0; i < Math.min(memory.length, other.memory.length); i++) {
+            if(memory[i] != other.memory[i]) {
+                separate(out).append(String.format("memory[%03X] %02X/%02X", i, memory[i] & 0xFF, other.memory[i] & 0xFF));
+                break;
+            }
+        }
+        return out.toString();
+    }
+
+    private static void difference(StringBuilder out, String name, int value, int other) {
+        if(value != other) {
+            separate(out).append(name).append(' ').append(Integer.toHexString(value).toUpperCase())
+                    .append('/').append(Integer.toHexString(other).toUpperCase());
+        }
+    }
+
+    private static StringBuilder separate(StringBuilder out) {
+        return out.length() == 0 ? out : out.append(", ");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof Snapshot)) {
+            return false;
+        }
+        Snapshot other = (Snapshot) o;
+        return I == other.I && pc == other.pc && stackPointer == other.stackPointer
+                && delayTimer == other.delayTimer && soundTimer == other.soundTimer && keys == other.keys
+                && random == other.random && machine == other.machine
+                && hires == other.hires && planeMask == other.planeMask && Arrays.equals(flags, other.flags)
+                && Arrays.equals(V, other.V) && Arrays.equals(stack, other.stack)
+                && Arrays.equals(rows, other.rows) && Arrays.equals(memory, other.memory);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(memory) + Long.hashCode(displayHash()) + pc;
+    }
+}
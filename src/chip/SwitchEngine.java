@@ -0,0 +1,26 @@
+package chip;
+
+/**
+ * Runs the reference switch interpreter one instruction at a time
+ */
+public class SwitchEngine implements Engine {
+
+    private final Chip chip;
+
+    public SwitchEngine(Chip chip) {
+        this.chip = chip;
+    }
+
+    @Override
+    public int execute(int cycles) {
+        for(int i = 0; i < cycles; i++) {
+            chip.run();
+        }
+        return cycles;
+    }
+
+    @Override
+    public void invalidate(int from, int to) {
+        //decodes every time, nothing cached
+    }
+}
@@ -0,0 +1,10 @@
+package chip;
+
+/**
+ * Sees every instruction right before it executes.
+ * The register array is the live one owned by the Chip, copy it if you need to keep it
+ */
+public interface TraceListener {
+
+    void trace(int pc, int opcode, char[] V, int I);
+}
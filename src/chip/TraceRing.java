@@ -0,0 +1,62 @@
+package chip;
+
+import java.io.PrintStream;
+
+/**
+ * Keeps the last N traced instructions in preallocated arrays,
+ * so it can stay attached during long runs without allocating
+ */
+public class TraceRing implements TraceListener {
+
+    private final int capacity;
+    private final int[] pcs;
+    private final int[] opcodes;
+    private final int[] indexes;
+    //16 registers per entry
+    private final char[] registers;
+
+    //total number of instructions seen, the newest entry is at (count - 1) % capacity
+    private long count;
+
+    public TraceRing(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        pcs = new int[capacity];
+        opcodes = new int[capacity];
+        indexes = new int[capacity];
+        registers = new char[capacity * 16];
+    }
+
+    @Override
+    public void trace(int pc, int opcode, char[] V, int I) {
+        int slot = (int)(count % capacity);
+        pcs[slot] = pc;
+        opcodes[slot] = opcode;
+        indexes[slot] = I;
+        System.arraycopy(V, 0, registers, slot * 16, 16);
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public int size() {
+        return (int)Math.min(count, capacity);
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    //prints the retained entries, oldest first
+    public void dump(PrintStream out) {
+        long first = count - size();
+        for(long n = first; n < count; n++) {
+            int slot = (int)(n % capacity);
+            out.println(TraceWriter.format(pcs[slot], opcodes[slot], registers, slot * 16, indexes[slot]));
+        }
+    }
+}
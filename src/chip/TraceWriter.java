@@ -0,0 +1,57 @@
+package chip;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes one line per instruction: pc, opcode, V0-VF and I in hex
+ */
+public class TraceWriter implements TraceListener, Closeable {
+
+    private final Writer out;
+
+    public TraceWriter(String file) throws IOException {
+        this(new BufferedWriter(new FileWriter(file)));
+    }
+
+    public TraceWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void trace(int pc, int opcode, char[] V, int I) {
+        try {
+            out.write(format(pc, opcode, V, 0, I));
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    static String format(int pc, int opcode, char[] V, int offset, int I) {
+        StringBuilder line = new StringBuilder(80);
+        hex(line, pc, 3).append(' ');
+        hex(line, opcode, 4).append(" V=");
+        for(int i = 0; i < 16; i++) {
+            hex(line, V[offset + i], 2);
+        }
+        line.append(" I=");
+        return hex(line, I, 3).toString();
+    }
+
+    private static StringBuilder hex(StringBuilder line, int value, int digits) {
+        for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            line.append(Character.toUpperCase(Character.forDigit((value >> shift) & 0xF, 16)));
+        }
+        return line;
+    }
+}
@@ -0,0 +1,27 @@
+package chip;
+
+/**
+ * Thrown when the machine reaches an opcode it does not implement.
+ * The pc is left pointing at the instruction
+ */
+public class UnsupportedOpcodeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int opcode;
+    private final int address;
+
+    public UnsupportedOpcodeException(int opcode, int address) {
+        super(String.format("Unsupported opcode %04X at %03X", opcode, address));
+        this.opcode = opcode;
+        this.address = address;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+}
@@ -0,0 +1,283 @@
+package chip;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Many copies of one game stepped together for reinforcement learning rollouts, gym style:
+ * reset() once, then step(actions) again and again, reading observations, rewards and dones.
+ *
+ * Observations are the packed display rows (see Chip.getDisplayRows()) of the last getFrameStack() frames,
+ * oldest first, written into one direct buffer shared by all environments. The buffer is big endian, so
+ * byte by byte it is one bit per pixel with the leftmost pixel in the top bit. Rewards are the changes of
+ * bytes in memory (a score, lives...) times a scale, and an episode ends when a byte reaches a value, after
+ * a number of steps or when the program crashes. A finished environment is reset at once, its observation
+ * is the first of the new episode.
+ *
+ * Every environment resets to a state saved once after booting the program, copying back only the memory
+ * pages it wrote, so resets keep the decoded code. Stepping allocates nothing. step(actions, from, to)
+ * steps a range, so disjoint ranges can run on different threads. DECODED is the engine for this: JIT
+ * compiles classes for every Chip, which does not pay off over thousands of small environments.
+ */
+public class VectorEnv {
+
+    private final byte[] program;
+    private final int envs;
+    private final int frameStack;
+    private final Chip[] chips;
+    private final int frameWords;
+
+    //the observations of all environments, and the same memory as longs
+    private final ByteBuffer observations;
+    private final LongBuffer observationWords;
+    //each environment's stack of frames, shifted here before being copied into the buffer
+    private final long[][] stacks;
+
+    private final float[] rewards;
+    private final boolean[] dones;
+    //why each environment's last episode ended early, null if it did not crash
+    private final String[] crashes;
+    private final int[] steps;
+    private final long[] episodes;
+    private final int[] cycleRemainder;
+    //scratch dirty page bits for resetState(), per environment so ranges can run on different threads
+    private final long[][] pages;
+
+    private Snapshot boot;
+    private int bootFrames;
+    private int instructionsPerSecond = Scheduler.DEFAULT_HZ;
+    private int frameSkip = 1;
+    private int maxSteps;
+    private long seed;
+    //action i presses the keys in actionKeys[i], null when actions are key masks
+    private int[] actionKeys;
+
+    //reward is the sum of (byte at rewardAddresses[t] - its last value) * rewardScales[t]
+    private int[] rewardAddresses = new int[0];
+    private float[] rewardScales = new float[0];
+    private int[] lastValues = new int[0];
+    //episode ends when the byte at doneAddress is doneValue, -1 for no such byte
+    private int doneAddress = -1;
+    private int doneValue;
+
+    public VectorEnv(byte[] program, Machine machine, Quirks quirks, EngineType engine, int envs, int frameStack) {
+        if(envs <= 0 || frameStack <= 0) {
+            throw new IllegalArgumentException("Need at least one environment and one frame: " + envs + ", " + frameStack);
+        }
+        this.program = program.clone();
+        this.envs = envs;
+        this.frameStack = frameStack;
+        chips = new Chip[envs];
+        for(int i = 0; i < envs; i++) {
+            Chip chip = new Chip();
+            chip.setMachine(machine);
+            chip.setQuirks(quirks);
+            chip.setEngine(engine);
+            chip.init();
+            chip.setIdleSkip(true);
+            chips[i] = chip;
+        }
+        frameWords = chips[0].rows.length;
+        observations = ByteBuffer.allocateDirect(envs * frameStack * frameWords * 8);
+        observationWords = observations.asLongBuffer();
+        stacks = new long[envs][frameStack * frameWords];
+        rewards = new float[envs];
+        dones = new boolean[envs];
+        crashes = new String[envs];
+        steps = new int[envs];
+        episodes = new long[envs];
+        cycleRemainder = new int[envs];
+        pages = new long[envs][chips[0].dirtyPageWords()];
+    }
+
+    public int getEnvs() {
+        return envs;
+    }
+
+    public int getFrameStack() {
+        return frameStack;
+    }
+
+    //bytes of one environment's observation, frame stack included
+    public int getObservationBytes() {
+        return frameStack * frameWords * 8;
+    }
+
+    public ByteBuffer getObservations() {
+        return observations;
+    }
+
+    public float[] getRewards() {
+        return rewards;
+    }
+
+    public boolean[] getDones() {
+        return dones;
+    }
+
+    //why the episode of env that just ended stopped early, null unless the program crashed
+    public String getCrash(int env) {
+        return crashes[env];
+    }
+
+    public Chip getChip(int env) {
+        return chips[env];
+    }
+
+    //frames run with no keys before the state every episode starts from is saved, takes effect at reset()
+    public void setBootFrames(int frames) {
+        bootFrames = frames;
+    }
+
+    public void setInstructionsPerSecond(int instructionsPerSecond) {
+        if(instructionsPerSecond <= 0) {
+            throw new IllegalArgumentException("Need a fixed instruction rate: " + instructionsPerSecond);
+        }
+        this.instructionsPerSecond = instructionsPerSecond;
+    }
+
+    //60hz frames run per step with the same keys, only the last one is observed
+    public void setFrameSkip(int frames) {
+        if(frames <= 0) {
+            throw new IllegalArgumentException("Need at least one frame per step: " + frames);
+        }
+        frameSkip = frames;
+    }
+
+    //steps after which an episode ends anyway, 0 for no limit
+    public void setMaxSteps(int steps) {
+        maxSteps = steps;
+    }
+
+    //episode n of environment e seeds CXNN from seed, e and n, takes effect at reset()
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    //maps action indices to key masks, null to take actions as key masks
+    public void setActionKeys(int[] keys) {
+        actionKeys = keys != null ? keys.clone() : null;
+    }
+
+    public void addReward(int address, float scale) {
+        rewardAddresses = Arrays.copyOf(rewardAddresses, rewardAddresses.length + 1);
+        rewardScales = Arrays.copyOf(rewardScales, rewardScales.length + 1);
+        rewardAddresses[rewardAddresses.length - 1] = address;
+        rewardScales[rewardScales.length - 1] = scale;
+    }
+
+    //ends the episode when the byte at address is value, address -1 for none
+    public void setDone(int address, int value) {
+        doneAddress = address;
+        doneValue = value & 0xFF;
+    }
+
+    //boots the program once and starts a new episode in every environment
+    public void reset() {
+        // booted on the reference interpreter, the engines give the same state
+        Chip booting = new Chip();
+        booting.setMachine(chips[0].getMachine());
+        booting.setQuirks(chips[0].getQuirks());
+        booting.init();
+        booting.loadProgram(program);
+        booting.setSeed(seed);
+        cycleRemainder[0] = 0;
+        for(int frame = 0; frame < bootFrames; frame++) {
+            runFrame(booting, 0);
+        }
+        boot = booting.saveState();
+        ProgramAnalysis analysis = ProgramAnalysis.of(program, booting.getMachine(), booting.getQuirks());
+        lastValues = new int[envs * rewardAddresses.length];
+        for(int i = 0; i < envs; i++) {
+            Chip chip = chips[i];
+            chip.loadState(boot);
+            chip.setAnalysis(analysis);
+            // from here on resetState() only copies back what the episode wrote
+            chip.takeDirtyPages(pages[i]);
+            episodes[i] = 0;
+            start(i);
+            rewards[i] = 0;
+            dones[i] = false;
+        }
+    }
+
+    public void step(int[] actions) {
+        step(actions, 0, envs);
+    }
+
+    //steps the environments from (inclusive) to to (exclusive), actions is indexed by environment
+    public void step(int[] actions, int from, int to) {
+        if(boot == null) {
+            throw new IllegalStateException("reset() first");
+        }
+        for(int i = from; i < to; i++) {
+            Chip chip = chips[i];
+            chip.setKeys(actionKeys != null ? actionKeys[actions[i]] : actions[i]);
+            String crash = null;
+            try {
+                for(int frame = 0; frame < frameSkip; frame++) {
+                    runFrame(chip, i);
+                }
+            } catch (RuntimeException e) {
+                crash = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+            rewards[i] = reward(chip, i);
+            steps[i]++;
+            boolean done = crash != null
+                    || (doneAddress >= 0 && chip.memory[doneAddress] == doneValue)
+                    || (maxSteps > 0 && steps[i] >= maxSteps);
+            dones[i] = done;
+            crashes[i] = crash;
+            if(done) {
+                chip.resetState(boot, pages[i]);
+                episodes[i]++;
+                start(i);
+            } else {
+                observe(i);
+            }
+        }
+    }
+
+    private void runFrame(Chip chip, int env) {
+        int total = instructionsPerSecond + cycleRemainder[env];
+        cycleRemainder[env] = total % Scheduler.FRAME_HZ;
+        chip.execute(total / Scheduler.FRAME_HZ);
+        chip.tickTimers();
+    }
+
+    //reseeds a freshly reset environment and fills its frame stack with the first frame
+    private void start(int env) {
+        Chip chip = chips[env];
+        chip.setSeed(seed + env * 0x9E3779B97F4A7C15L + episodes[env] * 0xBF58476D1CE4E5B9L);
+        steps[env] = 0;
+        cycleRemainder[env] = 0;
+        int terms = rewardAddresses.length;
+        for(int t = 0; t < terms; t++) {
+            lastValues[env * terms + t] = chip.memory[rewardAddresses[t]];
+        }
+        long[] stack = stacks[env];
+        for(int frame = 0; frame < frameStack; frame++) {
+            System.arraycopy(chip.rows, 0, stack, frame * frameWords, frameWords);
+        }
+        observationWords.put(env * stack.length, stack);
+    }
+
+    private void observe(int env) {
+        long[] stack = stacks[env];
+        System.arraycopy(stack, frameWords, stack, 0, stack.length - frameWords);
+        System.arraycopy(chips[env].rows, 0, stack, stack.length - frameWords, frameWords);
+        observationWords.put(env * stack.length, stack);
+    }
+
+    private float reward(Chip chip, int env) {
+        int terms = rewardAddresses.length;
+        float reward = 0;
+        for(int t = 0; t < terms; t++) {
+            int value = chip.memory[rewardAddresses[t]];
+            reward += (value - lastValues[env * terms + t]) * rewardScales[t];
+            lastValues[env * terms + t] = value;
+        }
+        return reward;
+    }
+}
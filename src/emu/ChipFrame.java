@@ -8,19 +8,28 @@ import java.awt.event.KeyListener;
 import javax.swing.JFrame;
 
 import chip.Chip;
+import chip.FrameExchange;
+import chip.Keypad;
+import chip.Profiler;
 
 public class ChipFrame extends JFrame implements KeyListener {
 
     private static final long serialVersionUID = 1L;
     private ChipPanel panel;
-    private int[] keyBuffer;
+    private Keypad keypad;
     private int[] keyIdToKey;
+    //run on Tab, null when nothing listens
+    private Runnable turboToggle;
 
-    public ChipFrame(Chip c) {
+    public ChipFrame(FrameExchange frames) {
+        this(frames, Chip.WIDTH, Chip.HEIGHT, 1);
+    }
+
+    public ChipFrame(FrameExchange frames, int width, int height, int planes) {
         setPreferredSize(new Dimension(640, 320));
         pack();
         setPreferredSize(new Dimension(640 + getInsets().left + getInsets().right, 320 + getInsets().top + getInsets().bottom));
-        panel = new ChipPanel(c);
+        panel = new ChipPanel(frames, width, height, planes);
         setLayout(new BorderLayout());
         add(panel, BorderLayout.CENTER);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -28,8 +37,10 @@ public class ChipFrame extends JFrame implements KeyListener {
         pack();
         setVisible(true);
         addKeyListener(this);
+        // Tab would move the focus otherwise
+        setFocusTraversalKeysEnabled(false);
         keyIdToKey = new int[256];
-        keyBuffer = new int[16];
+        keypad = new Keypad();
         fillKeyIds();
     }
 
@@ -58,15 +69,19 @@ public class ChipFrame extends JFrame implements KeyListener {
 
     @Override
     public void keyPressed(KeyEvent e) {
-        if(keyIdToKey[e.getKeyCode()] != -1) {
-            keyBuffer[keyIdToKey[e.getKeyCode()]] = 1;
+        if(e.getKeyCode() == KeyEvent.VK_TAB && turboToggle != null) {
+            turboToggle.run();
+            return;
+        }
+        if(e.getKeyCode() < keyIdToKey.length && keyIdToKey[e.getKeyCode()] != -1) {
+            keypad.press(keyIdToKey[e.getKeyCode()]);
         }
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
-        if(keyIdToKey[e.getKeyCode()] != -1) {
-            keyBuffer[keyIdToKey[e.getKeyCode()]] = 0;
+        if(e.getKeyCode() < keyIdToKey.length && keyIdToKey[e.getKeyCode()] != -1) {
+            keypad.release(keyIdToKey[e.getKeyCode()]);
         }
     }
 
@@ -74,8 +89,17 @@ public class ChipFrame extends JFrame implements KeyListener {
     public void keyTyped(KeyEvent e) {
     }
 
-    public int[] getKeyBuffer() {
-        return keyBuffer;
+    public Keypad getKeypad() {
+        return keypad;
+    }
+
+    //called on the event thread every time Tab is pressed
+    public void setTurboToggle(Runnable turboToggle) {
+        this.turboToggle = turboToggle;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        panel.setProfiler(profiler);
     }
 
 }
@@ -1,33 +1,120 @@
 package emu;
 
-import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 import javax.swing.JPanel;
 
 import chip.Chip;
+import chip.FrameExchange;
+import chip.Profiler;
 
 public class ChipPanel extends JPanel {
 
-    private Chip chip;
+    private static final int BLACK = 0x000000;
+    private static final int WHITE = 0xFFFFFF;
+    //XO-CHIP colors by plane bits: neither, plane 1, plane 2, both
+    private static final int[] PALETTE = {BLACK, WHITE, 0xAAAAAA, 0x555555};
 
-    public ChipPanel(Chip chip) {
-        this.chip = chip;
+    //frames published by the emulation thread
+    private final FrameExchange frames;
+    //the rows currently in the image
+    private final long[] shown;
+
+    //one image pixel per chip pixel, scaled up when drawn
+    private final BufferedImage image;
+    //the image's backing array, written directly
+    private final int[] pixels;
+    //gets the paint times when profiling, may be set from another thread
+    private volatile Profiler profiler;
+
+    //display geometry, see Chip.getDisplayRows()
+    private final int width;
+    private final int height;
+    private final int words;
+    private final int planes;
+
+    public ChipPanel(FrameExchange frames) {
+        this(frames, Chip.WIDTH, Chip.HEIGHT, 1);
+    }
+
+    public ChipPanel(FrameExchange frames, int width, int height, int planes) {
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.words = width / 64;
+        this.planes = planes;
+        shown = new long[words * height * planes];
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
     }
 
     public void paint(Graphics g) {
-        byte[] display = chip.getDisplay();
-        // go through display array and set each pixel
-        for(int i = 0; i < display.length; i++) {
-            if(display[i] == 0)
-                g.setColor(Color.BLACK);
-            else
-                g.setColor(Color.WHITE);
-
-            int x = (i % 64);
-            int y = (int)Math.floor(i / 64);
-
-            g.fillRect(x * 10, y * 10, 10, 10);
+        long start = System.nanoTime();
+        // newest complete frame, then only rewrite the rows that differ from what is in the image
+        long[] rows = frames.acquire();
+        if(rows.length == height) {
+            for(int y = 0; y < height; y++) {
+                if(rows[y] != shown[y]) {
+                    updateRow(y, rows[y]);
+                    shown[y] = rows[y];
+                }
+            }
+        } else {
+            for(int y = 0; y < height; y++) {
+                if(rowChanged(rows, y)) {
+                    updateWideRow(rows, y);
+                }
+            }
+        }
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        Profiler profiler = this.profiler;
+        if(profiler != null) {
+            profiler.paint(System.nanoTime() - start);
+        }
+    }
+
+    private void updateRow(int y, long row) {
+        int offset = y * width;
+        for(int x = 0; x < width; x++) {
+            pixels[offset + x] = ((row >>> (width - 1 - x)) & 1) != 0 ? WHITE : BLACK;
+        }
+    }
+
+    //compares every word of row y in every plane with what is shown and takes the new ones
+    private boolean rowChanged(long[] rows, int y) {
+        boolean changed = false;
+        for(int plane = 0; plane < planes; plane++) {
+            int at = (plane * height + y) * words;
+            for(int w = 0; w < words; w++) {
+                if(rows[at + w] != shown[at + w]) {
+                    shown[at + w] = rows[at + w];
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void updateWideRow(long[] rows, int y) {
+        int offset = y * width;
+        for(int w = 0; w < words; w++) {
+            for(int bit = 0; bit < 64; bit++) {
+                int color = 0;
+                for(int plane = 0; plane < planes; plane++) {
+                    color |= (int)((rows[(plane * height + y) * words + w] >>> (63 - bit)) & 1) << plane;
+                }
+                pixels[offset + w * 64 + bit] = PALETTE[color];
+            }
         }
     }
 
@@ -1,35 +1,241 @@
 package emu;
 
+import chip.Beeper;
 import chip.Chip;
+import chip.DebugConsole;
+import chip.Debugger;
+import chip.EngineType;
+import chip.FrameExchange;
+import chip.Keypad;
+import chip.Machine;
+import chip.Movie;
+import chip.Profiler;
+import chip.ProgramAnalysis;
+import chip.Quirks;
+import chip.Scheduler;
+import chip.TraceWriter;
+import chip.UnsupportedOpcodeException;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import rom.Rom;
+import rom.RomLibrary;
+import video.FrameRecorder;
+import video.FrameSink;
 import java.util.Scanner;
 
 public class Main extends Thread{
 private static Chip chip8;
 private static ChipFrame frame;
-private String game;
-    public Main(String game) {
+private static FrameExchange frames;
+private static Movie movie;
+private static FrameRecorder video;
+    public Main(Rom game, RomLibrary library) {
         chip8 = new Chip();
+        // -Dchip8.machine=chip8|schip|xochip, otherwise guessed from the file name (.sc8, .xo8)
+        String machine = System.getProperty("chip8.machine");
+        chip8.setMachine(machine != null ? Machine.parse(machine) : Machine.forFile(game.getName()));
+        // -Dchip8.quirks=modern|vip|chip48|schip|xochip, otherwise what the library has for the ROM's hash
+        String quirks = System.getProperty("chip8.quirks");
+        chip8.setQuirks(quirks != null ? Quirks.parse(quirks) : library.getQuirks(game));
         chip8.init();
-        chip8.loadProgram("./" +  game);
-        frame = new ChipFrame(chip8);
+        // -Dchip8.engine=switch|decoded|jit picks the execution engine
+        chip8.setEngine(EngineType.parse(System.getProperty("chip8.engine", "switch")));
+        byte[] program = null;
+        try {
+            program = library.read(game);
+            chip8.loadProgram(program);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+        // what the ROM could run into is reported up front, -Dchip8.verify=true refuses ROMs that would stop
+        ProgramAnalysis analysis = ProgramAnalysis.of(program, chip8.getMachine(), chip8.getQuirks());
+        for(ProgramAnalysis.Finding finding : analysis.getFindings()) {
+            if(finding.getKind() == ProgramAnalysis.Kind.UNSUPPORTED) {
+                System.err.println(game.getName() + ": " + finding);
+            }
+        }
+        if(Boolean.getBoolean("chip8.verify") && !analysis.isRunnable()) {
+            System.err.println(game.getName() + " can reach unsupported opcodes, not starting it");
+            System.exit(1);
+        }
+        chip8.setAnalysis(analysis);
+        // -Dchip8.seed=<n> fixes the random numbers CXNN returns
+        Long seed = Long.getLong("chip8.seed");
+        if(seed != null) {
+            chip8.setSeed(seed);
+        }
+        // -Dchip8.record=<file> records the key input as a movie for chip.MoviePlayer
+        String record = System.getProperty("chip8.record");
+        if(record != null) {
+            startRecording(record, seed != null ? seed : System.nanoTime(), program);
+        }
+        // -Dchip8.video=<file.gif|file.raw> records every frame shown, encoded on a background thread
+        String videoFile = System.getProperty("chip8.video");
+        if(videoFile != null) {
+            startVideo(videoFile);
+        }
+        // -Dchip8.trace=<file> writes every executed instruction, off by default
+        String trace = System.getProperty("chip8.trace");
+        if(trace != null) {
+            try {
+                final TraceWriter writer = new TraceWriter(trace);
+                chip8.setTraceListener(writer);
+                // the window closes with System.exit, flush what we have on the way out
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {}
+                }));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        frames = new FrameExchange(chip8.getDisplayRows().length);
+        frame = new ChipFrame(frames, chip8.getWidth(), chip8.getHeight(), chip8.getPlanes());
+        // -Dchip8.profile=true counts instructions, draws and paints, visible over JMX as chip8:type=Profiler
+        if(Boolean.getBoolean("chip8.profile")) {
+            final Profiler profiler = new Profiler();
+            profiler.register();
+            chip8.setProfiler(profiler);
+            frame.setProfiler(profiler);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(profiler)));
+        }
     }
 
-    public void run() {
-        // 60 hz, 60 fps
-        while (true) {
-            chip8.setKeyBuffer(frame.getKeyBuffer());
-            chip8.run();
-            if(chip8.needsRedraw()) {
-                frame.repaint();
-                chip8.removeDrawFlag();
+    private static void startRecording(final String file, long seed, byte[] program) {
+        int hz = Integer.getInteger("chip8.hz", Scheduler.DEFAULT_HZ);
+        if(hz == Scheduler.UNTHROTTLED) {
+            // how many instructions a frame gets depends on the host then, it could not be replayed
+            System.err.println("Recording needs a fixed instruction rate, not recording");
+            return;
+        }
+        if(Boolean.getBoolean("chip8.debug")) {
+            // frames spent paused or stepping in the debugger do not run a frame's instructions, they could not be replayed
+            System.err.println("Recording cannot replay the debugger pausing and stepping, not recording");
+            return;
+        }
+        movie = new Movie(chip8.getMachine(), chip8.getQuirks(), seed, hz, program);
+        chip8.setSeed(seed);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(file)))) {
+                synchronized(movie) {
+                    movie.write(out);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }));
+    }
+
+    private static void startVideo(String file) {
+        try {
+            video = new FrameRecorder(FrameSink.open(file, chip8.getWidth(), chip8.getHeight(), chip8.getPlanes()),
+                    chip8.getDisplayRows().length);
+        } catch (IOException e) {
+            System.err.println("Not recording video: " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                //sleep for 16 milliseconds, to get around 60 fps
-                Thread.sleep(16);
-            } catch (InterruptedException e) {}
+                synchronized(video) {
+                    video.close();
+                }
+                if(video.getDropped() > 0) {
+                    System.err.println("Video dropped " + video.getDropped() + " of " + video.getFrames() + " frames");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    private static void startDebugger(Scheduler scheduler) {
+        Debugger debugger = new Debugger(chip8);
+        debugger.setWakeup(scheduler::wake);
+        DebugConsole console = new DebugConsole(debugger, new BufferedReader(new InputStreamReader(System.in)), System.out);
+        debugger.pause();
+        Thread thread = new Thread(() -> {
+            console.run();
+            System.exit(0);
+        }, "chip8-debug");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        // instructions per second is configurable with -Dchip8.hz, 0 runs unthrottled
+        // timers and frames stay at 60hz either way
+        int hz = Integer.getInteger("chip8.hz", Scheduler.DEFAULT_HZ);
+        final Keypad keypad = frame.getKeypad();
+        // -Dchip8.audio=false turns the beep off, -Dchip8.audio.latency=<ms> sizes the audio buffer
+        final Beeper beeper = Boolean.parseBoolean(System.getProperty("chip8.audio", "true"))
+                ? new Beeper(Integer.getInteger("chip8.audio.latency", Beeper.DEFAULT_LATENCY_MILLIS)) : null;
+        Scheduler scheduler = new Scheduler(chip8, new Scheduler.FrameListener() {
+            @Override
+            public void frame(Chip chip, boolean render) {
+                // keys are latched once per frame
+                chip.setKeys(keypad.getState());
+                if(beeper != null) {
+                    beeper.setBeeping(chip.getSoundTimer() > 0);
+                }
+                if(movie != null) {
+                    synchronized(movie) {
+                        movie.recordFrame(chip.getKeys());
+                    }
+                }
+                if(video != null) {
+                    // every frame, rendered or not, the encoder keeps up on its own thread
+                    synchronized(video) {
+                        video.offer(chip.getDisplayRows());
+                    }
+                }
+                if(render && chip.needsRedraw()) {
+                    // hand over a finished frame, the panel never reads the live display
+                    frames.publish(chip);
+                    frame.repaint();
+                    chip.removeDrawFlag();
+                }
+            }
+        }, hz);
+        // Tab or -Dchip8.turbo=true runs as fast as possible, rendering every -Dchip8.turbo.render=<n>th frame
+        // with timers following -Dchip8.turbo.timers=emulated|wall time
+        scheduler.setTurbo(Boolean.getBoolean("chip8.turbo"));
+        scheduler.setTurboRenderInterval(Integer.getInteger("chip8.turbo.render", Scheduler.DEFAULT_TURBO_RENDER_INTERVAL));
+        Scheduler.TimerClock timers = Scheduler.TimerClock.valueOf(
+                System.getProperty("chip8.turbo.timers", "emulated").trim().toUpperCase());
+        if(movie != null && timers == Scheduler.TimerClock.WALL) {
+            // ticks that do not line up with frames could not be replayed
+            System.err.println("Recording needs emulated timers in turbo mode, using them");
+            timers = Scheduler.TimerClock.EMULATED;
+        }
+        scheduler.setTurboTimers(timers);
+        frame.setTurboToggle(() -> {
+            scheduler.setTurbo(!scheduler.isTurbo());
+            frame.setTitle(scheduler.isTurbo() ? "Chip 8 Emulator (turbo)" : "Chip 8 Emulator");
+        });
+        // skip wait loops and sleep in FX0A until a key arrives
+        chip8.setIdleSkip(true);
+        scheduler.setIdleParking(true);
+        keypad.setListener(scheduler::wake);
+        // -Dchip8.debug=true starts paused with a debugger on the console, see chip.DebugConsole
+        if(Boolean.getBoolean("chip8.debug")) {
+            startDebugger(scheduler);
+        }
+        try {
+            scheduler.run();
+        } catch (UnsupportedOpcodeException e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
         }
     }
 
@@ -44,7 +250,7 @@ private String game;
                 e.printStackTrace();
             }
         }
-        Main main = new Main(menu.getGame());
+        Main main = new Main(menu.getGame(), menu.getLibrary());
         main.start();
 
     }
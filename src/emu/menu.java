@@ -3,13 +3,18 @@ package emu;
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import rom.Rom;
+import rom.RomLibrary;
 
 public class menu extends JFrame {
     private JComboBox gamesList;
     private JPanel panel1;
     private JButton loadButton;
-    private String game;
+    private Rom game;
+    private final RomLibrary library;
 
     public menu() {
 
@@ -18,24 +23,32 @@ public class menu extends JFrame {
         setContentPane(panel1);
         pack();
 
-        File root = new File("./");
-        File[] files = root.listFiles();
-        for (File file : files) {
-            if (file.getName().endsWith(".c8")) {
-                gamesList.addItem(file.getName());
-            }
+        // the index keeps the hashes, so only new or changed ROMs are read on later launches
+        library = new RomLibrary(Paths.get("./.chip8-roms"));
+        try {
+            library.scan(Paths.get("./"));
+            library.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Rom rom : library.getRoms()) {
+            gamesList.addItem(rom);
         }
 
         loadButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                game = (String) gamesList.getSelectedItem();
+                game = (Rom) gamesList.getSelectedItem();
                 dispose(); // Close the menu window
             }
         });
     }
 
-    public String getGame() {
+    public Rom getGame() {
         return game;
     }
+
+    public RomLibrary getLibrary() {
+        return library;
+    }
 }
@@ -0,0 +1,74 @@
+package rom;
+
+/**
+ * A ROM found by RomLibrary: where it lives and its content hashes. The bytes are only read on load
+ */
+public class Rom {
+
+    private final String name;
+    //file the ROM is in, the ROM itself or a zip archive
+    private final String source;
+    //entry inside the zip archive, null for plain files
+    private final String entry;
+    private final int size;
+    //last modified time of the source, an unchanged source is not hashed again
+    private final long modified;
+    private final long crc32;
+    private final byte[] sha1;
+
+    Rom(String name, String source, String entry, int size, long modified, long crc32, byte[] sha1) {
+        this.name = name;
+        this.source = source;
+        this.entry = entry;
+        this.size = size;
+        this.modified = modified;
+        this.crc32 = crc32;
+        this.sha1 = sha1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getEntry() {
+        return entry;
+    }
+
+    public boolean isArchived() {
+        return entry != null;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    long getModified() {
+        return modified;
+    }
+
+    public long getCrc32() {
+        return crc32;
+    }
+
+    public String getSha1() {
+        return RomLibrary.hex(sha1);
+    }
+
+    byte[] sha1Bytes() {
+        return sha1;
+    }
+
+    //index key, unique per source and entry
+    String key() {
+        return entry == null ? source : source + "!" + entry;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
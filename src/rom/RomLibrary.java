@@ -0,0 +1,395 @@
+package rom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import chip.Quirks;
+
+/**
+ * Catalog of the ROMs in a set of directories and zip archives, indexed by CRC32 and SHA-1.
+ *
+ * The first scan hashes every ROM and the index is saved to disk. Later scans only list the
+ * directories and take size, hashes and zip contents from the index for every file whose size and
+ * modification time did not change, so a rescan costs a stat per file. ROM bytes are read on load:
+ * plain files are read whole, zip entries are inflated.
+ *
+ * Quirk profiles can be assigned per SHA-1, so a ROM keeps its profile wherever the file is.
+ *
+ * Index format (big endian): magic "C8RI", version, count, then per ROM: name, source, entry
+ * ("" for plain files), size, modified, CRC32 and SHA-1, then a count of quirk assignments
+ * and (SHA-1, profile name) per assignment.
+ */
+public class RomLibrary {
+
+    private static final int MAGIC = 0x43385249;
+    private static final int VERSION = 2;
+
+    //memory from 0x200 up on the largest machine (XO-CHIP)
+    private static final int MAX_SIZE = 65536 - 0x200;
+
+    private final Path indexFile;
+    //roms by key, in scan order
+    private final Map<String, Rom> roms = new LinkedHashMap<>();
+    private final Map<String, Rom> bySha1 = new HashMap<>();
+    private final Map<Long, Rom> byCrc32 = new HashMap<>();
+    //what the saved index held, reused by the scan while the source is unchanged
+    private Map<String, List<Rom>> indexed = new HashMap<>();
+    //quirk profiles by SHA-1 (hex), kept even for ROMs the scans no longer find
+    private Map<String, Quirks> quirks = new HashMap<>();
+
+    private int hashed;
+    private int reused;
+
+    /**
+     * Opens a library backed by the given index file, which is read if it exists.
+     * A missing, outdated or damaged index only means the next scan hashes everything
+     */
+    public RomLibrary(Path indexFile) {
+        this.indexFile = indexFile;
+        try {
+            readIndex();
+        } catch (NoSuchFileException e) {
+            // first run
+        } catch (IOException e) {
+            System.err.println("Ignoring ROM index " + indexFile + ": " + e.getMessage());
+            indexed = new HashMap<>();
+            quirks = new HashMap<>();
+        }
+    }
+
+    /**
+     * Adds every .c8 / .ch8 / .sc8 / .xo8 file under the directory, including the ones inside zip archives
+     */
+    public void scan(Path root) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if(attributes.isRegularFile()) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if(file.equals(root)) {
+                    throw e;
+                }
+                // an unreadable directory or file only drops what is in it
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                if(e != null) {
+                    System.err.println("Skipping the rest of " + dir + ": " + e.getMessage());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        files.sort(null);
+        for(Path file : files) {
+            String name = file.getFileName().toString().toLowerCase();
+            try {
+                if(name.endsWith(".zip")) {
+                    scanArchive(file);
+                } else if(isRom(name)) {
+                    scanFile(file);
+                }
+            } catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    //writes the index of everything scanned so far, atomically replacing the old one
+    public void save() throws IOException {
+        Path parent = indexFile.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, "roms", ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(roms.size());
+            for(Rom rom : roms.values()) {
+                out.writeUTF(rom.getName());
+                out.writeUTF(rom.getSource());
+                out.writeUTF(rom.isArchived() ? rom.getEntry() : "");
+                out.writeInt(rom.getSize());
+                out.writeLong(rom.getModified());
+                out.writeInt((int)rom.getCrc32());
+                out.write(rom.sha1Bytes());
+            }
+            out.writeInt(quirks.size());
+            for(Map.Entry<String, Quirks> assigned : quirks.entrySet()) {
+                out.write(unhex(assigned.getKey()));
+                out.writeUTF(assigned.getValue().name());
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public List<Rom> getRoms() {
+        return new ArrayList<>(roms.values());
+    }
+
+    //null when no scanned ROM has this SHA-1 (hex, any case)
+    public Rom findBySha1(String sha1) {
+        return bySha1.get(sha1.toLowerCase());
+    }
+
+    public Rom findByCrc32(long crc32) {
+        return byCrc32.get(crc32 & 0xFFFFFFFFL);
+    }
+
+    //the profile assigned to the ROM's content, null when it runs with its machine's default
+    public Quirks getQuirks(Rom rom) {
+        return quirks.get(rom.getSha1());
+    }
+
+    //assigns a profile to every ROM with this content, null removes it. Kept by the next save()
+    public void setQuirks(String sha1, Quirks profile) {
+        String key = sha1.toLowerCase();
+        if(unhex(key) == null) {
+            throw new IllegalArgumentException("Not a SHA-1: " + sha1);
+        }
+        if(profile == null) {
+            quirks.remove(key);
+        } else {
+            quirks.put(key, profile);
+        }
+    }
+
+    //ROMs hashed by scans so far, and ROMs taken from the index unchanged
+    public int getHashed() {
+        return hashed;
+    }
+
+    public int getReused() {
+        return reused;
+    }
+
+    public byte[] read(Rom rom) throws IOException {
+        if(rom.isArchived()) {
+            try(ZipFile zip = new ZipFile(rom.getSource())) {
+                ZipEntry entry = zip.getEntry(rom.getEntry());
+                if(entry == null) {
+                    throw new NoSuchFileException(rom.key());
+                }
+                try(InputStream in = zip.getInputStream(entry)) {
+                    return in.readAllBytes();
+                }
+            }
+        }
+        return Files.readAllBytes(Paths.get(rom.getSource()));
+    }
+
+    private void scanFile(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if(attributes.size() > MAX_SIZE) {
+            return;
+        }
+        String source = file.toString();
+        long modified = attributes.lastModifiedTime().toMillis();
+        List<Rom> known = indexed.get(source);
+        if(known != null && known.size() == 1 && !known.get(0).isArchived()
+                && known.get(0).getSize() == attributes.size() && known.get(0).getModified() == modified) {
+            add(known.get(0));
+            reused++;
+            return;
+        }
+        // at most MAX_SIZE, read whole rather than mapped so a large scan does not pile up mappings until a GC
+        byte[] content = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        MessageDigest sha1 = sha1();
+        sha1.update(content);
+        add(new Rom(file.getFileName().toString(), source, null, content.length, modified,
+                crc.getValue(), sha1.digest()));
+        hashed++;
+    }
+
+    private void scanArchive(Path file) throws IOException {
+        String source = file.toString();
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        List<Rom> known = indexed.get(source);
+        if(known != null && !known.isEmpty() && known.get(0).isArchived() && known.get(0).getModified() == modified) {
+            // unchanged archive, it is not even opened
+            for(Rom rom : known) {
+                add(rom);
+            }
+            reused += known.size();
+            return;
+        }
+        try(ZipFile zip = new ZipFile(file.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while(entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if(entry.isDirectory() || !isRom(entry.getName().toLowerCase())
+                        || entry.getSize() > MAX_SIZE) {
+                    continue;
+                }
+                byte[] content;
+                try(InputStream in = new BufferedInputStream(zip.getInputStream(entry))) {
+                    content = in.readNBytes(MAX_SIZE + 1);
+                }
+                if(content.length > MAX_SIZE) {
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                add(new Rom(name, source, entry.getName(), content.length, modified,
+                        crc.getValue(), sha1().digest(content)));
+                hashed++;
+            }
+        }
+    }
+
+    //takes every ROM of the saved index as it is, for saving without a scan
+    private void keepIndexed() {
+        for(List<Rom> known : indexed.values()) {
+            for(Rom rom : known) {
+                add(rom);
+            }
+        }
+    }
+
+    private void add(Rom rom) {
+        roms.put(rom.key(), rom);
+        bySha1.putIfAbsent(rom.getSha1(), rom);
+        byCrc32.putIfAbsent(rom.getCrc32(), rom);
+    }
+
+    private void readIndex() throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a ROM index");
+            }
+            int version = in.readUnsignedByte();
+            if(version != VERSION) {
+                throw new IOException("Unsupported ROM index version " + version);
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String source = in.readUTF();
+                String entry = in.readUTF();
+                int size = in.readInt();
+                long modified = in.readLong();
+                long crc32 = in.readInt() & 0xFFFFFFFFL;
+                byte[] sha1 = new byte[20];
+                in.readFully(sha1);
+                Rom rom = new Rom(name, source, entry.isEmpty() ? null : entry, size, modified, crc32, sha1);
+                indexed.computeIfAbsent(source, k -> new ArrayList<>()).add(rom);
+            }
+            int assigned = in.readInt();
+            for(int i = 0; i < assigned; i++) {
+                byte[] sha1 = new byte[20];
+                in.readFully(sha1);
+                String profile = in.readUTF();
+                try {
+                    quirks.put(hex(sha1), Quirks.valueOf(profile));
+                } catch (IllegalArgumentException e) {
+                    // a profile this version does not know, the ROM gets its machine's default
+                }
+            }
+        }
+    }
+
+    private static boolean isRom(String name) {
+        return name.endsWith(".c8") || name.endsWith(".ch8") || name.endsWith(".sc8") || name.endsWith(".xo8");
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    //null unless the string is 40 hex digits
+    private static byte[] unhex(String hex) {
+        if(hex.length() != 40) {
+            return null;
+        }
+        byte[] bytes = new byte[20];
+        for(int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if(high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte)(high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Usage: java rom.RomLibrary <index> <dir>...
+     * Scans the directories, saves the index and lists every ROM with its hashes.
+     * java rom.RomLibrary <index> -quirks <sha1> <profile|default> assigns a quirk profile instead
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: RomLibrary <index file> <dir>...");
+            System.err.println("       RomLibrary <index file> -quirks <sha1> <modern|vip|chip48|schip|xochip|default>");
+            System.exit(1);
+        }
+        RomLibrary library = new RomLibrary(Paths.get(args[0]));
+        if(args[1].equals("-quirks") && args.length == 4) {
+            library.setQuirks(args[2], args[3].equalsIgnoreCase("default") ? null : Quirks.parse(args[3]));
+            // the assignment is all that changes, the index keeps its ROMs for the next scan
+            library.keepIndexed();
+            library.save();
+            return;
+        }
+        long start = System.nanoTime();
+        for(int i = 1; i < args.length; i++) {
+            library.scan(Paths.get(args[i]));
+        }
+        long elapsed = System.nanoTime() - start;
+        library.save();
+        for(Rom rom : library.getRoms()) {
+            Quirks profile = library.getQuirks(rom);
+            System.out.println(String.format("%08X %s %5d %s%s", rom.getCrc32(), rom.getSha1(), rom.getSize(), rom.key(),
+                    profile == null ? "" : " (" + profile + ")"));
+        }
+        System.out.println(String.format("%d ROMs (%d hashed, %d from the index) in %.1f ms",
+                library.getRoms().size(), library.getHashed(), library.getReused(), elapsed / 1e6));
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client socket, handled only by the selector thread it was registered with.
+ *
+ * The client starts with a JOIN naming a session and then may send key messages. The server
+ * sends INFO once and then FRAME messages, each the delta from the last frame this client got.
+ * A frame is only encoded once the previous one is fully written, so a slow client skips
+ * frames instead of queueing them, and the next delta covers everything it missed.
+ * When the session halts, the client gets an ERROR after its last frame and is disconnected.
+ */
+class Connection {
+
+    //client to server: JOIN session(int), KEY_DOWN key(byte), KEY_UP key(byte), KEYS mask(short)
+    static final byte JOIN = 'J';
+    static final byte KEY_DOWN = 'D';
+    static final byte KEY_UP = 'U';
+    static final byte KEYS = 'K';
+
+    //server to client, each as type, payload length(int), payload
+    //INFO: session(int), machine(byte), display words(short), width(short), height(short), planes(byte)
+    static final byte INFO = 'I';
+    //FRAME: frame number(long), delta as written by FrameCodec
+    static final byte FRAME = 'F';
+    //ERROR: message(UTF), the connection is closed after it
+    static final byte ERROR = 'E';
+
+    private final StreamServer server;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer in = ByteBuffer.allocate(256);
+    //in read mode between writes, empty until JOIN
+    private ByteBuffer out = ByteBuffer.allocate(0);
+
+    private Session session;
+    //the display as the client has it, and the frame number it came from
+    private long[] sent;
+    private long sentFrame = -1;
+    //set by frameReady() until the selector thread picks it up
+    private final AtomicBoolean ready = new AtomicBoolean();
+    private boolean closing;
+
+    Connection(StreamServer server, SelectorLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    //called by the emulation thread after its session published a frame
+    void frameReady() {
+        if(ready.compareAndSet(false, true)) {
+            loop.ready(this);
+        }
+    }
+
+    //selector thread: the flag is cleared first so a frame published meanwhile is not lost
+    void takeReady() throws IOException {
+        ready.set(false);
+        if(!closing) {
+            flush();
+        }
+    }
+
+    void read() throws IOException {
+        if(channel.read(in) < 0) {
+            close();
+            return;
+        }
+        in.flip();
+        while(!closing && handle()) {
+            // handle() takes one message per call
+        }
+        in.compact();
+        if(!closing) {
+            flush();
+        }
+    }
+
+    //handles the next complete message in the buffer, false when it needs more bytes
+    private boolean handle() throws IOException {
+        if(in.remaining() < 1) {
+            return false;
+        }
+        byte type = in.get(in.position());
+        int size = type == JOIN ? 5 : type == KEYS ? 3 : 2;
+        if(in.remaining() < size) {
+            return false;
+        }
+        in.get();
+        if(session == null) {
+            if(type != JOIN) {
+                fail("Expected JOIN");
+                return false;
+            }
+            join(in.getInt());
+            return true;
+        }
+        switch(type) {
+            case KEY_DOWN:
+                session.getKeypad().press(in.get() & 0xF);
+                return true;
+            case KEY_UP:
+                session.getKeypad().release(in.get() & 0xF);
+                return true;
+            case KEYS:
+                session.getKeypad().set(in.getShort());
+                return true;
+            default:
+                fail("Unknown message " + type);
+                return false;
+        }
+    }
+
+    private void join(int id) throws IOException {
+        Session session = server.getSession(id);
+        if(session == null) {
+            fail("No session " + id);
+            return;
+        }
+        this.session = session;
+        int words = session.getDisplayWords();
+        sent = new long[words];
+        out = ByteBuffer.allocate(64 + FrameCodec.maxEncodedSize(words));
+        out.put(INFO);
+        out.putInt(12);
+        out.putInt(session.getId());
+        out.put((byte)session.getMachine().ordinal());
+        out.putShort((short)words);
+        out.putShort((short)session.getMachine().getWidth());
+        out.putShort((short)session.getMachine().getHeight());
+        out.put((byte)session.getMachine().getPlanes());
+        // the first frame is the whole display as a delta against black
+        encodeFrame();
+        session.attach(this);
+    }
+
+    //writes what is pending, then the latest frame if the client does not have it yet
+    void flush() throws IOException {
+        if(out.hasRemaining()) {
+            channel.write(out);
+        }
+        if(!out.hasRemaining() && session != null && session.getFrames() != sentFrame) {
+            out.clear();
+            encodeFrame();
+            channel.write(out);
+        }
+        if(!out.hasRemaining() && session != null && session.getHalted() != null) {
+            // the client has the last frame, now it learns why no more are coming
+            fail("Session " + session.getId() + " halted: " + session.getHalted());
+            return;
+        }
+        key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    //appends a FRAME to out and leaves out in read mode
+    private void encodeFrame() {
+        // frames first: a newer display than the count only means the next delta is empty
+        long frame = session.getFrames();
+        long[] display = session.getDisplay();
+        out.put(FRAME);
+        int length = out.position();
+        out.putInt(0);
+        out.putLong(frame);
+        FrameCodec.encode(display, sent, out);
+        out.putInt(length, out.position() - length - 4);
+        out.flip();
+        sentFrame = frame;
+    }
+
+    //sends an error and closes, best effort
+    private void fail(String message) throws IOException {
+        byte[] utf = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer error = ByteBuffer.allocate(7 + utf.length);
+        error.put(ERROR).putInt(utf.length + 2).putShort((short)utf.length).put(utf).flip();
+        channel.write(error);
+        close();
+    }
+
+    void close() {
+        closing = true;
+        if(session != null) {
+            session.detach(this);
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
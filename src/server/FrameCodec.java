@@ -0,0 +1,82 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a display as the XOR against the display the client already has, run length encoded.
+ *
+ * The XOR words are written as runs: a varint count of zero words, a varint count of literal
+ * words, then the literal words, until every word is covered. An unchanged frame is a single
+ * pair of counts and a client that has nothing yet gets a delta against an all black display.
+ */
+public final class FrameCodec {
+
+    private FrameCodec() {
+    }
+
+    //upper bound of encode()'s output for a display of this many words
+    public static int maxEncodedSize(int words) {
+        // worst case alternates one zero and one literal word, two varints each
+        return words * 8 + (words / 2 + 1) * 2 * 5;
+    }
+
+    /**
+     * Writes the delta from previous to rows into out and makes previous equal to rows.
+     * out must have maxEncodedSize(rows.length) bytes left
+     */
+    public static void encode(long[] rows, long[] previous, ByteBuffer out) {
+        int i = 0;
+        while(i < rows.length) {
+            int zeros = 0;
+            while(i < rows.length && rows[i] == previous[i]) {
+                zeros++;
+                i++;
+            }
+            int literals = 0;
+            while(i + literals < rows.length && rows[i + literals] != previous[i + literals]) {
+                literals++;
+            }
+            writeVarint(out, zeros);
+            writeVarint(out, literals);
+            for(int end = i + literals; i < end; i++) {
+                out.putLong(rows[i] ^ previous[i]);
+                previous[i] = rows[i];
+            }
+        }
+    }
+
+    //applies a delta written by encode() to rows
+    public static void decode(ByteBuffer in, long[] rows) {
+        int i = 0;
+        while(i < rows.length) {
+            i += readVarint(in);
+            int literals = readVarint(in);
+            if(i + literals > rows.length) {
+                throw new IllegalArgumentException("Delta runs past the display");
+            }
+            for(int end = i + literals; i < end; i++) {
+                rows[i] ^= in.getLong();
+            }
+        }
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A selector thread serving a share of the connections. Other threads hand it new sockets and
+ * connections with a new frame through queues and a wakeup that is coalesced, so hundreds of
+ * sessions publishing at 60hz cost at most one wakeup per loop round.
+ */
+class SelectorLoop implements Runnable {
+
+    private final StreamServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    SelectorLoop(StreamServer server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+    }
+
+    //acceptor thread: a new client for this loop
+    void add(SocketChannel channel) {
+        accepted.add(channel);
+        wakeup();
+    }
+
+    //emulation thread: the connection has a frame to send
+    void ready(Connection connection) {
+        ready.add(connection);
+        wakeup();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void wakeup() {
+        if(woken.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                selector.select();
+                woken.set(false);
+                register();
+                Connection connection;
+                while((connection = ready.poll()) != null) {
+                    handle(connection, null);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle((Connection)key.attachment(), key);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Selector failed: " + e.getMessage());
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                ((Connection)key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void register() throws IOException {
+        SocketChannel channel;
+        while((channel = accepted.poll()) != null) {
+            channel.configureBlocking(false);
+            // small frames should leave at once
+            channel.socket().setTcpNoDelay(true);
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(server, this, channel, key));
+            } catch (ClosedChannelException e) {
+                // the client left before we got to it
+            }
+        }
+    }
+
+    //key is null for a connection taken from the ready queue
+    private void handle(Connection connection, SelectionKey key) {
+        try {
+            if(key == null) {
+                connection.takeReady();
+                return;
+            }
+            if(key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if(key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // a broken client only takes itself down
+            connection.close();
+        }
+    }
+}
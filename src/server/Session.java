@@ -0,0 +1,121 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import chip.Chip;
+import chip.EngineType;
+import chip.Keypad;
+import chip.Machine;
+import chip.ProgramAnalysis;
+import chip.Scheduler;
+
+/**
+ * One headless machine served to any number of connections.
+ *
+ * frame() is run at 60hz by the server's emulation pool. After a frame that drew, the display is
+ * copied into a new array and published, and every attached connection is told; connections
+ * encode from the published copy on their selector thread and never touch the Chip.
+ * When the machine halts the connections are told the same way and send an ERROR with the reason.
+ */
+public class Session {
+
+    private final int id;
+    private final Chip chip;
+    private final Keypad keypad = new Keypad();
+    private final int instructionsPerSecond;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+
+    //latest published display, never written after publishing, and how many were published
+    private volatile long[] display;
+    private volatile long frames;
+    //why the machine stopped, null while it runs
+    private volatile String halted;
+
+    //leftover from dividing the instruction rate into frames
+    private int cycleRemainder;
+
+    public Session(int id, byte[] program, Machine machine, EngineType engine, int instructionsPerSecond) {
+        this.id = id;
+        this.instructionsPerSecond = instructionsPerSecond;
+        chip = new Chip();
+        chip.setMachine(machine);
+        chip.setEngine(engine);
+        chip.init();
+        chip.loadProgram(program);
+        chip.setAnalysis(ProgramAnalysis.of(program, machine, chip.getQuirks()));
+        chip.setIdleSkip(true);
+        display = chip.getDisplayRows().clone();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Machine getMachine() {
+        return chip.getMachine();
+    }
+
+    //words in the packed display, the same for every frame of the session
+    public int getDisplayWords() {
+        return display.length;
+    }
+
+    public Keypad getKeypad() {
+        return keypad;
+    }
+
+    long[] getDisplay() {
+        return display;
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    public String getHalted() {
+        return halted;
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    void attach(Connection connection) {
+        connections.add(connection);
+    }
+
+    void detach(Connection connection) {
+        connections.remove(connection);
+    }
+
+    //one 60hz frame, only ever called by one thread at a time
+    void frame() {
+        if(halted != null) {
+            return;
+        }
+        // keys are latched once per frame, same as the window
+        chip.setKeys(keypad.getState());
+        int total = instructionsPerSecond + cycleRemainder;
+        cycleRemainder = total % Scheduler.FRAME_HZ;
+        try {
+            chip.execute(total / Scheduler.FRAME_HZ);
+        } catch (RuntimeException e) {
+            halted = e.getMessage() != null ? e.getMessage() : e.toString();
+            // each connection sends an ERROR and closes once its last frame is out
+            for(Connection connection : connections) {
+                connection.frameReady();
+            }
+            return;
+        }
+        chip.tickTimers();
+        if(chip.needsRedraw()) {
+            chip.removeDrawFlag();
+            display = chip.getDisplayRows().clone();
+            frames++;
+            for(Connection connection : connections) {
+                connection.frameReady();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal blocking client for a StreamServer session: joins, keeps the display up to date from the
+ * deltas and can send keys. Enough for scripted agents and for checking a server from a shell
+ */
+public class StreamClient implements AutoCloseable {
+
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private ByteBuffer payload = ByteBuffer.allocate(256);
+
+    private int session;
+    private int width;
+    private int height;
+    private int planes;
+    private long[] display;
+    private long frame = -1;
+    private long bytes;
+
+    public StreamClient(InetSocketAddress address, int session) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        ByteBuffer join = ByteBuffer.allocate(5);
+        join.put(Connection.JOIN).putInt(session).flip();
+        write(join);
+        // INFO comes first
+        readMessage();
+    }
+
+    //reads messages until the next frame has been applied, returns its number
+    public long nextFrame() throws IOException {
+        long before = frame;
+        while(frame == before) {
+            readMessage();
+        }
+        return frame;
+    }
+
+    public void press(int key) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(2);
+        message.put(Connection.KEY_DOWN).put((byte)key).flip();
+        write(message);
+    }
+
+    public void release(int key) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(2);
+        message.put(Connection.KEY_UP).put((byte)key).flip();
+        write(message);
+    }
+
+    public long[] getDisplay() {
+        return display;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    //number of the frame the display is at, -1 before the first
+    public long getFrame() {
+        return frame;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    //bytes received so far, headers included
+    public long getBytes() {
+        return bytes;
+    }
+
+    private void readMessage() throws IOException {
+        header.clear();
+        readFully(header);
+        header.flip();
+        byte type = header.get();
+        int length = header.getInt();
+        if(payload.capacity() < length) {
+            payload = ByteBuffer.allocate(length);
+        }
+        payload.clear().limit(length);
+        readFully(payload);
+        payload.flip();
+        bytes += 5 + length;
+        switch(type) {
+            case Connection.INFO:
+                session = payload.getInt();
+                payload.get();
+                display = new long[payload.getShort()];
+                width = payload.getShort();
+                height = payload.getShort();
+                planes = payload.get();
+                break;
+            case Connection.FRAME:
+                frame = payload.getLong();
+                FrameCodec.decode(payload, display);
+                break;
+            case Connection.ERROR:
+                byte[] utf = new byte[payload.getShort()];
+                payload.get(utf);
+                throw new IOException("Server: " + new String(utf, StandardCharsets.UTF_8));
+            default:
+                throw new IOException("Unknown message " + type);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //the first plane as text, one line per row
+    public String render() {
+        int words = display.length / (height * planes);
+        StringBuilder out = new StringBuilder();
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                long word = display[y * words + (x >> 6)];
+                out.append((word << (x & 63)) < 0 ? '#' : '.');
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Usage: java server.StreamClient <host> <port> <session> [seconds]
+     * Watches a session, then prints the frame rate, bandwidth and the last frame
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: StreamClient <host> <port> <session> [seconds]");
+            System.exit(1);
+        }
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 5;
+        try(StreamClient client = new StreamClient(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+                Integer.parseInt(args[2]))) {
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            int frames = 0;
+            while(System.nanoTime() - end < 0) {
+                client.nextFrame();
+                frames++;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.print(client.render());
+            System.out.println(String.format("%d frames in %.1f s (%.1f fps), %.1f kB/s", frames, elapsed,
+                    frames / elapsed, client.getBytes() / elapsed / 1e3));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chip.EngineType;
+import chip.Machine;
+import chip.Scheduler;
+
+/**
+ * Serves headless sessions over TCP without any Swing, for agents and observers.
+ *
+ * Sessions are stepped at 60hz by a small scheduled pool, not a thread each, and their
+ * connections are spread over a few selector threads with non blocking channels. Every client
+ * gets XOR deltas of the display (see FrameCodec) and may send keys back; any number of clients
+ * can join the same session. The protocol is described in Connection.
+ */
+public class StreamServer {
+
+    private final List<Session> sessions;
+    private final SelectorLoop[] loops;
+    private final ScheduledExecutorService emulation;
+    private ServerSocketChannel server;
+    private volatile boolean running;
+
+    public StreamServer(List<Session> sessions, int selectorThreads, int emulationThreads) throws IOException {
+        if(selectorThreads <= 0 || emulationThreads <= 0) {
+            throw new IllegalArgumentException("Need at least one thread of each kind");
+        }
+        this.sessions = new ArrayList<>(sessions);
+        loops = new SelectorLoop[selectorThreads];
+        for(int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(this);
+        }
+        emulation = Executors.newScheduledThreadPool(emulationThreads, threads("chip8-emulation-"));
+    }
+
+    //null when there is no session with this id
+    Session getSession(int id) {
+        return id >= 0 && id < sessions.size() ? sessions.get(id) : null;
+    }
+
+    public List<Session> getSessions() {
+        return sessions;
+    }
+
+    //binds the address and starts serving, returns once everything runs
+    public void start(InetSocketAddress address) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        running = true;
+        for(int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "chip8-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for(Session session : sessions) {
+            emulation.scheduleAtFixedRate(session::frame, 0, Scheduler.FRAME_NANOS, TimeUnit.NANOSECONDS);
+        }
+        Thread acceptor = new Thread(this::accept, "chip8-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress)server.getLocalAddress();
+    }
+
+    public void stop() {
+        running = false;
+        emulation.shutdownNow();
+        for(SelectorLoop loop : loops) {
+            loop.stop();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    //hands accepted sockets to the selector threads in turn
+    private void accept() {
+        int next = 0;
+        while(running) {
+            try {
+                SocketChannel channel = server.accept();
+                loops[next].add(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if(running) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static ThreadFactory threads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Usage: java server.StreamServer <port> <rom> [sessions]
+     * Runs the given number of sessions of the ROM (1 by default), with -Dchip8.engine, -Dchip8.hz and
+     * -Dchip8.machine as in the window, and prints the client count whenever it changes
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 2) {
+            System.err.println("Usage: StreamServer <port> <rom> [sessions]");
+            System.exit(1);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(args[1]));
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String machineName = System.getProperty("chip8.machine");
+        Machine machine = machineName != null ? Machine.parse(machineName) : Machine.forFile(args[1]);
+        EngineType engine = EngineType.parse(System.getProperty("chip8.engine", "decoded"));
+        int hz = Integer.getInteger("chip8.hz", Scheduler.DEFAULT_HZ);
+        if(hz == Scheduler.UNTHROTTLED) {
+            // every session would take a core to itself
+            System.err.println("Sessions need a fixed instruction rate");
+            System.exit(1);
+        }
+        List<Session> sessions = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            sessions.add(new Session(i, program, machine, engine, hz));
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        StreamServer server = new StreamServer(sessions, Math.max(1, Math.min(4, cores / 2)), cores);
+        server.start(new InetSocketAddress(Integer.parseInt(args[0])));
+        System.out.println("Serving " + count + " sessions on " + server.getAddress());
+        String last = "";
+        while(true) {
+            Thread.sleep(1000);
+            int clients = 0;
+            int halted = 0;
+            for(Session session : sessions) {
+                clients += session.getConnections();
+                halted += session.getHalted() != null ? 1 : 0;
+            }
+            String status = String.format("%d sessions (%d halted), %d clients", count, halted, clients);
+            if(!status.equals(last)) {
+                System.out.println(status);
+                last = status;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package video;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every 60hz frame of a run into a FrameSink without slowing the emulation down.
+ *
+ * The emulation thread hands over the packed display once per frame. A frame equal to the one before is
+ * only counted, a new one is copied into a bounded single producer, single consumer ring of preallocated
+ * slots, so recording allocates nothing and takes no locks. A background thread takes the frames, works
+ * out how long each was shown and passes them to the sink, where all the encoding happens.
+ *
+ * offer() never waits: when the encoder falls behind, a new frame is dropped and counted, and the display
+ * is tried again next frame. put() waits for room instead, for headless runs that must keep every frame.
+ */
+public class FrameRecorder implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    //how long the encoder sleeps when the ring is empty, and the producer in put() when it is full
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final FrameSink sink;
+    private final long[][] slots;
+    //the frame number each slot was shown from
+    private final long[] starts;
+    //next slot to take and next slot to fill, only ever growing
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread encoder;
+
+    //producer side: the last frame put in the ring and how many frames were handed over
+    private final long[] last;
+    private boolean started;
+    private long frames;
+    private volatile long dropped;
+
+    private volatile boolean closed;
+    private volatile long end;
+    private volatile IOException failure;
+
+    public FrameRecorder(FrameSink sink, int words) {
+        this(sink, words, DEFAULT_CAPACITY);
+    }
+
+    public FrameRecorder(FrameSink sink, int words, int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.sink = sink;
+        slots = new long[capacity][words];
+        starts = new long[capacity];
+        last = new long[words];
+        encoder = new Thread(this::encode, "chip8-video");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    /**
+     * Emulation thread: records one frame, returns false if it had to be dropped because the encoder
+     * is behind. Never blocks
+     */
+    public boolean offer(long[] rows) {
+        if(closed) {
+            return false;
+        }
+        if(started && Arrays.equals(rows, last)) {
+            frames++;
+            return true;
+        }
+        long at = tail.get();
+        if(at - head.get() == slots.length) {
+            dropped++;
+            frames++;
+            return false;
+        }
+        push(rows, at);
+        return true;
+    }
+
+    //emulation thread: records one frame, waiting for the encoder if the ring is full
+    public void put(long[] rows) throws InterruptedException {
+        if(closed) {
+            return;
+        }
+        if(started && Arrays.equals(rows, last)) {
+            frames++;
+            return;
+        }
+        long at = tail.get();
+        while(at - head.get() == slots.length) {
+            LockSupport.parkNanos(POLL_NANOS);
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        push(rows, at);
+    }
+
+    private void push(long[] rows, long at) {
+        int slot = (int)(at % slots.length);
+        System.arraycopy(rows, 0, slots[slot], 0, last.length);
+        starts[slot] = frames;
+        System.arraycopy(rows, 0, last, 0, last.length);
+        started = true;
+        frames++;
+        // publishes the slot to the encoder
+        tail.set(at + 1);
+    }
+
+    //frames handed over so far, dropped ones included
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Called after the last frame, by the thread that recorded or with it held off: lets the encoder finish,
+     * closes the sink and throws what went wrong in the encoder, if anything. Later frames are ignored
+     */
+    @Override
+    public void close() throws IOException {
+        end = frames;
+        closed = true;
+        boolean interrupted = false;
+        while(encoder.isAlive()) {
+            try {
+                encoder.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            if(failure == null) {
+                failure = e;
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    //encoder thread: each frame is written once the next one arrives and its length is known
+    private void encode() {
+        long[] pending = new long[last.length];
+        long pendingStart = -1;
+        while(true) {
+            long at = head.get();
+            if(at == tail.get()) {
+                // closed is set after the last push, so an empty ring seen after it stays empty
+                if(closed && at == tail.get()) {
+                    break;
+                }
+                LockSupport.parkNanos(POLL_NANOS);
+                continue;
+            }
+            int slot = (int)(at % slots.length);
+            if(pendingStart >= 0) {
+                write(pending, starts[slot] - pendingStart);
+            }
+            System.arraycopy(slots[slot], 0, pending, 0, pending.length);
+            pendingStart = starts[slot];
+            // hands the slot back to the producer
+            head.set(at + 1);
+        }
+        if(pendingStart >= 0) {
+            write(pending, end - pendingStart);
+        }
+    }
+
+    private void write(long[] rows, long shown) {
+        if(failure != null) {
+            // keep draining so the producer is never stuck behind a broken sink
+            return;
+        }
+        try {
+            sink.frame(rows, (int)shown);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        }
+    }
+}
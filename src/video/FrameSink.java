@@ -0,0 +1,25 @@
+package video;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where a FrameRecorder's background thread puts the frames: each distinct display once,
+ * with how many 60hz frames it stayed on screen
+ */
+public interface FrameSink extends Closeable {
+
+    /**
+     * Writes packed display rows (see chip.Chip.getDisplayRows()) shown for the given number of frames.
+     * The array is only valid during the call
+     */
+    void frame(long[] rows, int frames) throws IOException;
+
+    //picks the format by extension: .gif for an animated GIF, anything else for raw frames
+    static FrameSink open(String file, int width, int height, int planes) throws IOException {
+        if(file.toLowerCase().endsWith(".gif")) {
+            return new GifSink(file, width, height, planes, GifSink.DEFAULT_SCALE);
+        }
+        return new RawSink(file, width, height, planes);
+    }
+}
@@ -0,0 +1,165 @@
+package video;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Animated GIF through ImageIO, so it works headless.
+ *
+ * GIF delays are in hundredths of a second. Each frame gets the rounded end time minus the rounded start time,
+ * so the total length is exact and no frame is off by more than half a hundredth. Viewers may show
+ * single 60hz frames (1 or 2 hundredths) longer than that. A frame held for more than 65535 hundredths
+ * is written as several images.
+ */
+public class GifSink implements FrameSink {
+
+    public static final int DEFAULT_SCALE = 4;
+
+    //XO-CHIP colors by plane bits, the same as the window
+    private static final int[] PALETTE = {0x000000, 0xFFFFFF, 0xAAAAAA, 0x555555};
+
+    //largest delayTime a frame can have, in hundredths of a second
+    private static final int MAX_DELAY = 0xFFFF;
+
+    private final ImageOutputStream out;
+    private final ImageWriter writer;
+    private final BufferedImage image;
+    private final byte[] pixels;
+    private final int width;
+    private final int height;
+    private final int words;
+    private final int planes;
+    private final int scale;
+
+    //60hz frames written so far
+    private long time;
+    private boolean first = true;
+
+    public GifSink(String file, int width, int height, int planes, int scale) throws IOException {
+        if(scale <= 0) {
+            throw new IllegalArgumentException("Scale must be positive: " + scale);
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if(!writers.hasNext()) {
+            throw new IOException("No GIF writer available");
+        }
+        this.width = width;
+        this.height = height;
+        this.words = width / 64;
+        this.planes = planes;
+        this.scale = scale;
+        byte[] r = new byte[PALETTE.length];
+        byte[] g = new byte[PALETTE.length];
+        byte[] b = new byte[PALETTE.length];
+        for(int i = 0; i < PALETTE.length; i++) {
+            r[i] = (byte)(PALETTE[i] >> 16);
+            g[i] = (byte)(PALETTE[i] >> 8);
+            b[i] = (byte)PALETTE[i];
+        }
+        image = new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(2, PALETTE.length, r, g, b));
+        pixels = new byte[width * scale * height * scale];
+        writer = writers.next();
+        // the file stream writes over what is there without truncating it
+        Files.deleteIfExists(Paths.get(file));
+        out = ImageIO.createImageOutputStream(new File(file));
+        writer.setOutput(out);
+        writer.prepareWriteSequence(null);
+    }
+
+    @Override
+    public void frame(long[] rows, int frames) throws IOException {
+        int stride = width * scale;
+        int planeSize = words * height;
+        for(int y = 0; y < height; y++) {
+            int line = y * scale * stride;
+            for(int x = 0; x < width; x++) {
+                int color = 0;
+                for(int plane = 0; plane < planes; plane++) {
+                    long word = rows[plane * planeSize + y * words + (x >> 6)];
+                    color |= (int)((word >>> (63 - (x & 63))) & 1) << plane;
+                }
+                for(int i = 0, at = line + x * scale; i < scale; i++) {
+                    pixels[at + i] = (byte)color;
+                }
+            }
+            // the other lines of a scaled row are copies of the first
+            for(int i = 1; i < scale; i++) {
+                System.arraycopy(pixels, line, pixels, line + i * stride, stride);
+            }
+        }
+        image.getRaster().setDataElements(0, 0, stride, height * scale, pixels);
+
+        long delay = centiseconds(time + frames) - centiseconds(time);
+        time += frames;
+        // the delay field is 16 bits, longer stills are written as repeats of the same image
+        do {
+            int part = (int)Math.min(delay, MAX_DELAY);
+            writer.writeToSequence(new IIOImage(image, null, metadata(part)), null);
+            delay -= part;
+        } while(delay > 0);
+    }
+
+    private static long centiseconds(long frames) {
+        return (frames * 100 + 30) / 60;
+    }
+
+    private IIOMetadata metadata(int delay) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(format);
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        control.setAttribute("transparentColorIndex", "0");
+        if(first) {
+            // loop forever
+            IIOMetadataNode extensions = child(root, "ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] { 1, 0, 0 });
+            extensions.appendChild(loop);
+            first = false;
+        }
+        metadata.setFromTree(format, root);
+        return metadata;
+    }
+
+    //the node of that name under parent, added if there is none
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for(int i = 0; i < parent.getLength(); i++) {
+            if(parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode)parent.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        parent.appendChild(node);
+        return node;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package video;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Raw frame dump, for diffing runs and for tools that do their own encoding.
+ *
+ * Format (big endian): magic "C8FR", version, width (short), height (short), planes (byte), then per frame
+ * the number of 60hz frames it was shown (int) and the packed display rows as longs, until the end of the file
+ */
+public class RawSink implements FrameSink {
+
+    private static final int MAGIC = 0x43384652;
+    private static final int VERSION = 1;
+
+    private final DataOutputStream out;
+
+    public RawSink(String file, int width, int height, int planes) throws IOException {
+        this(new BufferedOutputStream(Files.newOutputStream(Paths.get(file))), width, height, planes);
+    }
+
+    public RawSink(OutputStream out, int width, int height, int planes) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeShort(width);
+        this.out.writeShort(height);
+        this.out.writeByte(planes);
+    }
+
+    @Override
+    public void frame(long[] rows, int frames) throws IOException {
+        out.writeInt(frames);
+        for(long row : rows) {
+            out.writeLong(row);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,65 @@
+package video;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import chip.Chip;
+import chip.EngineType;
+import chip.Movie;
+import chip.MoviePlayer;
+
+/**
+ * Replays a movie headless and records every frame of it, for keeping evidence of a run from batch jobs.
+ *
+ * Usage: java video.VideoExport <movie> <rom> <out.gif|out.raw> [engine]
+ */
+public class VideoExport {
+
+    private VideoExport() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 3) {
+            System.err.println("Usage: VideoExport <movie> <rom> <out.gif|out.raw> [switch|decoded|jit]");
+            System.exit(1);
+        }
+        Movie movie;
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(args[0])))) {
+            movie = Movie.read(in);
+        }
+        byte[] program = Files.readAllBytes(Paths.get(args[1]));
+        if(!movie.matches(program)) {
+            System.err.println("Movie was not recorded with " + args[1]);
+            System.exit(1);
+        }
+
+        Chip chip = new Chip();
+        chip.setMachine(movie.getMachine());
+        chip.setQuirks(movie.getQuirks());
+        chip.init();
+        chip.setEngine(EngineType.parse(args.length > 3 ? args[3] : "decoded"));
+        chip.loadProgram(program);
+        long start = System.nanoTime();
+        FrameRecorder recorder = new FrameRecorder(
+                FrameSink.open(args[2], chip.getWidth(), chip.getHeight(), chip.getPlanes()), chip.getDisplayRows().length);
+        try {
+            MoviePlayer.play(chip, movie, (c, render) -> {
+                try {
+                    // the replay outruns any encoder, wait for it rather than lose frames
+                    recorder.put(c.getDisplayRows());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while recording", e);
+                }
+            });
+        } finally {
+            recorder.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d frames written to %s in %.1f ms", recorder.getFrames(), args[2], elapsed / 1e6));
+        System.out.println(String.format("pc=%03X hash=%016X", chip.getPc(), chip.displayHash()));
+    }
+}